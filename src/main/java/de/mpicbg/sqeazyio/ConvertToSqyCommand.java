@@ -0,0 +1,64 @@
+package de.mpicbg.sqeazyio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.scijava.Context;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+
+/**
+ * Converts all images of a directory to .sqy, see {@link SqyConverter}.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Sqeazy>Convert Directory to SQY")
+public class ConvertToSqyCommand implements Command {
+
+    @Parameter
+    private Context context;
+
+    @Parameter
+    private LogService log;
+
+    @Parameter(label = "Input directory", style = FileWidget.DIRECTORY_STYLE)
+    private File inputDirectory;
+
+    @Parameter(label = "Output directory", style = FileWidget.DIRECTORY_STYLE)
+    private File outputDirectory;
+
+    @Parameter(label = "File pattern")
+    private String pattern = "*.{tif,tiff,TIF,TIFF}";
+
+    @Parameter(label = "Compression pipeline")
+    private String pipeline = SqeazyFormat.DEFAULT_PIPELINE;
+
+    @Parameter(label = "Parallel conversions", min = "1")
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(label = "Memory budget (MB)", min = "1")
+    private long memoryBudgetMB = Runtime.getRuntime().maxMemory() / 2 >> 20;
+
+    @Parameter(type = ItemIO.OUTPUT)
+    private int converted;
+
+    @Override
+    public void run() {
+        final SqyConverter converter = new SqyConverter(context)
+            .setPattern(pattern)
+            .setPipeline(pipeline)
+            .setParallelism(parallelism)
+            .setMemoryBudget(memoryBudgetMB << 20);
+
+        try {
+            final List<File> written = converter.convertDirectory(inputDirectory, outputDirectory);
+            converted = written.size();
+        }
+        catch (final IOException e) {
+            log.error("converting " + inputDirectory + " failed", e);
+        }
+    }
+}
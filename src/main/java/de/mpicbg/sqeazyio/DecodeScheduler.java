@@ -0,0 +1,336 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bridj.Pointer;
+
+import sqeazy.bindings.SqeazyLibrary;
+
+import de.mpicbg.sqeazyio.SqeazyDecodeService.DecodePriority;
+
+/**
+ * Process-wide admission of native sqeazy decodes.
+ * <p>
+ * The native decoder threads and the memory of decoded volumes are budgeted
+ * per JVM, not per SciJava context: every {@link DefaultSqeazyDecodeService}
+ * delegates here, and so do {@link SqeazyFormat.Metadata} objects without a
+ * context. A decode runs on the calling thread once it reached the head of
+ * the priority queue and fits both budgets.
+ * </p>
+ * <p>
+ * The thread cap defaults to the number of cores, the memory budget to half
+ * of the physical memory. Both can be set through the system properties
+ * {@value DefaultSqeazyDecodeService#MAX_THREADS_PROPERTY} and
+ * {@value DefaultSqeazyDecodeService#MEMORY_BUDGET_PROPERTY}.
+ * </p>
+ */
+final class DecodeScheduler {
+
+    private static final DecodeScheduler INSTANCE = new DecodeScheduler(
+        Integer.getInteger(DefaultSqeazyDecodeService.MAX_THREADS_PROPERTY,
+                           Runtime.getRuntime().availableProcessors()),
+        Long.getLong(DefaultSqeazyDecodeService.MEMORY_BUDGET_PROPERTY, defaultMemoryBudget()));
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition changed = lock.newCondition();
+
+    // -- guarded by lock --
+    private final PriorityQueue<Job> queue = new PriorityQueue<>();
+    private long sequence = 0;
+    private int maxThreads;
+    private long memoryBudget;
+    private int threadsInUse = 0;
+    private long bytesInFlight = 0;
+    private int running = 0;
+
+    DecodeScheduler(final int maxThreads, final long memoryBudget) {
+        this.maxThreads = Math.max(1, maxThreads);
+        this.memoryBudget = Math.max(0, memoryBudget);
+    }
+
+    static DecodeScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Decodes the sqy file behind {@code stream} into native memory taken
+     * from the {@link NativeBufferPool} once admitted, see
+     * {@link SqeazyDecodeService#decode(RandomAccessInputStream, int, long, int, DecodePriority)}.
+     */
+    Pointer<Byte> decode(final RandomAccessInputStream stream,
+                         final int sizeof, final long decodedBytes,
+                         final int nThreads, final DecodePriority priority)
+        throws IOException, FormatException
+    {
+        checkSizeof(sizeof);
+        final Job job = admit(stream, decodedBytes, nThreads, priority);
+        try {
+            final Pointer<Byte> decoded = NativeBufferPool.getInstance().allocate(decodedBytes);
+            try {
+                decodeNow(stream, 0, stream.length(), sizeof, decoded, job.threads);
+            }
+            catch (final IOException | FormatException | RuntimeException e) {
+                NativeBufferPool.getInstance().release(decoded);
+                throw e;
+            }
+            return decoded;
+        }
+        finally {
+            finish(job);
+        }
+    }
+
+    /**
+     * Decodes {@code length} bytes of {@code stream} at {@code offset} into
+     * {@code dest} once admitted.
+     */
+    void decode(final RandomAccessInputStream stream, final long offset,
+                final long length, final int sizeof,
+                final Pointer<Byte> dest, final int nThreads,
+                final DecodePriority priority) throws IOException, FormatException
+    {
+        checkSizeof(sizeof);
+        final Job job = admit(stream, dest.getValidBytes(), nThreads, priority);
+        try {
+            decodeNow(stream, offset, length, sizeof, dest, job.threads);
+        }
+        finally {
+            finish(job);
+        }
+    }
+
+    int getMaxThreads() {
+        lock.lock();
+        try {
+            return maxThreads;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    void setMaxThreads(final int maxThreads) {
+        lock.lock();
+        try {
+            this.maxThreads = Math.max(1, maxThreads);
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    long getMemoryBudget() {
+        lock.lock();
+        try {
+            return memoryBudget;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    void setMemoryBudget(final long bytes) {
+        lock.lock();
+        try {
+            this.memoryBudget = Math.max(0, bytes);
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    int getThreadsInUse() {
+        lock.lock();
+        try {
+            return threadsInUse;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    long getBytesInFlight() {
+        lock.lock();
+        try {
+            return bytesInFlight;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    int getRunningDecodes() {
+        lock.lock();
+        try {
+            return running;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    int getQueuedDecodes() {
+        lock.lock();
+        try {
+            return queue.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // -- Helper methods --
+
+    private Job admit(final RandomAccessInputStream stream,
+                      final long decodedBytes, final int nThreads,
+                      final DecodePriority priority) throws IOException, FormatException
+    {
+        lock.lock();
+        try {
+            if (decodedBytes > memoryBudget) {
+                throw new FormatException("refusing to decode " + stream.getFileName() +
+                                          ": " + decodedBytes + " Bytes exceed the decode memory budget of " +
+                                          memoryBudget + " Bytes");
+            }
+
+            final Job job = new Job(priority, sequence++, decodedBytes);
+            queue.add(job);
+            try {
+                while (queue.peek() != job || threadsInUse >= maxThreads ||
+                       bytesInFlight + decodedBytes > memoryBudget)
+                {
+                    changed.await();
+                }
+            }
+            catch (final InterruptedException e) {
+                queue.remove(job);
+                changed.signalAll();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting to decode " +
+                                                 stream.getFileName());
+            }
+            queue.poll();
+
+            // share what is left fairly with the decodes still waiting
+            final int free = maxThreads - threadsInUse;
+            final int fair = Math.max(1, free / (1 + queue.size()));
+            job.threads = nThreads > 0 ? Math.min(nThreads, free) : fair;
+
+            threadsInUse += job.threads;
+            bytesInFlight += decodedBytes;
+            running++;
+
+            // the next job in line may fit as well
+            changed.signalAll();
+            return job;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void finish(final Job job) {
+        lock.lock();
+        try {
+            threadsInUse -= job.threads;
+            bytesInFlight -= job.bytes;
+            running--;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private static void checkSizeof(final int sizeof) throws FormatException {
+        if (sizeof != 1 && sizeof != 2) {
+            throw new FormatException("unable to decompress of unknown pixel size " +
+                                      sizeof + " (only sizeof={1 or 2} supported)");
+        }
+    }
+
+    /**
+     * Runs the native decoder on {@code length} bytes of {@code stream} at
+     * {@code offset}, writing into {@code dest}.
+     */
+    private static void decodeNow(final RandomAccessInputStream stream,
+                                  final long offset, final long length,
+                                  final int sizeof, final Pointer<Byte> dest,
+                                  final int threads) throws IOException, FormatException
+    {
+        // the encoded file is mapped (or streamed into native memory),
+        // never copied onto the java heap
+        int return_code = -1;
+        try (final EncodedInput encoded = EncodedInput.open(stream, offset, length)) {
+            final SqyMetrics metrics = SqyMetrics.getInstance();
+            final long start = metrics.decodeStarted();
+            try {
+                return_code = decodeNative(encoded, sizeof, dest, threads);
+            }
+            finally {
+                metrics.decodeFinished(start, encoded.length(), dest.getValidBytes(),
+                                       return_code == 0);
+            }
+        }
+
+        if (return_code != 0) {
+            throw new FormatException("sqeazy failed to decode " +
+                                      stream.getFileName() + " (error code " + return_code + ")");
+        }
+    }
+
+    private static int decodeNative(final EncodedInput encoded, final int sizeof,
+                                    final Pointer<Byte> dest, final int threads)
+    {
+        if (sizeof == 1) {
+            return SqeazyLibrary.SQY_Decode_UI8(encoded.pointer(),
+                                                encoded.length(),
+                                                dest,
+                                                threads);
+        }
+        return SqeazyLibrary.SQY_Decode_UI16(encoded.pointer(),
+                                             encoded.length(),
+                                             dest,
+                                             threads);
+    }
+
+    private static long defaultMemoryBudget() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize() / 2;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** A queued or running decode, ordered by priority then arrival. */
+    private static final class Job implements Comparable<Job> {
+
+        final DecodePriority priority;
+        final long sequence;
+        final long bytes;
+        int threads;
+
+        Job(final DecodePriority priority, final long sequence, final long bytes) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int compareTo(final Job other) {
+            final int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
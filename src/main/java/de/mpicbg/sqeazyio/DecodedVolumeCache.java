@@ -0,0 +1,319 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bridj.Pointer;
+
+/**
+ * Process-wide cache of decoded sqy volumes.
+ * <p>
+ * Volumes are keyed by the canonical path of their file together with its
+ * size and modification time, so a file that changed on disk is never served
+ * stale. The cache holds at most {@link #getMaximumBytes()} of decoded data
+ * and evicts the least recently used volumes beyond that. Volumes are handed
+ * out as reference counted {@link Lease}s: a volume that is still leased is
+ * never released, even if it was evicted meanwhile.
+ * </p>
+ * <p>
+ * Concurrent requests for a volume that is not cached yet are coalesced:
+ * the first caller decodes, the others wait for its result and share it.
+ * This holds even with caching disabled, the volume is just not kept once
+ * the last lease is closed then.
+ * </p>
+ * <p>
+ * The budget defaults to 2 GB and can be changed through the system property
+ * {@value #MAX_BYTES_PROPERTY} or {@link #setMaximumBytes(long)}; a budget of
+ * 0 disables caching altogether.
+ * </p>
+ */
+public final class DecodedVolumeCache {
+
+    public static final String MAX_BYTES_PROPERTY = "sqeazy.cache.maxBytes";
+
+    private static final long DEFAULT_MAX_BYTES = 2L << 30;
+
+    private static final DecodedVolumeCache INSTANCE =
+        new DecodedVolumeCache(Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+
+    /** Produces the decoded volume on a cache miss. */
+    public interface Decoder {
+        Pointer<Byte> decode() throws IOException, FormatException;
+    }
+
+    // access ordered, i.e. iteration starts at the least recently used entry
+    private final LinkedHashMap<FileKey, Entry> entries =
+        new LinkedHashMap<FileKey, Entry>(16, 0.75f, true);
+
+    // decodes running, joined by concurrent requests for the same key
+    private final Map<FileKey, Flight> flights = new HashMap<>();
+
+    private long maxBytes;
+    private long cachedBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    DecodedVolumeCache(final long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    public static DecodedVolumeCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a lease on the decoded content of {@code file}, calling
+     * {@code decoder} only if the volume is not cached yet. The lease has to
+     * be closed once the data is not needed anymore.
+     */
+    public Lease acquire(final File file, final Decoder decoder)
+        throws IOException, FormatException
+    {
+        return acquire(new FileKey(file), decoder);
+    }
+
+    /** Like {@link #acquire(File, Decoder)} for any part of a file. */
+    Lease acquire(final FileKey key, final Decoder decoder)
+        throws IOException, FormatException
+    {
+        final Flight flight;
+        synchronized (this) {
+            final Entry cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+                return new Lease(cached.retain());
+            }
+
+            final Flight running = flights.get(key);
+            if (running != null) {
+                hits++;
+                return join(running);
+            }
+
+            misses++;
+            flight = new Flight();
+            flights.put(key, flight);
+        }
+
+        Pointer<Byte> data = null;
+        Throwable failure = null;
+        try {
+            data = decoder.decode();
+            if (data == null) failure = new FormatException("decoder returned no data");
+        }
+        catch (final IOException | FormatException | RuntimeException | Error e) {
+            failure = e;
+        }
+
+        synchronized (this) {
+            flights.remove(key);
+            flight.done = true;
+            flight.failure = failure;
+            if (data != null) {
+                final Entry fresh = new Entry(key, data);
+                // one reference for us and one for every caller waiting
+                fresh.refs = 1 + flight.waiters;
+                flight.entry = fresh;
+                if (fresh.bytes <= maxBytes) {
+                    entries.put(key, fresh);
+                    cachedBytes += fresh.bytes;
+                    fresh.cached = true;
+                    trim();
+                }
+            }
+            notifyAll();
+
+            if (flight.entry != null) return new Lease(flight.entry);
+        }
+        throw rethrow(failure);
+    }
+
+    // guarded by this
+    private Lease join(final Flight flight) throws IOException, FormatException {
+        flight.waiters++;
+        try {
+            while (!flight.done) wait();
+        }
+        catch (final InterruptedException e) {
+            if (flight.done) {
+                // our reference was taken already
+                if (flight.entry != null) release(flight.entry);
+            }
+            else {
+                flight.waiters--;
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a decode");
+        }
+
+        if (flight.entry != null) return new Lease(flight.entry);
+        throw rethrow(flight.failure);
+    }
+
+    private static IOException rethrow(final Throwable failure) throws FormatException {
+        if (failure instanceof IOException) return (IOException) failure;
+        if (failure instanceof FormatException) throw (FormatException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        throw (Error) failure;
+    }
+
+    /**
+     * Hands out {@code data} as a lease that is not shared through the cache,
+     * the data is released once the lease is closed.
+     */
+    public Lease wrap(final Pointer<Byte> data) {
+        synchronized (this) {
+            return new Lease(new Entry(null, data).retain());
+        }
+    }
+
+    public synchronized long getMaximumBytes() {
+        return maxBytes;
+    }
+
+    /** Changes the byte budget, evicting unused volumes if necessary. */
+    public synchronized void setMaximumBytes(final long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        trim();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Evicts every volume, leased ones are released once their lease closes. */
+    public synchronized void clear() {
+        for (final Entry entry : entries.values()) {
+            entry.cached = false;
+            entry.releaseIfUnused();
+        }
+        entries.clear();
+        cachedBytes = 0;
+    }
+
+    private synchronized void trim() {
+        final Iterator<Map.Entry<FileKey, Entry>> it = entries.entrySet().iterator();
+        while (cachedBytes > maxBytes && it.hasNext()) {
+            final Entry entry = it.next().getValue();
+            if (entry.refs > 0) continue;
+
+            it.remove();
+            cachedBytes -= entry.bytes;
+            evictions++;
+            entry.cached = false;
+            entry.releaseIfUnused();
+        }
+    }
+
+    private synchronized void release(final Entry entry) {
+        entry.refs--;
+        if (entry.cached) {
+            // the volume may have been kept beyond budget while in use
+            if (entry.refs == 0 && cachedBytes > maxBytes) trim();
+        }
+        else {
+            entry.releaseIfUnused();
+        }
+    }
+
+    /** Reference counted handle on a decoded volume. */
+    public final class Lease implements Closeable {
+
+        private Entry entry;
+
+        private Lease(final Entry entry) {
+            this.entry = entry;
+        }
+
+        public Pointer<Byte> data() {
+            return entry == null ? null : entry.data;
+        }
+
+        public long bytes() {
+            return entry == null ? 0 : entry.bytes;
+        }
+
+        /**
+         * Another lease on the same volume, it stays valid when this one is
+         * closed.
+         */
+        public Lease share() {
+            synchronized (DecodedVolumeCache.this) {
+                if (entry == null) throw new IllegalStateException("lease closed already");
+                return new Lease(entry.retain());
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (DecodedVolumeCache.this) {
+                if (entry == null) return;
+                release(entry);
+                entry = null;
+            }
+        }
+    }
+
+    /** A decode in progress, guarded by the owning cache. */
+    private static final class Flight {
+        int waiters = 0;
+        boolean done = false;
+        Entry entry;
+        Throwable failure;
+    }
+
+    private static final class Entry {
+
+        final FileKey key;
+        final Pointer<Byte> data;
+        final long bytes;
+
+        /** guarded by the owning cache */
+        int refs = 0;
+        boolean cached = false;
+        boolean released = false;
+
+        Entry(final FileKey key, final Pointer<Byte> data) {
+            this.key = key;
+            this.data = data;
+            this.bytes = data.getValidBytes();
+        }
+
+        Entry retain() {
+            refs++;
+            return this;
+        }
+
+        void releaseIfUnused() {
+            if (refs > 0 || released) return;
+            NativeBufferPool.getInstance().release(data);
+            released = true;
+        }
+    }
+}
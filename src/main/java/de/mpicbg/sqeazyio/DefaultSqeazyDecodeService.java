@@ -0,0 +1,97 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.IOException;
+
+import org.bridj.Pointer;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+/**
+ * Default {@link SqeazyDecodeService}: decodes on the calling thread once the
+ * job reached the head of the priority queue and fits the thread and memory
+ * budgets.
+ * <p>
+ * The queue and both budgets are shared by all contexts of the JVM (see
+ * {@link DecodeScheduler}), so several contexts together never run more
+ * decoder threads than the cap. The thread cap defaults to the number of
+ * cores, the memory budget to half of the physical memory. Both can be set
+ * through the system properties {@value #MAX_THREADS_PROPERTY} and
+ * {@value #MEMORY_BUDGET_PROPERTY}; setting them on any service changes them
+ * for all.
+ * </p>
+ */
+@Plugin(type = Service.class)
+public class DefaultSqeazyDecodeService extends AbstractService implements
+    SqeazyDecodeService
+{
+
+    public static final String MAX_THREADS_PROPERTY = "sqeazy.decode.maxThreads";
+
+    public static final String MEMORY_BUDGET_PROPERTY = "sqeazy.decode.memoryBudget";
+
+    private final DecodeScheduler scheduler = DecodeScheduler.getInstance();
+
+    // -- SqeazyDecodeService methods --
+
+    @Override
+    public Pointer<Byte> decode(final RandomAccessInputStream stream,
+                                final int sizeof, final long decodedBytes,
+                                final int nThreads, final DecodePriority priority)
+        throws IOException, FormatException
+    {
+        return scheduler.decode(stream, sizeof, decodedBytes, nThreads, priority);
+    }
+
+    @Override
+    public void decode(final RandomAccessInputStream stream, final long offset,
+                       final long length, final int sizeof,
+                       final Pointer<Byte> dest, final int nThreads,
+                       final DecodePriority priority) throws IOException, FormatException
+    {
+        scheduler.decode(stream, offset, length, sizeof, dest, nThreads, priority);
+    }
+
+    @Override
+    public int getMaxThreads() {
+        return scheduler.getMaxThreads();
+    }
+
+    @Override
+    public void setMaxThreads(final int maxThreads) {
+        scheduler.setMaxThreads(maxThreads);
+    }
+
+    @Override
+    public long getMemoryBudget() {
+        return scheduler.getMemoryBudget();
+    }
+
+    @Override
+    public void setMemoryBudget(final long bytes) {
+        scheduler.setMemoryBudget(bytes);
+    }
+
+    @Override
+    public int getThreadsInUse() {
+        return scheduler.getThreadsInUse();
+    }
+
+    @Override
+    public long getBytesInFlight() {
+        return scheduler.getBytesInFlight();
+    }
+
+    @Override
+    public int getRunningDecodes() {
+        return scheduler.getRunningDecodes();
+    }
+
+    @Override
+    public int getQueuedDecodes() {
+        return scheduler.getQueuedDecodes();
+    }
+}
@@ -0,0 +1,63 @@
+package de.mpicbg.sqeazyio;
+
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+import de.mpicbg.sqeazyio.SqyMetrics.Stage;
+
+/**
+ * Default {@link SqeazyMetricsService}: serves the process-wide
+ * {@link SqyMetrics} and registers them with the platform MBean server.
+ */
+@Plugin(type = Service.class)
+public class DefaultSqeazyMetricsService extends AbstractService implements
+    SqeazyMetricsService
+{
+
+    // -- Service methods --
+
+    @Override
+    public void initialize() {
+        if (!getMetrics().register()) {
+            log().warn("sqeazy metrics could not be registered with JMX");
+        }
+    }
+
+    // -- SqeazyMetricsService methods --
+
+    @Override
+    public SqyMetrics getMetrics() {
+        return SqyMetrics.getInstance();
+    }
+
+    @Override
+    public StageStatistics getStatistics(final Stage stage) {
+        return getMetrics().getStatistics(stage);
+    }
+
+    @Override
+    public void reset() {
+        getMetrics().reset();
+    }
+
+    @Override
+    public String report() {
+        final SqyMetrics metrics = getMetrics();
+        final StringBuilder sb = new StringBuilder();
+        for (final Stage stage : Stage.values()) {
+            sb.append(String.format("%-12s %s%n", stage, metrics.getStatistics(stage)));
+        }
+        sb.append(String.format("read %d Bytes, decoded %d Bytes (ratio %.2f), copied %d Bytes%n",
+                                metrics.getBytesRead(), metrics.getBytesDecoded(),
+                                metrics.getCompressionRatio(), metrics.getBytesCopied()));
+        sb.append(String.format("cache %d hits, %d misses, %d Bytes cached; decodes %d running, %d at most%n",
+                                metrics.getCacheHits(), metrics.getCacheMisses(),
+                                metrics.getCachedBytes(), metrics.getConcurrentDecodes(),
+                                metrics.getPeakConcurrentDecodes()));
+        sb.append(String.format("buffer pool %d hits, %d misses, %d Bytes idle, %d leaks%n",
+                                metrics.getPoolHits(), metrics.getPoolMisses(),
+                                metrics.getPoolIdleBytes(), metrics.getPoolLeaks()));
+        return sb.toString();
+    }
+}
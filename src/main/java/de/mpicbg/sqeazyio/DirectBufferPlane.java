@@ -0,0 +1,91 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.AbstractPlane;
+import io.scif.ImageMetadata;
+import io.scif.util.FormatTools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import net.imglib2.Interval;
+
+import org.scijava.Context;
+
+/**
+ * A {@link io.scif.Plane} whose data lives off the Java heap in a (direct)
+ * {@link ByteBuffer}.
+ * <p>
+ * {@link SqeazyFormat.Reader#openDirectPlane} populates it with a read-only
+ * slice of the decoded volume, so consumers that work on {@link ByteBuffer}s
+ * see the pixels without any copy. Such a plane holds a lease on the decoded
+ * memory: the view stays valid until the plane is {@link #close() closed},
+ * after which it must not be used anymore. {@link #getBytes()} is kept for API
+ * compatibility and copies the data onto the heap.
+ * </p>
+ */
+public class DirectBufferPlane extends AbstractPlane<ByteBuffer, DirectBufferPlane>
+    implements Closeable
+{
+
+    /** keeps the memory behind the data alive, null for planes of their own */
+    private Closeable owner;
+
+    // -- Constructor --
+
+    public DirectBufferPlane(final Context context) {
+        super(context);
+    }
+
+    public DirectBufferPlane(final Context context, final ImageMetadata meta,
+                             final Interval bounds)
+    {
+        super(context, meta, bounds);
+    }
+
+    /** Hands the lease on the memory behind the data to this plane. */
+    void hold(final Closeable lease) {
+        this.owner = lease;
+    }
+
+    /**
+     * Gives back the decoded memory the data is a view of. Closing a plane
+     * more than once has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        final Closeable lease;
+        synchronized (this) {
+            lease = owner;
+            owner = null;
+        }
+        if (lease != null) lease.close();
+    }
+
+    // -- Plane API methods --
+
+    @Override
+    public byte[] getBytes() {
+        final ByteBuffer view = getData().duplicate();
+        view.clear();
+        final byte[] bytes = new byte[view.capacity()];
+        view.get(bytes);
+        return bytes;
+    }
+
+    // -- AbstractPlane API --
+
+    @Override
+    protected ByteBuffer blankPlane(final Interval bounds) {
+        final ImageMetadata meta = getImageMetadata();
+        long bytes = FormatTools.getBytesPerPixel(meta.getPixelType());
+        for (int d = 0; d < bounds.numDimensions(); d++) {
+            bytes *= bounds.dimension(d);
+        }
+
+        final ByteOrder order = meta.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN
+                                                      : ByteOrder.BIG_ENDIAN;
+        return ByteBuffer.allocateDirect((int) bytes).order(order);
+    }
+}
@@ -0,0 +1,222 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.bridj.Pointer;
+
+import static org.bridj.Pointer.*;
+
+/**
+ * The encoded bytes of a sqy file as seen by the native decoder.
+ * <p>
+ * Files on the local file system are memory mapped and the mapping's address
+ * is handed to sqeazy directly, so the compressed payload is not copied at
+ * all. Two cases still get one full copy into natively allocated memory,
+ * which is addressed by {@code long} and hence not bound to the 2 GB limit of
+ * Java arrays:
+ * </p>
+ * <ul>
+ * <li>payloads of local files beyond what a single {@link FileChannel#map}
+ * can cover ({@value #MAX_MAPPING} Bytes) are read with positional channel
+ * reads straight into the native memory, without any heap buffer;</li>
+ * <li>non-file streams are read chunk-wise through
+ * {@link RandomAccessInputStream}, which stages every chunk in a heap
+ * array.</li>
+ * </ul>
+ */
+final class EncodedInput implements Closeable {
+
+    /** the largest region a single {@link FileChannel#map} call accepts */
+    static final long MAX_MAPPING = Integer.MAX_VALUE;
+
+    /** bytes transferred per read when copying into native memory */
+    private static final int CHUNK_SIZE = 16 << 20;
+
+    private Pointer<Byte> ptr;
+    private final long length;
+
+    /** true if ptr was allocated by us and has to be released */
+    private final boolean owned;
+
+    /** keeps the mapping reachable (i.e. mapped) as long as ptr is in use */
+    private MappedByteBuffer mapping;
+
+    private EncodedInput(final Pointer<Byte> ptr, final long length,
+                         final boolean owned, final MappedByteBuffer mapping)
+    {
+        this.ptr = ptr;
+        this.length = length;
+        this.owned = owned;
+        this.mapping = mapping;
+    }
+
+    /**
+     * Opens the complete content of {@code stream}, memory mapped if it is
+     * backed by a local file, copied to native memory otherwise.
+     */
+    static EncodedInput open(final RandomAccessInputStream stream)
+        throws IOException
+    {
+        return open(stream, 0, stream.length());
+    }
+
+    /**
+     * Opens {@code length} bytes of {@code stream} starting at {@code offset},
+     * e.g. one slab of a chunked sqy file. Mapping a region of a local file is
+     * safe to do concurrently, copying reads from the shared {@code stream}.
+     */
+    static EncodedInput open(final RandomAccessInputStream stream,
+                             final long offset, final long length) throws IOException
+    {
+        return open(stream, offset, length, MAX_MAPPING);
+    }
+
+    /** {@link #open(RandomAccessInputStream, long, long)} mapping at most {@code maxMapping} bytes */
+    static EncodedInput open(final RandomAccessInputStream stream,
+                             final long offset, final long length,
+                             final long maxMapping) throws IOException
+    {
+        final File file = localFile(stream);
+        final long start = System.nanoTime();
+
+        final EncodedInput input;
+        if (file != null && file.length() == stream.length()) {
+            input = length <= maxMapping ? map(file, offset, length) : read(file, offset, length);
+        }
+        else {
+            input = copy(stream, offset, length);
+        }
+
+        SqyMetrics.getInstance().recordRead(start, length);
+        return input;
+    }
+
+    /** the regular file behind {@code stream} or {@code null} if there is none */
+    static File localFile(final RandomAccessInputStream stream) {
+        final String name = stream.getFileName();
+        if (name == null) return null;
+        final File file = new File(name);
+        return file.isFile() ? file : null;
+    }
+
+    static EncodedInput map(final File file, final long length)
+        throws IOException
+    {
+        return map(file, 0, length);
+    }
+
+    @SuppressWarnings("unchecked")
+    static EncodedInput map(final File file, final long offset,
+                            final long length) throws IOException
+    {
+        // NB: the mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ))
+        {
+            final MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            final Pointer<Byte> mapped = (Pointer<Byte>) pointerToBuffer(buffer);
+            return new EncodedInput(mapped, length, false, buffer);
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes of {@code file} starting at {@code start}
+     * into native memory. The reads go from the page cache into the native
+     * memory directly (it is wrapped by direct buffers), and are safe to do
+     * concurrently.
+     */
+    static EncodedInput read(final File file, final long start,
+                             final long length) throws IOException
+    {
+        final Pointer<Byte> target = NativeBufferPool.getInstance().allocate(length);
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ))
+        {
+            long offset = 0;
+            while (offset < length) {
+                final int len = (int) Math.min(CHUNK_SIZE, length - offset);
+                final ByteBuffer window = target.next(offset).getByteBuffer(len);
+                while (window.hasRemaining()) {
+                    if (channel.read(window, start + offset + window.position()) < 0) {
+                        throw new EOFException("unexpected end of " + file + " after " +
+                                               (offset + window.position()) + " of " + length + " Bytes");
+                    }
+                }
+                offset += len;
+            }
+        }
+        catch (final IOException e) {
+            NativeBufferPool.getInstance().release(target);
+            throw e;
+        }
+
+        return new EncodedInput(target, length, true, null);
+    }
+
+    static EncodedInput copy(final RandomAccessInputStream stream,
+                             final long length) throws IOException
+    {
+        return copy(stream, 0, length);
+    }
+
+    static EncodedInput copy(final RandomAccessInputStream stream,
+                             final long start, final long length) throws IOException
+    {
+        final Pointer<Byte> target = NativeBufferPool.getInstance().allocate(length);
+
+        // seek and reads must not interleave with those of other threads
+        // sharing the stream
+        try {
+            synchronized (stream) {
+                stream.seek(start);
+                long offset = 0;
+                while (offset < length) {
+                    final int len = (int) Math.min(CHUNK_SIZE, length - offset);
+                    final ByteBuffer window = target.next(offset).getByteBuffer(len);
+                    final int read = stream.read(window, 0, len);
+                    if (read <= 0) {
+                        throw new EOFException("unexpected end of " + stream.getFileName() +
+                                               " after " + offset + " of " + length + " Bytes");
+                    }
+                    offset += read;
+                }
+            }
+        }
+        catch (final IOException e) {
+            NativeBufferPool.getInstance().release(target);
+            throw e;
+        }
+
+        return new EncodedInput(target, length, true, null);
+    }
+
+    Pointer<Byte> pointer() {
+        return ptr;
+    }
+
+    long length() {
+        return length;
+    }
+
+    boolean isMapped() {
+        return mapping != null;
+    }
+
+    @Override
+    public void close() {
+        if (ptr == null) return;
+        if (owned) NativeBufferPool.getInstance().release(ptr);
+        ptr = null;
+        mapping = null;
+    }
+}
@@ -0,0 +1,52 @@
+package de.mpicbg.sqeazyio;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Identifies one version of a file on disk: its canonical path together with
+ * size and modification time, so cached results derived from a file are not
+ * reused once it changed.
+ */
+final class FileKey {
+
+    final String path;
+    final long size;
+    final long lastModified;
+
+    FileKey(final File file) throws IOException {
+        this(file.getCanonicalPath(), file.length(), file.lastModified());
+    }
+
+    FileKey(final String path, final long size, final long lastModified) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /** key of slab {@code slab} of a chunked sqy file */
+    FileKey slab(final int slab) {
+        return new FileKey(path + "#slab" + slab, size, lastModified);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof FileKey)) return false;
+        final FileKey other = (FileKey) o;
+        return size == other.size && lastModified == other.lastModified &&
+            path.equals(other.path);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = path.hashCode();
+        h = 31 * h + (int) (size ^ (size >>> 32));
+        h = 31 * h + (int) (lastModified ^ (lastModified >>> 32));
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return path + " (" + size + " Bytes, modified " + lastModified + ")";
+    }
+}
@@ -0,0 +1,280 @@
+package de.mpicbg.sqeazyio;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bridj.Pointer;
+
+/**
+ * Process-wide pool of native buffers for decoded volumes, decoded slabs and
+ * encoded input copied off non-local streams.
+ * <p>
+ * Requests are rounded up to a size class (powers of two up to 1 MB, four
+ * classes per power of two above, i.e. at most 25% slack) and served from
+ * buffers of that class given back earlier, so long running jobs reading
+ * many volumes of similar size stop allocating and freeing multi-GB blocks.
+ * Handed out buffers are views of exactly the requested size. Their content
+ * is undefined, the pool is only used where all bytes are overwritten.
+ * </p>
+ * <p>
+ * Idle buffers are kept up to {@link #getMaximumBytes()} (system property
+ * {@value #MAX_BYTES_PROPERTY}, 1 GB by default, 0 disables pooling). Buffers
+ * that were never given back but became unreachable are counted as leaks; with
+ * {@value #TRACK_LEAKS_PROPERTY} set, their allocation stack traces are kept
+ * for {@link #getLeakReports()}.
+ * </p>
+ */
+public final class NativeBufferPool {
+
+    public static final String MAX_BYTES_PROPERTY = "sqeazy.pool.maxBytes";
+
+    public static final String TRACK_LEAKS_PROPERTY = "sqeazy.pool.trackLeaks";
+
+    private static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+    private static final long SMALL_CLASS_LIMIT = 1L << 20;
+
+    private static final int MAX_LEAK_REPORTS = 16;
+
+    private static final NativeBufferPool INSTANCE =
+        new NativeBufferPool(Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES),
+                             Boolean.getBoolean(TRACK_LEAKS_PROPERTY));
+
+    // idle buffers by size class, the most recently returned last
+    private final TreeMap<Long, ArrayDeque<Pointer<Byte>>> idle = new TreeMap<>();
+
+    // handed out buffers by address
+    private final Map<Long, Loan> loans = new HashMap<>();
+
+    private final ReferenceQueue<Pointer<Byte>> unreachable = new ReferenceQueue<>();
+
+    private final List<String> leakReports = new ArrayList<>();
+
+    private final boolean trackLeaks;
+
+    private long maxBytes;
+    private long idleBytes = 0;
+    private long loanedBytes = 0;
+    private long peakLoanedBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long leaks = 0;
+
+    NativeBufferPool(final long maxBytes, final boolean trackLeaks) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.trackLeaks = trackLeaks;
+    }
+
+    public static NativeBufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * A little endian buffer of {@code bytes} bytes with undefined content,
+     * to be given back through {@link #release(Pointer)}.
+     */
+    public synchronized Pointer<Byte> allocate(final long bytes) {
+        expungeLeaks();
+
+        final long sizeClass = sizeClass(bytes);
+        Pointer<Byte> base = null;
+        final ArrayDeque<Pointer<Byte>> candidates = idle.get(sizeClass);
+        if (candidates != null) {
+            base = candidates.pollLast();
+            if (candidates.isEmpty()) idle.remove(sizeClass);
+        }
+
+        if (base != null) {
+            hits++;
+            idleBytes -= sizeClass;
+        }
+        else {
+            misses++;
+            base = Pointer.allocateBytes(sizeClass);
+        }
+
+        final Pointer<Byte> view = base.validBytes(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        loans.put(view.getPeer(), new Loan(view, base, sizeClass, unreachable, trackLeaks));
+        loanedBytes += sizeClass;
+        peakLoanedBytes = Math.max(peakLoanedBytes, loanedBytes);
+        return view;
+    }
+
+    /**
+     * Gives back a buffer handed out by {@link #allocate(long)}, any other
+     * pointer is released right away.
+     *
+     * @throws IllegalStateException if a pooled buffer is given back twice
+     */
+    public synchronized void release(final Pointer<Byte> buffer) {
+        final Loan loan = loans.remove(buffer.getPeer());
+        if (loan == null) {
+            if (isIdle(buffer)) {
+                throw new IllegalStateException("buffer at " + buffer.getPeer() +
+                                                " was given back already");
+            }
+            buffer.release();
+            return;
+        }
+        loan.clear();
+        loanedBytes -= loan.sizeClass;
+
+        if (loan.sizeClass > maxBytes) {
+            loan.base.release();
+            return;
+        }
+        trim(maxBytes - loan.sizeClass);
+        idle.computeIfAbsent(loan.sizeClass, k -> new ArrayDeque<>()).addLast(loan.base);
+        idleBytes += loan.sizeClass;
+
+        expungeLeaks();
+    }
+
+    /** true if {@code buffer} is one of the idle buffers, i.e. was given back */
+    private boolean isIdle(final Pointer<Byte> buffer) {
+        final ArrayDeque<Pointer<Byte>> candidates = idle.get(sizeClass(buffer.getValidBytes()));
+        if (candidates == null) return false;
+        for (final Pointer<Byte> base : candidates) {
+            if (base.getPeer() == buffer.getPeer()) return true;
+        }
+        return false;
+    }
+
+    public synchronized long getMaximumBytes() {
+        return maxBytes;
+    }
+
+    /** Changes the budget of idle buffers, freeing some if necessary. */
+    public synchronized void setMaximumBytes(final long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        trim(this.maxBytes);
+    }
+
+    /** Frees all idle buffers. */
+    public synchronized void clear() {
+        trim(0);
+    }
+
+    /** bytes of idle buffers waiting to be reused */
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    /** bytes (rounded to size classes) of buffers handed out */
+    public synchronized long getLoanedBytes() {
+        return loanedBytes;
+    }
+
+    public synchronized long getPeakLoanedBytes() {
+        return peakLoanedBytes;
+    }
+
+    public synchronized int getLoanCount() {
+        return loans.size();
+    }
+
+    /** allocations served by an idle buffer */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** allocations that needed fresh native memory */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Buffers that became unreachable without being given back. Their memory
+     * is left to the garbage collector.
+     */
+    public synchronized long getLeaks() {
+        expungeLeaks();
+        return leaks;
+    }
+
+    /** the most recent leaks, with allocation stack traces if tracked */
+    public synchronized List<String> getLeakReports() {
+        expungeLeaks();
+        return new ArrayList<>(leakReports);
+    }
+
+    private void trim(final long limit) {
+        final Iterator<Map.Entry<Long, ArrayDeque<Pointer<Byte>>>> it =
+            idle.descendingMap().entrySet().iterator();
+        while (idleBytes > limit && it.hasNext()) {
+            final Map.Entry<Long, ArrayDeque<Pointer<Byte>>> entry = it.next();
+            final ArrayDeque<Pointer<Byte>> buffers = entry.getValue();
+            while (idleBytes > limit && !buffers.isEmpty()) {
+                buffers.pollFirst().release();
+                idleBytes -= entry.getKey();
+            }
+            if (buffers.isEmpty()) it.remove();
+        }
+    }
+
+    private void expungeLeaks() {
+        Loan loan;
+        while ((loan = (Loan) unreachable.poll()) != null) {
+            if (loans.get(loan.peer) != loan) continue;
+
+            // pointers derived from the lost one may still be in use, the
+            // base is no longer referenced here and freed once they are gone
+            loans.remove(loan.peer);
+            loanedBytes -= loan.sizeClass;
+            leaks++;
+            if (leakReports.size() == MAX_LEAK_REPORTS) leakReports.remove(0);
+            leakReports.add(loan.describe());
+        }
+    }
+
+    /** {@code bytes} rounded up to its size class */
+    static long sizeClass(final long bytes) {
+        if (bytes <= 1) return 1;
+        final long pow2 = Long.highestOneBit(bytes - 1) << 1;
+        if (pow2 <= SMALL_CLASS_LIMIT) return pow2;
+
+        final long step = pow2 >> 3;
+        return (bytes + step - 1) / step * step;
+    }
+
+    /** A buffer handed out, noticed as leaked once its view is unreachable. */
+    private static final class Loan extends WeakReference<Pointer<Byte>> {
+
+        final long peer;
+        final long bytes;
+        final long sizeClass;
+        final Pointer<Byte> base;
+        final Throwable allocation;
+
+        Loan(final Pointer<Byte> view, final Pointer<Byte> base, final long sizeClass,
+             final ReferenceQueue<Pointer<Byte>> queue, final boolean track)
+        {
+            super(view, queue);
+            this.peer = view.getPeer();
+            this.bytes = view.getValidBytes();
+            this.sizeClass = sizeClass;
+            this.base = base;
+            this.allocation = track ? new Throwable("allocated here") : null;
+        }
+
+        String describe() {
+            final StringBuilder sb = new StringBuilder("native buffer of " + bytes +
+                                                       " Bytes was never given back");
+            if (allocation != null) {
+                for (final StackTraceElement frame : allocation.getStackTrace()) {
+                    sb.append("\n\tat ").append(frame);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
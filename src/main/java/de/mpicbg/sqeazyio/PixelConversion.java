@@ -0,0 +1,233 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+import io.scif.util.FormatTools;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Converts decoded sqy pixels (unsigned, 8 or 16 bit, little endian) to the
+ * pixel type and byte order a {@link SqeazyFormat.Reader} was asked for
+ * through {@link SqeazyFormat#PARSER_PIXEL_TYPE} and
+ * {@link SqeazyFormat#PARSER_LITTLE_ENDIAN}.
+ * <p>
+ * The conversion is part of the copy out of the decoded volume, so callers
+ * needing floats or big endian data do not pay for a second pass. Pixels are
+ * widened chunk by chunk in plain array loops, which the JIT vectorizes, and
+ * moved with bulk buffer transfers; byte swapping is done by the bulk
+ * transfer between buffer views of different order. Only conversions that
+ * preserve every value are supported, i.e. no narrowing.
+ * </p>
+ */
+final class PixelConversion {
+
+    /** pixels converted per chunk, small enough to stay in the L1/L2 cache */
+    private static final int CHUNK = 4096;
+
+    private final int sizeof;
+    private final int pixelType;
+    private final ByteOrder order;
+
+    private PixelConversion(final int sizeof, final int pixelType, final ByteOrder order) {
+        this.sizeof = sizeof;
+        this.pixelType = pixelType;
+        this.order = order;
+    }
+
+    /**
+     * The conversion of pixels of {@code sizeof} bytes to {@code pixelType}
+     * (a {@link FormatTools} constant, -1 to keep the stored type) in the
+     * given byte order, {@code null} if the stored pixels are returned as
+     * they are.
+     */
+    static PixelConversion of(final int sizeof, final int pixelType,
+                              final boolean littleEndian) throws FormatException
+    {
+        final int stored = storedType(sizeof);
+        final int target = pixelType < 0 ? stored : pixelType;
+        switch (target) {
+            case FormatTools.UINT8:
+            case FormatTools.UINT16:
+            case FormatTools.INT32:
+            case FormatTools.UINT32:
+            case FormatTools.FLOAT:
+            case FormatTools.DOUBLE:
+                break;
+            default:
+                throw new FormatException("unsupported pixel type " +
+                                          FormatTools.getPixelTypeString(target));
+        }
+        if (FormatTools.getBytesPerPixel(target) < sizeof) {
+            throw new FormatException("cannot narrow " + FormatTools.getPixelTypeString(stored) +
+                                      " pixels to " + FormatTools.getPixelTypeString(target));
+        }
+        if (target == stored && (littleEndian || sizeof == 1)) return null;
+        return new PixelConversion(sizeof, target, littleEndian ? ByteOrder.LITTLE_ENDIAN :
+            ByteOrder.BIG_ENDIAN);
+    }
+
+    /** the {@link FormatTools} pixel type of sqy pixels of {@code sizeof} bytes */
+    static int storedType(final int sizeof) throws FormatException {
+        if (sizeof == 1) return FormatTools.UINT8;
+        if (sizeof == 2) return FormatTools.UINT16;
+        throw new FormatException("unsupported pixel size " + sizeof);
+    }
+
+    int getPixelType() {
+        return pixelType;
+    }
+
+    boolean isLittleEndian() {
+        return order == ByteOrder.LITTLE_ENDIAN;
+    }
+
+    int getBytesPerPixel() {
+        return FormatTools.getBytesPerPixel(pixelType);
+    }
+
+    /** bytes {@code pixels} converted pixels take */
+    long outputBytes(final long pixels) {
+        return pixels * getBytesPerPixel();
+    }
+
+    /**
+     * Converts the stored pixels between position and limit of {@code src}
+     * (which is left unchanged) into {@code dest} from its position on. The
+     * position of {@code dest} is advanced past the converted pixels.
+     */
+    void convert(final ByteBuffer src, final ByteBuffer dest) {
+        final ByteBuffer out = dest.duplicate().order(order);
+        final Buffer values;
+        if (pixelType == FormatTools.UINT16) values = out.asShortBuffer();
+        else if (pixelType == FormatTools.FLOAT) values = out.asFloatBuffer();
+        else if (pixelType == FormatTools.DOUBLE) values = out.asDoubleBuffer();
+        else values = out.asIntBuffer();
+
+        final int pixels = convertValues(src, values);
+        dest.position(dest.position() + pixels * getBytesPerPixel());
+    }
+
+    /**
+     * Converts the stored pixels between position and limit of {@code src}
+     * (which is left unchanged) into {@code dest}: a {@link ByteBuffer} as
+     * above, or a typed buffer of the converted pixel type (a
+     * {@link ShortBuffer}, {@link IntBuffer}, {@link FloatBuffer} or
+     * {@link DoubleBuffer}), e.g. wrapping the array of an image, that takes
+     * the values and no byte order. The position of {@code dest} is advanced
+     * past the converted pixels.
+     */
+    void convert(final ByteBuffer src, final Buffer dest) {
+        if (dest instanceof ByteBuffer) convert(src, (ByteBuffer) dest);
+        else convertValues(src, dest);
+    }
+
+    /** the conversion into typed buffers, returns the number of pixels converted */
+    private int convertValues(final ByteBuffer src, final Buffer dest) {
+        final ByteBuffer in = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int pixels = in.remaining() / sizeof;
+
+        if (sizeof == 2 && dest instanceof ShortBuffer) {
+            // byte swap only
+            ((ShortBuffer) dest).put(in.asShortBuffer());
+        }
+        else if (dest instanceof FloatBuffer) {
+            toFloat(in, pixels, (FloatBuffer) dest);
+        }
+        else if (dest instanceof DoubleBuffer) {
+            toDouble(in, pixels, (DoubleBuffer) dest);
+        }
+        else if (dest instanceof IntBuffer) {
+            toInt(in, pixels, (IntBuffer) dest);
+        }
+        else if (dest instanceof ShortBuffer) {
+            toShort(in, pixels, (ShortBuffer) dest);
+        }
+        else {
+            throw new IllegalArgumentException("cannot convert into a " + dest.getClass().getSimpleName());
+        }
+        return pixels;
+    }
+
+    /** the converted pixels of {@code src}, a convenience for small planes */
+    byte[] convert(final byte[] src) {
+        final ByteBuffer dest = ByteBuffer.allocate((int) outputBytes(src.length / sizeof));
+        convert(ByteBuffer.wrap(src), dest);
+        return dest.array();
+    }
+
+    // the scratch arrays are allocated per call, as instances are shared by
+    // all threads reading from the same Reader
+
+    private void toFloat(final ByteBuffer in, final int pixels, final FloatBuffer out) {
+        final int[] values = new int[Math.min(CHUNK, pixels)];
+        final float[] chunk = new float[values.length];
+        final Object raw = scratch(values.length);
+        for (int done = 0; done < pixels; done += values.length) {
+            final int n = Math.min(values.length, pixels - done);
+            read(in, raw, values, n);
+            for (int i = 0; i < n; i++) chunk[i] = values[i];
+            out.put(chunk, 0, n);
+        }
+    }
+
+    private void toDouble(final ByteBuffer in, final int pixels, final DoubleBuffer out) {
+        final int[] values = new int[Math.min(CHUNK, pixels)];
+        final double[] chunk = new double[values.length];
+        final Object raw = scratch(values.length);
+        for (int done = 0; done < pixels; done += values.length) {
+            final int n = Math.min(values.length, pixels - done);
+            read(in, raw, values, n);
+            for (int i = 0; i < n; i++) chunk[i] = values[i];
+            out.put(chunk, 0, n);
+        }
+    }
+
+    /** widening to 32 bit integers */
+    private void toInt(final ByteBuffer in, final int pixels, final IntBuffer out) {
+        final int[] values = new int[Math.min(CHUNK, pixels)];
+        final Object raw = scratch(values.length);
+        for (int done = 0; done < pixels; done += values.length) {
+            final int n = Math.min(values.length, pixels - done);
+            read(in, raw, values, n);
+            out.put(values, 0, n);
+        }
+    }
+
+    /** widening 8 to 16 bit */
+    private void toShort(final ByteBuffer in, final int pixels, final ShortBuffer out) {
+        final int[] values = new int[Math.min(CHUNK, pixels)];
+        final short[] chunk = new short[values.length];
+        final Object raw = scratch(values.length);
+        for (int done = 0; done < pixels; done += values.length) {
+            final int n = Math.min(values.length, pixels - done);
+            read(in, raw, values, n);
+            for (int i = 0; i < n; i++) chunk[i] = (short) values[i];
+            out.put(chunk, 0, n);
+        }
+    }
+
+    private Object scratch(final int length) {
+        return sizeof == 1 ? new byte[length] : new short[length];
+    }
+
+    /** the next {@code n} stored pixels of {@code in} as unsigned values */
+    private void read(final ByteBuffer in, final Object raw, final int[] values, final int n) {
+        if (sizeof == 1) {
+            final byte[] chunk = (byte[]) raw;
+            in.get(chunk, 0, n);
+            for (int i = 0; i < n; i++) values[i] = chunk[i] & 0xff;
+        }
+        else {
+            final short[] chunk = (short[]) raw;
+            in.asShortBuffer().get(chunk, 0, n);
+            in.position(in.position() + 2 * n);
+            for (int i = 0; i < n; i++) values[i] = chunk[i] & 0xffff;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The footer index of a chunked sqy file.
+ * <p>
+ * A chunked sqy file stores a volume as independently encoded Z slabs: every
+ * slab is a complete sqy stream (header and payload) of {@code zCount} planes.
+ * The slabs are followed by this index and a fixed size trailer, all little
+ * endian:
+ * </p>
+ * <pre>
+ * slab 0 | slab 1 | ... | index | trailer
+ *
+ * index:   "SQYIDX01", int slabs, int sizeof, long sizeZ, long sizeY, long sizeX,
+ *          slabs x (long offset, long length, long zStart, long zCount)
+ * trailer: long offset of the index, "SQYSLABS"
+ * </pre>
+ * <p>
+ * As the file starts with the first slab, it is still recognized by its sqy
+ * header; readers unaware of the index see the first slab only.
+ * </p>
+ */
+public final class SlabIndex {
+
+    static final byte[] INDEX_MAGIC = "SQYIDX01".getBytes(StandardCharsets.US_ASCII);
+
+    static final byte[] TRAILER_MAGIC = "SQYSLABS".getBytes(StandardCharsets.US_ASCII);
+
+    static final int TRAILER_SIZE = 16;
+
+    private static final int INDEX_HEADER_SIZE = 8 + 4 + 4 + 3*8;
+
+    private static final int SLAB_ENTRY_SIZE = 4*8;
+
+    /** One independently encoded slab of Z planes. */
+    public static final class Slab {
+
+        private final long offset;
+        private final long length;
+        private final long zStart;
+        private final long zCount;
+
+        public Slab(final long offset, final long length, final long zStart,
+                    final long zCount)
+        {
+            this.offset = offset;
+            this.length = length;
+            this.zStart = zStart;
+            this.zCount = zCount;
+        }
+
+        /** file offset of the slab's sqy header */
+        public long getOffset() {
+            return offset;
+        }
+
+        /** encoded bytes of the slab, header included */
+        public long getLength() {
+            return length;
+        }
+
+        public long getZStart() {
+            return zStart;
+        }
+
+        public long getZCount() {
+            return zCount;
+        }
+
+        /** true if the slab holds planes of {@code [z, z + count)} */
+        public boolean overlaps(final long z, final long count) {
+            return zStart < z + count && z < zStart + zCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Slab[z=" + zStart + "+" + zCount + " @" + offset + "+" + length + "]";
+        }
+    }
+
+    private final int sizeof;
+    private final long sizeZ;
+    private final long sizeY;
+    private final long sizeX;
+    private final List<Slab> slabs;
+
+    public SlabIndex(final int sizeof, final long sizeZ, final long sizeY,
+                     final long sizeX, final List<Slab> slabs)
+    {
+        this.sizeof = sizeof;
+        this.sizeZ = sizeZ;
+        this.sizeY = sizeY;
+        this.sizeX = sizeX;
+        this.slabs = Collections.unmodifiableList(new ArrayList<>(slabs));
+    }
+
+    public int getSizeof() {
+        return sizeof;
+    }
+
+    public long getSizeZ() {
+        return sizeZ;
+    }
+
+    public long getSizeY() {
+        return sizeY;
+    }
+
+    public long getSizeX() {
+        return sizeX;
+    }
+
+    public int size() {
+        return slabs.size();
+    }
+
+    public Slab get(final int slab) {
+        return slabs.get(slab);
+    }
+
+    public List<Slab> getSlabs() {
+        return slabs;
+    }
+
+    /** bytes of one decoded plane */
+    public long getPlaneBytes() {
+        return sizeX * sizeY * sizeof;
+    }
+
+    /** index of the slab holding plane {@code z} */
+    public int slabOf(final long z) {
+        int lo = 0, hi = slabs.size() - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final Slab slab = slabs.get(mid);
+            if (z < slab.zStart) hi = mid - 1;
+            else if (z >= slab.zStart + slab.zCount) lo = mid + 1;
+            else return mid;
+        }
+        throw new IndexOutOfBoundsException("plane " + z + " is not part of any slab");
+    }
+
+    @Override
+    public String toString() {
+        return "SlabIndex[" + sizeZ + "x" + sizeY + "x" + sizeX + " x " + sizeof +
+            " Bytes in " + slabs.size() + " slabs]";
+    }
+
+    // -- Reading and writing --
+
+    /**
+     * Reads the index of a chunked sqy file.
+     *
+     * @return the index or {@code null} if {@code stream} has no slab trailer
+     */
+    public static SlabIndex read(final RandomAccessInputStream stream)
+        throws IOException
+    {
+        final long length = stream.length();
+        if (length < TRAILER_SIZE + INDEX_HEADER_SIZE) return null;
+
+        final ByteBuffer trailer = readFully(stream, length - TRAILER_SIZE, TRAILER_SIZE);
+        final long indexOffset = trailer.getLong();
+        if (!magic(trailer, TRAILER_MAGIC)) return null;
+        if (indexOffset < 0 || indexOffset > length - TRAILER_SIZE - INDEX_HEADER_SIZE) {
+            throw new IOException("corrupt slab trailer in " + stream.getFileName() +
+                                  ": index offset " + indexOffset);
+        }
+
+        final ByteBuffer head = readFully(stream, indexOffset, INDEX_HEADER_SIZE);
+        if (!magic(head, INDEX_MAGIC)) {
+            throw new IOException("no slab index found at offset " + indexOffset +
+                                  " of " + stream.getFileName());
+        }
+        final int count = head.getInt();
+        final int sizeof = head.getInt();
+        final long sizeZ = head.getLong(), sizeY = head.getLong(), sizeX = head.getLong();
+
+        final long entriesEnd = indexOffset + INDEX_HEADER_SIZE + (long) count * SLAB_ENTRY_SIZE;
+        if (count < 1 || entriesEnd > length - TRAILER_SIZE) {
+            throw new IOException("corrupt slab index in " + stream.getFileName() +
+                                  ": " + count + " slabs");
+        }
+
+        final ByteBuffer entries = readFully(stream, indexOffset + INDEX_HEADER_SIZE,
+                                             count * SLAB_ENTRY_SIZE);
+        final List<Slab> slabs = new ArrayList<>(count);
+        long z = 0;
+        for (int i = 0; i < count; i++) {
+            final Slab slab = new Slab(entries.getLong(), entries.getLong(),
+                                       entries.getLong(), entries.getLong());
+            if (slab.zStart != z || slab.zCount < 1 || slab.offset < 0 ||
+                slab.offset + slab.length > indexOffset)
+            {
+                throw new IOException("corrupt slab index in " + stream.getFileName() +
+                                      ": " + slab);
+            }
+            z += slab.zCount;
+            slabs.add(slab);
+        }
+        if (z != sizeZ) {
+            throw new IOException("slabs of " + stream.getFileName() + " cover " + z +
+                                  " of " + sizeZ + " planes");
+        }
+
+        return new SlabIndex(sizeof, sizeZ, sizeY, sizeX, slabs);
+    }
+
+    /**
+     * Serializes the index followed by the trailer, to be written right after
+     * the last slab, i.e. at {@code indexOffset}.
+     */
+    public ByteBuffer toBytes(final long indexOffset) {
+        final ByteBuffer bytes = ByteBuffer.allocate(INDEX_HEADER_SIZE +
+                                                     slabs.size() * SLAB_ENTRY_SIZE +
+                                                     TRAILER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+        bytes.put(INDEX_MAGIC).putInt(slabs.size()).putInt(sizeof)
+            .putLong(sizeZ).putLong(sizeY).putLong(sizeX);
+        for (final Slab slab : slabs) {
+            bytes.putLong(slab.offset).putLong(slab.length)
+                .putLong(slab.zStart).putLong(slab.zCount);
+        }
+        bytes.putLong(indexOffset).put(TRAILER_MAGIC);
+
+        bytes.flip();
+        return bytes;
+    }
+
+    private static ByteBuffer readFully(final RandomAccessInputStream stream,
+                                        final long offset, final int length) throws IOException
+    {
+        final byte[] bytes = new byte[length];
+        stream.seek(offset);
+        stream.readFully(bytes);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static boolean magic(final ByteBuffer buffer, final byte[] magic) {
+        final byte[] found = new byte[magic.length];
+        buffer.get(found);
+        return Arrays.equals(found, magic);
+    }
+}
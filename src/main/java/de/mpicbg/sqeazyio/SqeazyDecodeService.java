@@ -0,0 +1,69 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.IOException;
+
+import org.bridj.Pointer;
+import org.scijava.service.SciJavaService;
+
+/**
+ * Owns all native sqeazy decode calls of a context.
+ * <p>
+ * Decodes are admitted one after the other in order of their
+ * {@link DecodePriority}. A decode only starts when native decoder threads
+ * are available (the total per JVM is capped by {@link #getMaxThreads()}) and
+ * its decoded volume fits into the {@link #getMemoryBudget()} next to the
+ * decodes already running. Volumes larger than the whole budget are refused.
+ * </p>
+ */
+public interface SqeazyDecodeService extends SciJavaService {
+
+    /** Interactive requests overtake queued background work. */
+    enum DecodePriority {
+        INTERACTIVE, BACKGROUND
+    }
+
+    /**
+     * Decodes the sqy file behind {@code stream} into native memory taken
+     * from the {@link NativeBufferPool}, blocking until the decode is
+     * admitted and finished. The result has to be given back through
+     * {@link NativeBufferPool#release}.
+     *
+     * @param sizeof bytes per pixel of the volume
+     * @param decodedBytes size of the decoded volume in bytes
+     * @param nThreads decoder threads wanted, 0 lets the service decide
+     */
+    Pointer<Byte> decode(RandomAccessInputStream stream, int sizeof,
+                         long decodedBytes, int nThreads, DecodePriority priority)
+        throws IOException, FormatException;
+
+    /**
+     * Decodes the sqy stream stored in {@code length} bytes of {@code stream}
+     * at {@code offset} (e.g. one slab of a chunked file) into {@code dest},
+     * which has to hold the complete decoded data. Blocks like
+     * {@link #decode(RandomAccessInputStream, int, long, int, DecodePriority)}.
+     */
+    void decode(RandomAccessInputStream stream, long offset, long length,
+                int sizeof, Pointer<Byte> dest, int nThreads,
+                DecodePriority priority) throws IOException, FormatException;
+
+    int getMaxThreads();
+
+    void setMaxThreads(int maxThreads);
+
+    long getMemoryBudget();
+
+    void setMemoryBudget(long bytes);
+
+    /** native decoder threads currently in use */
+    int getThreadsInUse();
+
+    /** decoded bytes of all running decodes */
+    long getBytesInFlight();
+
+    int getRunningDecodes();
+
+    int getQueuedDecodes();
+}
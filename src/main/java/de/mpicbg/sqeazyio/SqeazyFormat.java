@@ -21,14 +21,38 @@ import io.scif.io.RandomAccessInputStream;
 import io.scif.io.RandomAccessOutputStream;
 import io.scif.services.FormatService;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.lang.Math;
 
 import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 
 import org.bridj.Pointer;
@@ -38,6 +62,9 @@ import static org.bridj.Pointer.*;
 
 import sqeazy.bindings.SqeazyLibrary;
 
+import de.mpicbg.sqeazyio.SqeazyDecodeService.DecodePriority;
+
+import org.scijava.Priority;
 import org.scijava.plugin.Plugin;
 import org.scijava.util.Bytes;
 
@@ -95,6 +122,217 @@ public class SqeazyFormat extends AbstractFormat {
         return new String[] { "sqy" };
     }
 
+    // *** CONFIGURATION ***
+    // SCIFIOConfig is a plain map underneath, so sqeazy specific switches are
+    // stored under their own keys and accessed through the helpers below.
+
+    /**
+     * {@link SCIFIOConfig} key deciding if the {@link Parser} only reads the
+     * sqy header (lazy, the default) or decodes the entire volume right away
+     * (eager).
+     */
+    public static final String PARSER_LAZY_DECODE = "sqeazy.parser.lazyDecode";
+
+    public static boolean parserIsLazy(final SCIFIOConfig config) {
+        if (config == null) return true;
+        final Object value = config.get(PARSER_LAZY_DECODE);
+        return value == null || Boolean.TRUE.equals(value);
+    }
+
+    /**
+     * {@link SCIFIOConfig} key: if set, the {@link Parser} opens the given
+     * file as part of the {@link SqyDataset} it belongs to, i.e. all
+     * channels and time points stored next to it in separate files.
+     */
+    public static final String PARSER_DATASET = "sqeazy.parser.dataset";
+
+    public static boolean parserIsDataset(final SCIFIOConfig config) {
+        if (config == null) return false;
+        final Object value = config.get(PARSER_DATASET);
+        return value instanceof Boolean && (Boolean) value;
+    }
+
+    public static SCIFIOConfig parserSetDataset(final SCIFIOConfig config,
+                                                final boolean dataset)
+    {
+        config.put(PARSER_DATASET, dataset);
+        return config;
+    }
+
+    /**
+     * {@link SCIFIOConfig} key for the number of time points of a
+     * {@link SqyDataset} decoded in the background ahead of the one being
+     * read, in the direction the time points were traversed last (1 if not
+     * set, 0 disables prefetching).
+     */
+    public static final String PARSER_PREFETCH = "sqeazy.parser.prefetch";
+
+    public static int parserGetPrefetch(final SCIFIOConfig config) {
+        if (config == null) return 1;
+        final Object value = config.get(PARSER_PREFETCH);
+        return value instanceof Number ? Math.max(0, ((Number) value).intValue()) : 1;
+    }
+
+    public static SCIFIOConfig parserSetPrefetch(final SCIFIOConfig config,
+                                                 final int timepoints)
+    {
+        config.put(PARSER_PREFETCH, timepoints);
+        return config;
+    }
+
+    public static SCIFIOConfig parserSetLazy(final SCIFIOConfig config,
+                                             final boolean lazy)
+    {
+        config.put(PARSER_LAZY_DECODE, lazy);
+        return config;
+    }
+
+    /**
+     * {@link SCIFIOConfig} key deciding if the {@link Parser} exposes the
+     * downsampled levels stored next to a file (see {@link SqyPyramid}) as
+     * the images 1, 2, ... (the default) or ignores them.
+     */
+    public static final String PARSER_PYRAMID = "sqeazy.parser.pyramid";
+
+    public static boolean parserIsPyramid(final SCIFIOConfig config) {
+        if (config == null) return true;
+        final Object value = config.get(PARSER_PYRAMID);
+        return value == null || Boolean.TRUE.equals(value);
+    }
+
+    public static SCIFIOConfig parserSetPyramid(final SCIFIOConfig config,
+                                                final boolean pyramid)
+    {
+        config.put(PARSER_PYRAMID, pyramid);
+        return config;
+    }
+
+    /**
+     * {@link SCIFIOConfig} key for the pixel type (a {@link FormatTools}
+     * constant) the {@link Reader} returns planes in. Pixels are widened
+     * while they are copied out of the decoded volume (see
+     * {@link PixelConversion}), by default they are returned as stored.
+     */
+    public static final String PARSER_PIXEL_TYPE = "sqeazy.parser.pixelType";
+
+    /**
+     * {@link SCIFIOConfig} key deciding the byte order of the planes the
+     * {@link Reader} returns, little endian (as stored) by default.
+     */
+    public static final String PARSER_LITTLE_ENDIAN = "sqeazy.parser.littleEndian";
+
+    /** @return the configured pixel type or -1 to keep the stored one */
+    public static int parserGetPixelType(final SCIFIOConfig config) {
+        if (config == null) return -1;
+        final Object value = config.get(PARSER_PIXEL_TYPE);
+        return value instanceof Number ? ((Number) value).intValue() : -1;
+    }
+
+    public static boolean parserIsLittleEndian(final SCIFIOConfig config) {
+        if (config == null) return true;
+        final Object value = config.get(PARSER_LITTLE_ENDIAN);
+        return value == null || Boolean.TRUE.equals(value);
+    }
+
+    public static SCIFIOConfig parserSetPixelType(final SCIFIOConfig config,
+                                                  final int pixelType,
+                                                  final boolean littleEndian)
+    {
+        config.put(PARSER_PIXEL_TYPE, pixelType);
+        config.put(PARSER_LITTLE_ENDIAN, littleEndian);
+        return config;
+    }
+
+    /** pipeline used by the {@link Writer} if nothing else was configured */
+    public static final String DEFAULT_PIPELINE = "bitswap1->lz4";
+
+    /** {@link SCIFIOConfig} key: sqeazy pipeline the {@link Writer} encodes with */
+    public static final String WRITER_PIPELINE = "sqeazy.writer.pipeline";
+
+    /** {@link SCIFIOConfig} key: number of encoder threads of the {@link Writer} */
+    public static final String WRITER_THREADS = "sqeazy.writer.nthreads";
+
+    /**
+     * {@link SCIFIOConfig} key for the number of Z planes per slab: a value
+     * above 0 makes the {@link Writer} produce a chunked sqy file (see
+     * {@link SlabIndex}), whose planes can be read without decoding the
+     * entire volume.
+     */
+    public static final String WRITER_SLAB_DEPTH = "sqeazy.writer.slabDepth";
+
+    /**
+     * {@link SCIFIOConfig} key for the number of downsampled levels the
+     * {@link Writer} stores next to the file it wrote (see
+     * {@link SqyPyramid}): 0 (the default) writes none, a negative value as
+     * many as needed to get planes of at most 256x256 pixels.
+     */
+    public static final String WRITER_PYRAMID_LEVELS = "sqeazy.writer.pyramidLevels";
+
+    /** {@link SCIFIOConfig} key: if set, pyramid levels are halved in Z as well */
+    public static final String WRITER_PYRAMID_Z = "sqeazy.writer.pyramidZ";
+
+    public static String writerGetPipeline(final SCIFIOConfig config) {
+        if (config == null) return null;
+        final Object value = config.get(WRITER_PIPELINE);
+        return value == null ? null : value.toString();
+    }
+
+    public static SCIFIOConfig writerSetPipeline(final SCIFIOConfig config,
+                                                 final String pipeline)
+    {
+        config.put(WRITER_PIPELINE, pipeline);
+        return config;
+    }
+
+    /** @return the configured thread count or 0 if none was set */
+    public static int writerGetThreads(final SCIFIOConfig config) {
+        if (config == null) return 0;
+        final Object value = config.get(WRITER_THREADS);
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    public static SCIFIOConfig writerSetThreads(final SCIFIOConfig config,
+                                                final int nThreads)
+    {
+        config.put(WRITER_THREADS, nThreads);
+        return config;
+    }
+
+    /** @return the configured planes per slab or 0 (plain files) if none were set */
+    public static int writerGetSlabDepth(final SCIFIOConfig config) {
+        if (config == null) return 0;
+        final Object value = config.get(WRITER_SLAB_DEPTH);
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    public static SCIFIOConfig writerSetSlabDepth(final SCIFIOConfig config,
+                                                  final int planes)
+    {
+        config.put(WRITER_SLAB_DEPTH, planes);
+        return config;
+    }
+
+    public static int writerGetPyramidLevels(final SCIFIOConfig config) {
+        if (config == null) return 0;
+        final Object value = config.get(WRITER_PYRAMID_LEVELS);
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    public static boolean writerIsPyramidZ(final SCIFIOConfig config) {
+        if (config == null) return false;
+        final Object value = config.get(WRITER_PYRAMID_Z);
+        return value instanceof Boolean && (Boolean) value;
+    }
+
+    public static SCIFIOConfig writerSetPyramid(final SCIFIOConfig config,
+                                                final int levels,
+                                                final boolean downsampleZ)
+    {
+        config.put(WRITER_PYRAMID_LEVELS, levels);
+        config.put(WRITER_PYRAMID_Z, downsampleZ);
+        return config;
+    }
+
     // *** REQUIRED COMPONENTS ***
 
     // The Metadata class contains all format-specific metadata.
@@ -143,9 +381,396 @@ public class SqeazyFormat extends AbstractFormat {
         /**
 		 * Because we have no way of indexing into the sqy file efficiently in
 		 * general, we cheat and store the entire file's data in a giant array.
+		 * It is {@code null} until {@link #decode} was called, i.e. after a lazy
+		 * parse only the header fields below are available. Chunked files (see
+		 * {@link SlabIndex}) are the exception: their planes are served from
+		 * the decoded slabs below without ever decoding the whole volume.
+		 * Written once under decodeLock, read without locking afterwards.
 		 */
 	    //private ByteBuffer bytes;
-        private Pointer<Byte> ptr;
+        private volatile Pointer<Byte> ptr;
+
+        private final Object decodeLock = new Object();
+
+        /** the parsed sqy header, null for metadata not read from a file */
+        private SqyHeader header;
+
+        public SqyHeader getHeader() {
+            return header;
+        }
+
+        public void setHeader(final SqyHeader header) {
+            this.header = header;
+        }
+
+        /** set if ptr is shared through the DecodedVolumeCache */
+        private volatile DecodedVolumeCache.Lease lease;
+
+        /** the slabs of a chunked sqy file, null for plain ones */
+        private SlabIndex slabs;
+
+        /** decoded slabs kept open per Metadata, at most MAX_OPEN_SLABS */
+        private static final int MAX_OPEN_SLABS =
+            Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+        // access ordered, the least recently used slab comes first. Readers
+        // copy from leases of their own, so slabs evicted meanwhile stay
+        // valid until they are done.
+        private final LinkedHashMap<Integer, DecodedVolumeCache.Lease> openSlabs =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+        public SlabIndex getSlabIndex() {
+            return slabs;
+        }
+
+        public void setSlabIndex(final SlabIndex slabs) {
+            this.slabs = slabs;
+        }
+
+        /** true for chunked sqy files, i.e. files with a {@link SlabIndex} */
+        public boolean isChunked() {
+            return slabs != null;
+        }
+
+        /** the files of a multi-file dataset, null for single files */
+        private SqyDataset dataset;
+
+        /**
+         * Metadata of the dataset files read so far (only their headers
+         * until planes are requested), key is {@code c + sizeC*t}. Access
+         * ordered, as only the files of the most recent time points are kept.
+         * Guards itself and the prefetcher.
+         */
+        private final LinkedHashMap<Integer, Metadata> members =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+        /** reads in progress on this dataset member, see {@link #volumeOf} */
+        private final AtomicInteger users = new AtomicInteger();
+
+        /** set once this member was evicted, the last user closes it */
+        private volatile boolean retired = false;
+
+        private final AtomicBoolean memberClosed = new AtomicBoolean();
+
+        /** time points of a dataset kept open at the same time */
+        private static final int OPEN_TIMEPOINTS = 2;
+
+        /** time points of a dataset decoded ahead of the one read */
+        private int prefetch = 0;
+
+        /** created with the first plane read from a dataset */
+        private TimepointPrefetcher prefetcher;
+
+        public int getPrefetch() {
+            return prefetch;
+        }
+
+        public void setPrefetch(final int timepoints) {
+            this.prefetch = timepoints;
+        }
+
+        public SqyDataset getDataset() {
+            return dataset;
+        }
+
+        public void setDataset(final SqyDataset dataset) {
+            this.dataset = dataset;
+        }
+
+        public boolean isDataset() {
+            return dataset != null;
+        }
+
+        public int getSizeC() {
+            return dataset == null ? 1 : dataset.getSizeC();
+        }
+
+        public int getSizeT() {
+            return dataset == null ? 1 : dataset.getSizeT();
+        }
+
+        /** the downsampled levels of a single file, null if there are none */
+        private SqyPyramid pyramid;
+
+        /** Metadata of the pyramid levels read so far, key is the level */
+        private final Map<Integer, Metadata> levels = new HashMap<>();
+
+        public SqyPyramid getPyramid() {
+            return pyramid;
+        }
+
+        public void setPyramid(final SqyPyramid pyramid) {
+            this.pyramid = pyramid;
+        }
+
+        /** how planes are converted while copied, null to return them as stored */
+        private PixelConversion conversion;
+
+        PixelConversion getConversion() {
+            return conversion;
+        }
+
+        void setConversion(final PixelConversion conversion) {
+            this.conversion = conversion;
+        }
+
+        /**
+         * the pixel type of the image this Metadata was translated from, -1
+         * for metadata read from sqy files
+         */
+        private int translatedPixelType = -1;
+
+        void setTranslatedPixelType(final int pixelType) {
+            this.translatedPixelType = pixelType;
+        }
+
+        /**
+         * The Metadata describing image {@code imageIndex}: this one for the
+         * full resolution image 0, that of the level's file (opened on first
+         * use, with its header parsed) for the pyramid levels.
+         */
+        Metadata levelOf(final int imageIndex) throws IOException, FormatException {
+            if(imageIndex == 0) return this;
+            if(pyramid == null || imageIndex < 0 || imageIndex > pyramid.size()){
+                throw new FormatException("image index "+imageIndex+" out of range [0,"+
+                                          (pyramid == null ? 1 : pyramid.size() + 1)+")");
+            }
+            if(getContext() == null){
+                throw new FormatException("reading a pyramid level requires a context");
+            }
+
+            synchronized(levels){
+                Metadata level = levels.get(imageIndex);
+                if(level != null) return level;
+
+                final File file = pyramid.getFile(imageIndex);
+                final RandomAccessInputStream stream = new RandomAccessInputStream(getContext(), file.getAbsolutePath());
+                level = new Metadata();
+                level.setContext(getContext());
+                level.setSource(stream);
+                level.setNthreads(nThreads);
+                final SqyHeader expected = pyramid.getHeader(imageIndex);
+                if(!level.readHeaders(stream) || level.getPixelSize() != pixel_size ||
+                   level.getSizeX() != expected.getSizeX() || level.getSizeY() != expected.getSizeY())
+                {
+                    stream.close();
+                    throw new FormatException(file+" changed since its pyramid was parsed");
+                }
+                levels.put(imageIndex, level);
+                return level;
+            }
+        }
+
+        /**
+         * The Metadata of the file holding plane {@code planeIndex}: this one
+         * for single files, that of the channel's and time point's file for
+         * datasets (planes are ordered Z, C, T). Every call has to be paired
+         * with {@link #done}, dataset members are only closed once no read
+         * uses them anymore.
+         */
+        Metadata volumeOf(final long planeIndex) throws IOException, FormatException {
+            if(dataset == null) return this;
+            final long ct = planeIndex / Math.max(sizeZ, 1);
+            final int t = (int) (ct / dataset.getSizeC());
+
+            final Metadata member = member((int) (ct % dataset.getSizeC()), t, true);
+            final TimepointPrefetcher ahead;
+            synchronized(members){
+                if(prefetcher == null && prefetch > 0 && dataset.getSizeT() > 1 && getContext() != null){
+                    prefetcher = new TimepointPrefetcher(dataset.getSizeC(), dataset.getSizeT(),
+                                                         prefetch, this::prefetchMember);
+                }
+                ahead = prefetcher;
+            }
+            if(ahead != null){
+                ahead.accessed(t, zOf(planeIndex));
+            }
+            return member;
+        }
+
+        /** Ends a read of {@code volume} obtained from {@link #volumeOf}. */
+        void done(final Metadata volume) throws IOException {
+            if(volume == this) return;
+            if(volume.users.decrementAndGet() == 0 && volume.retired){
+                closeRetired(volume);
+            }
+        }
+
+        private static void closeRetired(final Metadata member) throws IOException {
+            if(member.memberClosed.compareAndSet(false, true)){
+                closeMember(member);
+            }
+        }
+
+        /** the Z index of plane {@code planeIndex} inside its file */
+        long zOf(final long planeIndex) {
+            return dataset == null ? planeIndex : planeIndex % Math.max(sizeZ, 1);
+        }
+
+        /**
+         * The Metadata of channel {@code c} at time point {@code t}, with its
+         * header parsed and its stream open. Decoding happens on demand.
+         */
+        public Metadata member(final int c, final int t) throws IOException, FormatException {
+            return member(c, t, false);
+        }
+
+        /**
+         * {@link #member(int, int)}, counting a user of the member under the
+         * same lock if {@code use} is set, so it cannot be retired before the
+         * caller got hold of it.
+         */
+        private Metadata member(final int c, final int t, final boolean use)
+            throws IOException, FormatException
+        {
+            final int key = c + dataset.getSizeC()*t;
+            final TimepointPrefetcher ahead;
+            final TimepointPrefetcher.Prefetch prefetched;
+            synchronized(members){
+                final Metadata open = members.get(key);
+                if(open != null){
+                    if(use) open.users.incrementAndGet();
+                    return open;
+                }
+                ahead = prefetcher;
+                prefetched = ahead == null ? null : ahead.claim(c, t);
+            }
+
+            // waiting for a prefetch still running (or reading the headers)
+            // must not hold up the reads of time points open already
+            Metadata member = prefetched == null ? null : ahead.await(prefetched);
+            if(member == null){
+                member = openMember(c, t);
+            }
+
+            synchronized(members){
+                if(dataset == null){
+                    closeMember(member);
+                    throw new IOException("the dataset was closed while opening "+c+"/"+t);
+                }
+                final Metadata raced = members.get(key);
+                if(raced != null){
+                    // another read opened the same file meanwhile
+                    closeMember(member);
+                    if(use) raced.users.incrementAndGet();
+                    return raced;
+                }
+                members.put(key, member);
+                if(use) member.users.incrementAndGet();
+
+                // decoded volumes of time points no longer viewed are given back
+                // (they may survive in the DecodedVolumeCache) once the reads
+                // still using them are done
+                final Iterator<Map.Entry<Integer, Metadata>> it = members.entrySet().iterator();
+                while(members.size() > OPEN_TIMEPOINTS*dataset.getSizeC() && it.hasNext()){
+                    final Metadata eldest = it.next().getValue();
+                    it.remove();
+                    eldest.retired = true;
+                    if(eldest.users.get() == 0){
+                        closeRetired(eldest);
+                    }
+                }
+                return member;
+            }
+        }
+
+        /** Opens the file of channel {@code c} at time point {@code t}, reading its headers only. */
+        private Metadata openMember(final int c, final int t) throws IOException, FormatException {
+            if(getContext() == null){
+                throw new FormatException("reading a dataset requires a context");
+            }
+            final File file = dataset.getFile(c, t);
+            final RandomAccessInputStream stream = new RandomAccessInputStream(getContext(), file.getAbsolutePath());
+            final Metadata member = new Metadata();
+            member.setContext(getContext());
+            member.setSource(stream);
+            member.setNthreads(nThreads);
+            if(!member.readHeaders(stream) || member.getPixelSize() != pixel_size ||
+               member.getSizeX() != sizeX || member.getSizeY() != sizeY || member.getSizeZ() != sizeZ)
+            {
+                stream.close();
+                throw new FormatException(file+" does not match the "+sizeX+"x"+sizeY+"x"+sizeZ+
+                                          " volumes of "+pixel_size+" Byte pixels of its dataset");
+            }
+            return member;
+        }
+
+        /**
+         * Opens and decodes a dataset file in the background: the whole
+         * volume of plain files, the slab holding plane {@code z} of chunked
+         * ones. Runs on the prefetch threads, it only reads fields that are
+         * fixed once the dataset was parsed.
+         */
+        private Metadata prefetchMember(final int c, final int t, final long z)
+            throws IOException, FormatException
+        {
+            final Metadata member = openMember(c, t);
+            try {
+                if(member.isChunked()){
+                    member.openSlabs(member.getSource(), z, 1, DecodePriority.BACKGROUND);
+                }
+                else {
+                    member.decode(member.getSource(), DecodePriority.BACKGROUND);
+                }
+            }
+            catch (final IOException | FormatException | RuntimeException e) {
+                closeMember(member);
+                throw e;
+            }
+            return member;
+        }
+
+        static void closeMember(final Metadata member) throws IOException {
+            final RandomAccessInputStream stream = member.getSource();
+            member.close(false);
+            if(stream != null) stream.close();
+        }
+
+        /**
+         * Reads the sqy header (and the slab index of chunked files) from
+         * {@code stream} into the format specific fields.
+         *
+         * @return false if {@code stream} holds no sqy header
+         */
+        boolean readHeaders(final RandomAccessInputStream stream)
+            throws IOException, FormatException
+        {
+            final SqyHeader header = SqyHeader.read(stream);
+            if(header == null) return false;
+
+            // every extent has to fit an int, their product (the volume)
+            // may well exceed 2 GB, it is only ever computed as long
+            for(final long extent : header.getShape()){
+                if(extent < 1 || extent > Integer.MAX_VALUE){
+                    throw new FormatException("unsupported extent "+extent+" in "+header);
+                }
+            }
+
+            setHeader(header);
+            setPipeline(header.getPipeline());
+            setType(header.getType());
+            setPixelSize(header.getSizeof());
+            setSizeX((int) header.getSizeX());
+            setSizeY((int) header.getSizeY());
+            if(header.getNDims() == 3){
+                setSizeZ((int) header.getSizeZ());
+            }
+
+            // CHUNKED FILES
+            // the header above belongs to the first slab, the footer index
+            // describes the entire volume
+            final SlabIndex index = SlabIndex.read(stream);
+            if(index != null){
+                if(index.getSizeof() != header.getSizeof() ||
+                   index.getSizeX() != header.getSizeX() || index.getSizeY() != header.getSizeY()){
+                    throw new FormatException("slab index of "+stream.getFileName()+
+                                              " does not match its first slab: "+index+" vs "+header);
+                }
+                setSlabIndex(index);
+                setSizeZ((int) index.getSizeZ());
+            }
+            return true;
+        }
 
 		// /** Current row number. */
 		// private int row;
@@ -176,14 +801,14 @@ public class SqeazyFormat extends AbstractFormat {
 		@Field(label = "depth")
 		private int sizeZ = 0;
 
-        /** threads to use. */
+        /** decoder threads to use, 0 lets the SqeazyDecodeService decide. */
 		@Field(label = "nthreads")
-		private int nThreads = 1;
+		private int nThreads = 0;
 
 
 		// -- TextMetadata getters and setters --
 		public ByteBuffer getBuffer() {
-			return ptr.getByteBuffer();
+			return ptr == null ? null : ptr.getByteBuffer();
 		}
 
         public void setBuffer(final ByteBuffer buf) {
@@ -196,9 +821,337 @@ public class SqeazyFormat extends AbstractFormat {
 		}
 
 		public void setData(final Pointer<Byte> data) {
+			if (lease != null) {
+				lease.close();
+				lease = null;
+			}
 			this.ptr = data;
 		}
 
+        public boolean isDecoded() {
+            return ptr != null;
+        }
+
+        /**
+         * Decodes the sqy payload behind {@code stream} into native memory
+         * unless this already happened. The header fields (shape and pixel
+         * size) have to be parsed beforehand. Volumes of local files are shared
+         * with other readers through the {@link DecodedVolumeCache}.
+         */
+        public void decode(final RandomAccessInputStream stream)
+            throws IOException, FormatException
+        {
+            decode(stream, DecodePriority.INTERACTIVE);
+        }
+
+        public void decode(final RandomAccessInputStream stream,
+                           final DecodePriority priority)
+            throws IOException, FormatException
+        {
+            if (ptr != null) return;
+
+            if (pixel_size != 1 && pixel_size != 2) {
+                throw new FormatException("unable to decompress of unknown pixel size " +
+                                          pixel_size + " (only sizeof={1 or 2} supported)");
+            }
+
+            synchronized (decodeLock) {
+                if (ptr != null) return;
+
+                // local files go through the cache even if it keeps nothing,
+                // so that concurrent readers of one file decode it only once
+                final DecodedVolumeCache cache = DecodedVolumeCache.getInstance();
+                final File file = EncodedInput.localFile(stream);
+                final DecodedVolumeCache.Lease decoded = file == null ?
+                    cache.wrap(decodeVolume(stream, priority)) :
+                    cache.acquire(file, () -> decodeVolume(stream, priority));
+
+                lease = decoded;
+                ptr = decoded.data();
+            }
+        }
+
+        private Pointer<Byte> decodeVolume(final RandomAccessInputStream stream,
+                                           final DecodePriority priority)
+            throws IOException, FormatException
+        {
+            final long nbytes = (long) Math.max(sizeZ, 1) * sizeX * sizeY * pixel_size;
+
+            if(slabs != null){
+                final Pointer<Byte> volume = NativeBufferPool.getInstance().allocate(nbytes);
+                try {
+                    decodeInto(stream, volume, priority);
+                }
+                catch (final IOException | FormatException | RuntimeException e) {
+                    NativeBufferPool.getInstance().release(volume);
+                    throw e;
+                }
+                return volume;
+            }
+
+            // all native decodes go through the context's service, plain
+            // Metadata objects without a context queue at the same
+            // process-wide scheduler the default service uses
+            final SqeazyDecodeService decoder = decodeService();
+            if(decoder == null){
+                return DecodeScheduler.getInstance().decode(stream, pixel_size, nbytes,
+                                                            nThreads, priority);
+            }
+            return decoder.decode(stream, pixel_size, nbytes, nThreads, priority);
+        }
+
+        /**
+         * Decodes the entire volume behind {@code stream} into {@code dest},
+         * which has to hold all of it, without going through the
+         * {@link DecodedVolumeCache} or keeping a reference to {@code dest}.
+         * Every slab of chunked files is decoded straight into its part of
+         * {@code dest}.
+         */
+        void decodeInto(final RandomAccessInputStream stream, final Pointer<Byte> dest,
+                        final DecodePriority priority) throws IOException, FormatException
+        {
+            final long nbytes = (long) Math.max(sizeZ, 1) * sizeX * sizeY * pixel_size;
+            if(dest.getValidBytes() < nbytes){
+                throw new FormatException("a buffer of "+dest.getValidBytes()+
+                                          " Bytes cannot hold the decoded volume of "+nbytes+" Bytes");
+            }
+
+            if(slabs != null){
+                final long planeBytes = slabs.getPlaneBytes();
+                final int[] all = new int[slabs.size()];
+                for(int s = 0;s < all.length;s++) all[s] = s;
+                forEachSlab(stream, all, s -> {
+                        final SlabIndex.Slab slab = slabs.get(s);
+                        decodeRange(stream, slab, dest.next(slab.getZStart()*planeBytes)
+                                    .validBytes(slab.getZCount()*planeBytes), priority);
+                    });
+                return;
+            }
+
+            final Pointer<Byte> volume = dest.validBytes(nbytes);
+            final SqeazyDecodeService decoder = decodeService();
+            if(decoder == null){
+                DecodeScheduler.getInstance().decode(stream, 0, stream.length(), pixel_size,
+                                                     volume, nThreads, priority);
+            }
+            else {
+                decoder.decode(stream, 0, stream.length(), pixel_size, volume, nThreads, priority);
+            }
+        }
+
+        private SqeazyDecodeService decodeService() {
+            return getContext() == null ? null :
+                getContext().getService(SqeazyDecodeService.class);
+        }
+
+        private void decodeRange(final RandomAccessInputStream stream,
+                                 final SlabIndex.Slab slab,
+                                 final Pointer<Byte> dest,
+                                 final DecodePriority priority)
+            throws IOException, FormatException
+        {
+            final SqeazyDecodeService decoder = decodeService();
+            if(decoder == null){
+                DecodeScheduler.getInstance().decode(stream, slab.getOffset(), slab.getLength(),
+                                                     pixel_size, dest, nThreads, priority);
+            }
+            else {
+                decoder.decode(stream, slab.getOffset(), slab.getLength(), pixel_size,
+                               dest, nThreads, priority);
+            }
+        }
+
+        /**
+         * The decoded plane {@code z} together with the lease keeping it
+         * alive: either inside the decoded volume or, for chunked files that
+         * were not decoded as a whole, inside its decoded slab. The pointer is
+         * valid up to the end of the volume or slab respectively, until the
+         * returned handle is closed, even if the Metadata is closed or the
+         * slab evicted meanwhile.
+         */
+        PlaneData planeData(final RandomAccessInputStream stream, final long z)
+            throws IOException, FormatException
+        {
+            final long planeBytes = (long) sizeX * sizeY * pixel_size;
+            if(ptr != null || slabs == null){
+                decode(stream);
+                final DecodedVolumeCache.Lease volume = lease;
+                return new PlaneData(ptr.next(z*planeBytes), volume == null ? null : volume.share());
+            }
+
+            final int s = slabs.slabOf(z);
+            DecodedVolumeCache.Lease slab = sharedSlab(s);
+            if(slab == null){
+                openSlabs(stream, z, 1);
+                slab = sharedSlab(s);
+            }
+            if(slab == null){
+                // evicted by concurrent reads right away, decode it for us alone
+                slab = decodeSlab(stream, s, DecodePriority.INTERACTIVE);
+            }
+            return new PlaneData(slab.data().next((z - slabs.get(s).getZStart())*planeBytes), slab);
+        }
+
+        private DecodedVolumeCache.Lease sharedSlab(final int s) {
+            synchronized(openSlabs){
+                final DecodedVolumeCache.Lease slab = openSlabs.get(s);
+                return slab == null ? null : slab.share();
+            }
+        }
+
+        /**
+         * A decoded plane handed out by {@link #planeData}, the memory behind
+         * {@link #data} stays valid until the handle is closed.
+         */
+        static final class PlaneData implements Closeable {
+
+            final Pointer<Byte> data;
+            private final DecodedVolumeCache.Lease lease;
+
+            PlaneData(final Pointer<Byte> data, final DecodedVolumeCache.Lease lease) {
+                this.data = data;
+                this.lease = lease;
+            }
+
+            @Override
+            public void close() {
+                if(lease != null) lease.close();
+            }
+        }
+
+        /**
+         * Decodes the slabs of a chunked file holding the planes
+         * {@code [zStart, zStart + zCount)} that are not open yet, in parallel.
+         * At most as many slabs as are kept open are decoded per call.
+         */
+        void openSlabs(final RandomAccessInputStream stream, final long zStart,
+                       final long zCount) throws IOException, FormatException
+        {
+            openSlabs(stream, zStart, zCount, DecodePriority.INTERACTIVE);
+        }
+
+        void openSlabs(final RandomAccessInputStream stream, final long zStart,
+                       final long zCount, final DecodePriority priority)
+            throws IOException, FormatException
+        {
+            if(slabs == null || ptr != null) return;
+
+            final List<Integer> missing = new ArrayList<>();
+            synchronized(openSlabs){
+                for(int s = slabs.slabOf(zStart);
+                    s < slabs.size() && slabs.get(s).overlaps(zStart, zCount) && missing.size() < MAX_OPEN_SLABS;
+                    s++)
+                {
+                    if(openSlabs.get(s) == null) missing.add(s);
+                }
+            }
+            if(missing.isEmpty()) return;
+
+            final int[] indices = new int[missing.size()];
+            final DecodedVolumeCache.Lease[] leases = new DecodedVolumeCache.Lease[indices.length];
+            for(int i = 0;i < indices.length;i++) indices[i] = missing.get(i);
+
+            try {
+                forEachSlab(stream, indices, s -> leases[missing.indexOf(s)] = decodeSlab(stream, s, priority));
+            }
+            catch (final IOException | FormatException | RuntimeException e) {
+                for(final DecodedVolumeCache.Lease l : leases){
+                    if(l != null) l.close();
+                }
+                throw e;
+            }
+
+            synchronized(openSlabs){
+                for(int i = 0;i < indices.length;i++){
+                    // concurrent reads may have opened the same slab meanwhile
+                    final DecodedVolumeCache.Lease raced = openSlabs.putIfAbsent(indices[i], leases[i]);
+                    if(raced != null) leases[i].close();
+                }
+
+                final Iterator<Map.Entry<Integer, DecodedVolumeCache.Lease>> it = openSlabs.entrySet().iterator();
+                while(openSlabs.size() > MAX_OPEN_SLABS && it.hasNext()){
+                    final Map.Entry<Integer, DecodedVolumeCache.Lease> eldest = it.next();
+                    eldest.getValue().close();
+                    it.remove();
+                }
+            }
+        }
+
+        private DecodedVolumeCache.Lease decodeSlab(final RandomAccessInputStream stream,
+                                                    final int s,
+                                                    final DecodePriority priority)
+            throws IOException, FormatException
+        {
+            final SlabIndex.Slab slab = slabs.get(s);
+            final DecodedVolumeCache.Decoder decoder = () -> {
+                final Pointer<Byte> dest = NativeBufferPool.getInstance()
+                    .allocate(slab.getZCount()*slabs.getPlaneBytes());
+                try {
+                    decodeRange(stream, slab, dest, priority);
+                }
+                catch (final IOException | FormatException | RuntimeException e) {
+                    NativeBufferPool.getInstance().release(dest);
+                    throw e;
+                }
+                return dest;
+            };
+
+            final DecodedVolumeCache cache = DecodedVolumeCache.getInstance();
+            final File file = EncodedInput.localFile(stream);
+            if(file == null){
+                return cache.wrap(decoder.decode());
+            }
+            return cache.acquire(new FileKey(file).slab(s), decoder);
+        }
+
+        private interface SlabTask {
+            void run(int slab) throws IOException, FormatException;
+        }
+
+        /**
+         * Runs {@code task} for all {@code indices}, in parallel if the slabs
+         * can be mapped from a local file, one after the other otherwise (the
+         * stream itself is shared).
+         */
+        private static void forEachSlab(final RandomAccessInputStream stream,
+                                        final int[] indices, final SlabTask task)
+            throws IOException, FormatException
+        {
+            if(indices.length < 2 || EncodedInput.localFile(stream) == null){
+                for(final int s : indices) task.run(s);
+                return;
+            }
+
+            final List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+            for(final int s : indices){
+                tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                            task.run(s);
+                            return null;
+                        }));
+            }
+
+            Throwable failure = null;
+            for(final ForkJoinTask<Void> t : tasks){
+                try {
+                    t.get();
+                }
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if(failure == null) failure = e;
+                }
+                catch (final ExecutionException e) {
+                    if(failure == null) failure = e.getCause();
+                }
+            }
+
+            if(failure == null) return;
+            if(failure instanceof IOException) throw (IOException) failure;
+            if(failure instanceof FormatException) throw (FormatException) failure;
+            if(failure instanceof RuntimeException) throw (RuntimeException) failure;
+            if(failure instanceof Error) throw (Error) failure;
+            throw new IOException("decoding slabs failed", failure);
+        }
+
 
 		public int getNthreads() {
 			return nThreads;
@@ -245,28 +1198,47 @@ public class SqeazyFormat extends AbstractFormat {
 		@Override
 		public void populateImageMetadata() {
 
-            //we should extract the header here from this->data
-            //then we could populate the
-            log().debug("populateImageMetadata called with "+ptr.getValidBytes()+" Bytes being already decoded");
-
-            createImageMetadata(1);
-			final ImageMetadata iMeta = get(0);
+            //the header fields are all we need here, the volume itself
+            //may not have been decoded yet (lazy parsing); pyramid levels
+            //follow the full resolution image
+            createImageMetadata(1 + (pyramid == null ? 0 : pyramid.size()));
+            populate(get(0), getSizeX(), getSizeY(), getSizeZ());
+            for(int l = 1;pyramid != null && l <= pyramid.size();l++){
+                final SqyHeader level = pyramid.getHeader(l);
+                populate(get(l), (int) level.getSizeX(), (int) level.getSizeY(),
+                         level.getNDims() == 3 ? (int) level.getSizeZ() : 0);
+            }
+		}
 
-            if(ptr.getValidBytes() != 0){
-                //if everything was already decoded, we can fill the data that was already provided
-                iMeta.setPlanarAxisCount(3);//2?
+        private void populate(final ImageMetadata iMeta, final int sizeX,
+                              final int sizeY, final int sizeZ)
+        {
+            if(getPixelSize() != 0){
+                //the header was parsed, so we can fill the data that was already provided
+                iMeta.setPlanarAxisCount(2);//X and Y, Z is indexed by plane
                 iMeta.setOrderCertain(true);
                 iMeta.setLittleEndian(true);//assuming the data was produced under x86 predominantly
 
-                if(getSizeX()!=0){
-                    iMeta.setAxisLength(Axes.X, getSizeX());}
-                if(getSizeY()!=0){
-                    iMeta.setAxisLength(Axes.Y, getSizeY());}
-                if(getSizeZ()!=0){
-                    iMeta.setAxisLength(Axes.Z, getSizeZ());
+                if(sizeX!=0){
+                    iMeta.setAxisLength(Axes.X, sizeX);}
+                if(sizeY!=0){
+                    iMeta.setAxisLength(Axes.Y, sizeY);}
+                if(sizeZ!=0){
+                    iMeta.setAxisLength(Axes.Z, sizeZ);
                 }
 
-                if(getPixelSize()!=0){
+                if(conversion != null){
+                    // planes are returned converted, see PixelConversion
+                    iMeta.setPixelType(conversion.getPixelType());
+                    iMeta.setBitsPerPixel(8*conversion.getBytesPerPixel());
+                    iMeta.setLittleEndian(conversion.isLittleEndian());
+                }
+                else if(translatedPixelType >= 0){
+                    // kept, so that Writers reject types sqy cannot store
+                    iMeta.setPixelType(translatedPixelType);
+                    iMeta.setBitsPerPixel(8*FormatTools.getBytesPerPixel(translatedPixelType));
+                }
+                else if(getPixelSize()!=0){
 
                     if(getPixelSize()==2){
 
@@ -285,16 +1257,51 @@ public class SqeazyFormat extends AbstractFormat {
 
             }
 
-            iMeta.setAxisLength(Axes.CHANNEL, 1);
-            iMeta.setAxisLength(Axes.TIME, 1);
+            iMeta.setAxisLength(Axes.CHANNEL, getSizeC());
+            iMeta.setAxisLength(Axes.TIME, getSizeT());
             iMeta.setMetadataComplete(true);
-		}
+        }
 
 		@Override
 		public void close(final boolean fileOnly) throws IOException {
 			super.close(fileOnly);
 			if (!fileOnly) {
-				ptr.release();
+				if (lease != null) {
+					// the volume may still be in use by other readers
+					lease.close();
+					lease = null;
+				}
+				else if (ptr != null) {
+					NativeBufferPool.getInstance().release(ptr);
+				}
+				ptr = null;
+				synchronized (openSlabs) {
+					for (final DecodedVolumeCache.Lease slab : openSlabs.values()) {
+						slab.close();
+					}
+					openSlabs.clear();
+				}
+				slabs = null;
+				synchronized (members) {
+					if (prefetcher != null) {
+						prefetcher.close();
+						prefetcher = null;
+					}
+					for (final Metadata member : members.values()) {
+						closeRetired(member);
+					}
+					members.clear();
+				}
+				dataset = null;
+				synchronized (levels) {
+					for (final Metadata level : levels.values()) {
+						closeMember(level);
+					}
+					levels.clear();
+				}
+				pyramid = null;
+				conversion = null;
+				header = null;
 				sizeX = sizeY = sizeZ = 0;
 				
 			}
@@ -313,27 +1320,14 @@ public class SqeazyFormat extends AbstractFormat {
 			return true;
 		}
 
+		// Only the raw bytes up to the header terminator are inspected, files
+		// not starting like a sqy header are rejected after the first block.
+		// The parsed header is cached, so the Parser does not read it again.
 		@Override
 		public boolean isFormat(final RandomAccessInputStream stream)
 			throws IOException
 		{
-			final int blockLen = 16 << 10;
-			if (!FormatTools.validStream(stream, blockLen, false)) return false;
-			final String data = stream.readString(blockLen);
-
-            final Pointer<Byte> bHdr = pointerToCString(data);
-            final Pointer<CLong> lLength = Pointer.allocateCLong().setCLong(data.length());
-            final int iRValue = SqeazyLibrary.SQY_Header_Size(bHdr,lLength);
-
-            if(lLength.getInt() != 0 && iRValue == 0){
-                return true;
-            } else {
-                System.out.println("[SqeazyFormat.java] SqeazyLibrary.SQY_Header_Size called");
-                System.out.println("detected size "+lLength.getInt()+", return value "+iRValue+"\n");
-                System.out.println(data.substring(0,50)+"\n");
-            }
-
-			return false;
+			return SqyHeader.read(stream) != null;
 		}
 	}
     // The Parser is your interface with the image source.
@@ -352,48 +1346,20 @@ public class SqeazyFormat extends AbstractFormat {
                 final ImageMetadata iMeta = meta.get(0);
 
                 // HEADER
-                // read file partially into memory to extract header
-                log().info("Reading sqy file "+stream.getFileName());
-                int hdr_size = 4 << 10;
-                if(stream.length() < hdr_size)
-                    hdr_size = (int)stream.length();
-
-                if (!FormatTools.validStream(stream, hdr_size , false)){
-                    log().error("unable to read sqeazy header of size "+hdr_size);
-                    return ;
-                }
-                final long bytes = stream.length();
-
-                log().debug("Parsing file header");
-                final ByteBuffer blob = ByteBuffer.allocate(4 << 10);
-                stream.seek(0);
-                stream.read(blob, 0, hdr_size);//read 4MB
-
-                final Pointer<Byte> bHdr = pointerToBytes(blob);
-                final Pointer<CLong> lLength = Pointer.allocateCLong().setCLong(4 << 10);
-                int sqy_status = SqeazyLibrary.SQY_Header_Size(bHdr,lLength);
-                if(lLength.getInt() == 0 && sqy_status != 0){
+                // only the header is read (or taken from the header cache, if
+                // the Checker saw this file already), plus the slab index of
+                // chunked files
+                if(!meta.readHeaders(stream)){
                     log().error("unable to read sqeazy header");
                     return;
                 }
+                final SqyHeader header = meta.getHeader();
 
-                final ByteBuffer header = ByteBuffer.allocate((int)lLength.getCLong());
-                stream.seek(0);
-                stream.read(header, 0, (int)lLength.getCLong());
-
-                Pointer<Byte> bSQYHeader = pointerToBytes(header);
-                int sizeZ = 0;
-                final int sizeC = 1;
-                final int sizeT = 1;
-
-                sqy_status = SqeazyLibrary.SQY_Decompressed_Sizeof(bSQYHeader,lLength);
-                if(sqy_status != 0){
-                    log().error("unable to read Sizeof pixel from sqeazy header");
-                    return;
+                final int sizeof = meta.getPixelSize();
+                if(SqeazyFormat.parserGetPixelType(config) >= 0 || !SqeazyFormat.parserIsLittleEndian(config)){
+                    meta.setConversion(PixelConversion.of(sizeof, SqeazyFormat.parserGetPixelType(config),
+                                                          SqeazyFormat.parserIsLittleEndian(config)));
                 }
-                final int sizeof = (int)lLength.getCLong();
-
-                meta.setPixelSize(sizeof);
                 if(sizeof == 2){
                     iMeta.setPixelType(FormatTools.UINT16);
                     iMeta.setBitsPerPixel(16);
@@ -402,84 +1368,66 @@ public class SqeazyFormat extends AbstractFormat {
                     iMeta.setPixelType(FormatTools.UINT8);
                     iMeta.setBitsPerPixel(8);
                 }
-                if(sizeof == 0){
-                    log().error("sqeazy header contains a pixel size of 0 Bytes (which is impossible)");
-                    return;
-                }
                 iMeta.setLittleEndian(true);
+                iMeta.setPlanarAxisCount(2);
 
-                lLength.setCLong((long)header.capacity());
-                sqy_status = SqeazyLibrary.SQY_Decompressed_NDims(bSQYHeader,lLength);
-                if(sqy_status != 0){
-                    log().error("unable to read NDims of volume from sqeazy header");
-                    return;
+                if(log().isDebug()){
+                    log().debug("parsed "+header+(meta.isChunked() ? ", "+meta.getSlabIndex() : ""));
                 }
-
-                final int ndims = (int)lLength.getCLong();
-                iMeta.setPlanarAxisCount(ndims);
-
-                final Pointer<CLong> lShape = Pointer.allocateCLongs(lLength.getCLong());
-                lShape.setCLongAtIndex(0,(long)header.capacity());
-
-                sqy_status = SqeazyLibrary.SQY_Decompressed_Shape(bSQYHeader,lShape);
-                if(sqy_status != 0){
-                    log().error("unable to read Shape of volume from sqeazy header");
-                    return;
+                iMeta.setAxisLength(Axes.X, meta.getSizeX());
+                iMeta.setAxisLength(Axes.Y, meta.getSizeY());
+                if(meta.getSizeZ() != 0){
+                    iMeta.setAxisLength(Axes.Z, meta.getSizeZ());
                 }
 
-                log().info("parsed shape: "+lShape.getCLongAtIndex(0)+" "+lShape.getCLongAtIndex(1)+" "+lShape.getCLongAtIndex(2)+" sizeof="+sizeof);
-                iMeta.setAxisLength(Axes.X, lShape.getCLongAtIndex(ndims-1));
-                meta.setSizeX((int)lShape.getCLongAtIndex(ndims-1));
-
-                iMeta.setAxisLength(Axes.Y, lShape.getCLongAtIndex(ndims-2));
-                meta.setSizeY((int)lShape.getCLongAtIndex(ndims-2));
-
-                if(iMeta.getPlanarAxisCount() == 3){
-                    iMeta.setAxisLength(Axes.Z, lShape.getCLongAtIndex(ndims-3));
-                    meta.setSizeZ((int)lShape.getCLongAtIndex(ndims-3));
-                    sizeZ = (int)meta.getSizeZ();
+                // DATASETS
+                // the other channels and time points are only checked by
+                // their (cached) headers, they are opened once planes of them
+                // are requested
+                final File file = EncodedInput.localFile(stream);
+                if(SqeazyFormat.parserIsDataset(config) && file != null){
+                    final SqyDataset dataset = SqyDataset.find(file);
+                    for(final File f : dataset.getFiles()){
+                        final SqyHeader other;
+                        try (RandomAccessInputStream in = new RandomAccessInputStream(getContext(), f.getAbsolutePath())) {
+                            other = SqyHeader.read(in);
+                        }
+                        if(other == null || other.getSizeof() != sizeof ||
+                           other.getSizeX() != meta.getSizeX() || other.getSizeY() != meta.getSizeY()){
+                            throw new FormatException(f+" does not match "+file+" of the same dataset");
+                        }
+                    }
+                    if(dataset.size() > 1){
+                        if(log().isDebug()) log().debug("dataset of "+dataset);
+                        meta.setDataset(dataset);
+                        meta.setPrefetch(SqeazyFormat.parserGetPrefetch(config));
+                        iMeta.setAxisLength(Axes.CHANNEL, dataset.getSizeC());
+                        iMeta.setAxisLength(Axes.TIME, dataset.getSizeT());
+
+                        // time points are decoded on demand only
+                        return;
+                    }
                 }
 
-                final int planeCount = sizeZ * sizeC * sizeT;
-                final int planeSize = (int) iMeta.getAxisLength(Axes.X) * (int) iMeta.getAxisLength(Axes.Y);
-                final long nbytes = planeCount*planeSize*sizeof;
-                final Pointer<Byte> lDecodedBytes = Pointer.allocateBytes(nbytes);
-                lDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-                log().debug("allocating Pointer<Byte> of "+nbytes+" Bytes");
-
-                stream.seek(0);
-                final ByteBuffer encoded = ByteBuffer.allocate((int)bytes);
-                stream.read(encoded);//read all
-
-                final Pointer<Byte> lCompressedBytes = pointerToBytes(encoded);
-                final Pointer<CLong> lCompresssedBufferLength = Pointer.allocateCLong().setCLong(bytes);
-
-                int return_code = -1;
-                if(sizeof == 1){
-                    log().debug("Decompressing 8-bit volume");
-                    return_code = SqeazyLibrary.SQY_Decode_UI8(lCompressedBytes,
-                                                               bytes,//lCompresssedBufferLength,
-                                                 lDecodedBytes,
-                                                 meta.getNthreads());
-                }
-                else if(sizeof == 2){
-                    log().debug("Decompressing 16-bit volume");
-                    return_code = SqeazyLibrary.SQY_Decode_UI16(lCompressedBytes,
-                                                                bytes,//lCompresssedBufferLength,
-                                                  lDecodedBytes,
-                                                  meta.getNthreads());
-
-                }
-                else{
-                    log().error("unable to decompress of unknown pixel size "+sizeof+" (only sizeof={1 or 2} supported)");
-                    return;
+                // PYRAMID
+                // downsampled levels of single files become images 1, 2, ...,
+                // only their headers are read until planes are requested
+                if(SqeazyFormat.parserIsPyramid(config) && file != null){
+                    final SqyPyramid pyramid = SqyPyramid.find(getContext(), file, header);
+                    if(pyramid != null){
+                        if(log().isDebug()) log().debug("pyramid of "+pyramid);
+                        meta.setPyramid(pyramid);
+                    }
                 }
 
-                if(return_code == 0){
-                    log().info("Decompression successful");
-                    meta.setData(lDecodedBytes);
+                // PAYLOAD
+                // the header is all SCIFIO needs to describe the image, decoding
+                // is deferred to the first Reader.openPlane unless asked for
+                if(SqeazyFormat.parserIsLazy(config)){
+                    return;
                 }
 
+                meta.decode(stream);
 			}
     }
 
@@ -507,7 +1455,36 @@ public class SqeazyFormat extends AbstractFormat {
 			{
 				// The attached metadata should give us everything we need to determine
 				// how the provided plane's pixels will be populated.
-				final Metadata meta = getMetadata();
+				// Images past the first are pyramid levels read from their own
+				// files. For datasets the plane index selects the file of a
+				// channel and time point first, then the Z plane inside of it.
+				final Metadata source = getMetadata().levelOf(imageIndex);
+				final Metadata meta = source.volumeOf(planeIndex);
+				try {
+					return readPlane(meta, source.zOf(planeIndex), plane, bounds);
+				}
+				finally {
+					source.done(meta);
+				}
+			}
+
+        /**
+         * Fills {@code plane} from plane {@code z} of {@code meta}, converted
+         * to the configured pixel type and byte order if requested. Safe to be
+         * called by several threads at once: the volume is decoded by one of
+         * them, the copies themselves run without locking.
+         */
+        private ByteArrayPlane readPlane(final Metadata meta, final long z,
+                                         final ByteArrayPlane plane,
+                                         final Interval bounds) throws FormatException, IOException
+			{
+                // a lazy parse only read the header, so the first plane
+                // requested pays for decoding the volume (or, for chunked
+                // files, only the slabs holding the requested planes)
+                final RandomAccessInputStream stream = streamOf(meta);
+                if(!meta.isDecoded() && !meta.isChunked()){
+                    meta.decode(stream);
+                }
 
                 // update the data by reference. Ideally, this limits memory problems
 				// from rapid Java array construction/destruction.
@@ -522,25 +1499,332 @@ public class SqeazyFormat extends AbstractFormat {
                 // final int xAxis = meta.get(imageIndex).getAxisIndex(Axes.X);
                 // final int yAxis = meta.get(imageIndex).getAxisIndex(Axes.Y);
                 final int w = meta.getSizeX(), h = meta.getSizeY();
-                final long npixels_per_plane = w*h;
-                final long bytes_per_plane = npixels_per_plane*meta.getPixelSize();
-                final long planeOffset_bytes = planeIndex*bytes_per_plane;
-
-                final int frames_expected = bytes.length / (int)bytes_per_plane;
-
-// copy floating point data into byte buffer
+                final int pixel_size = meta.getPixelSize();
+                final long npixels_per_plane = (long)w*h;
+                final PixelConversion conversion = getMetadata().getConversion();
+                final int out_size = conversion == null ? pixel_size : conversion.getBytesPerPixel();
+                final long out_bytes_per_plane = npixels_per_plane*out_size;
+
+                // requested sub-region, the whole plane if no bounds are given
+                final long x0 = bounds == null ? 0 : bounds.min(0);
+                final long y0 = bounds == null ? 0 : bounds.min(1);
+                final long bw = bounds == null ? w : bounds.dimension(0);
+                final long bh = bounds == null ? h : bounds.dimension(1);
+                if(x0 < 0 || y0 < 0 || x0 + bw > w || y0 + bh > h){
+                    throw new FormatException("requested region "+bw+"x"+bh+"+"+x0+"+"+y0+
+                                              " exceeds the "+w+"x"+h+" plane");
+                }
 
-                log().info("Copying "+bytes.length+"/"+meta.getData().getValidBytes()+" Bytes into ByteArrayPlane, "+frames_expected+" frame(s) expected");
-                final Pointer<Byte> current_ptr = meta.getData().next(planeOffset_bytes);
+                if(x0 != 0 || bw != w){
+                    // a crop: copy only the requested part of every row, the
+                    // rows end up packed in the destination
+                    final long row_bytes = bw*pixel_size;
+                    final long out_row_bytes = bw*out_size;
+                    if(out_row_bytes*bh > bytes.length){
+                        throw new FormatException("plane buffer of "+bytes.length+" Bytes too small for "+
+                                                  bw+"x"+bh+" pixels");
+                    }
 
-                final long bytes_to_copy = Math.min(current_ptr.getValidBytes(),
-                                                    (long)bytes.length);
+                    try (Metadata.PlaneData data = meta.planeData(stream, z)) {
+                        final long start = System.nanoTime();
+                        long src = (y0*w + x0)*pixel_size;
+                        int dst = 0;
+                        for(long y = 0;y<bh;y++){
+                            if(conversion == null){
+                                data.data.getBytesAtOffset(src, bytes, dst, (int)row_bytes);
+                            }
+                            else {
+                                planeBuffer.position(dst);
+                                conversion.convert(data.data.next(src).getByteBuffer(row_bytes), planeBuffer);
+                            }
+                            src += (long)w*pixel_size;
+                            dst += (int)out_row_bytes;
+                        }
+                        SqyMetrics.getInstance().recordCopy(start, dst);
+                    }
+                    return plane;
+                }
 
-                planeBuffer.put(current_ptr.getByteBuffer(bytes_to_copy).order(ByteOrder.nativeOrder()));
+                // full rows are contiguous in the decoded volume: a single copy,
+                // which may continue into the following planes if the
+                // destination is larger than one plane (for chunked files one
+                // copy per slab)
+                final int frames_expected = (int) (bytes.length / out_bytes_per_plane);
+                meta.openSlabs(stream, z, Math.max(frames_expected, 1));
+                copyPlanes(meta, stream, z, y0*w*pixel_size, conversion, planeBuffer);
 
 				return plane;
 			}
 
+        /**
+         * Bulk read of the Z planes {@code zStart, zStart+1, ...}: as many
+         * complete planes as fit into the remaining space of {@code dest} (but
+         * at most {@code zCount}) are copied in one transfer, in plane order
+         * and in the configured pixel type and byte order (see
+         * {@link SqeazyFormat#PARSER_PIXEL_TYPE}, little endian as stored by
+         * default). The position of {@code dest} is advanced past
+         * the copied data. For datasets {@code zStart} is a plane index like
+         * for {@link #openPlane}, the range ends with the Z stack of its
+         * channel and time point.
+         *
+         * @return the number of planes copied, i.e. planes {@code zStart} up
+         *         to {@code zStart + result - 1} were filled
+         */
+        public int openPlanes(final int imageIndex, final long zStart,
+                              final int zCount, final ByteBuffer dest) throws FormatException, IOException
+        {
+            return openPlanes(imageIndex, zStart, zCount, (Buffer) dest);
+        }
+
+        /**
+         * {@link #openPlanes(int, long, int, ByteBuffer)} into a buffer of
+         * bytes or of pixel values: a {@link ShortBuffer} for UINT16 planes,
+         * an {@link IntBuffer} for INT32 and UINT32, a {@link FloatBuffer} or
+         * a {@link DoubleBuffer}. Typed buffers wrapping the arrays of an image
+         * are filled without any intermediate copy, the byte order does not
+         * apply to them.
+         */
+        public int openPlanes(final int imageIndex, final long zStart,
+                              final int zCount, final Buffer dest) throws FormatException, IOException
+        {
+            if(zStart < 0 || zStart >= getMetadata().get(imageIndex).getPlaneCount() || zCount < 0){
+                throw new FormatException("plane range ["+zStart+","+(zStart+zCount)+
+                                          ") out of range [0,"+getMetadata().get(imageIndex).getPlaneCount()+")");
+            }
+
+            final Metadata source = getMetadata().levelOf(imageIndex);
+            final Metadata meta = source.volumeOf(zStart);
+            try {
+                final long z = source.zOf(zStart);
+                final RandomAccessInputStream stream = streamOf(meta);
+                if(!meta.isDecoded() && !meta.isChunked()){
+                    meta.decode(stream);
+                }
+
+                final long nplanes = Math.max(meta.getSizeZ(), 1);
+
+                final PixelConversion conversion = getMetadata().getConversion();
+                final long units_per_plane = (long) meta.getSizeX() * meta.getSizeY() *
+                    unitsPerPixel(dest, getMetadata().get(imageIndex).getPixelType());
+                final long planes = Math.min(Math.min(zCount, nplanes - z),
+                                             dest.remaining() / units_per_plane);
+                if(planes == 0){
+                    return 0;
+                }
+
+                // only the slabs overlapping the range are decoded for chunked files
+                meta.openSlabs(stream, z, planes);
+                final int limit = dest.limit();
+                dest.limit(dest.position() + (int) (planes*units_per_plane));
+                try {
+                    copyPlanes(meta, stream, z, 0, conversion, dest);
+                }
+                finally {
+                    dest.limit(limit);
+                }
+                return (int) planes;
+            }
+            finally {
+                source.done(meta);
+            }
+        }
+
+        /**
+         * Elements of {@code dest} per pixel of {@code pixelType}: its bytes
+         * for {@link ByteBuffer}s, one for typed buffers of that pixel type.
+         */
+        private static int unitsPerPixel(final Buffer dest, final int pixelType) throws FormatException {
+            if(dest instanceof ByteBuffer) return FormatTools.getBytesPerPixel(pixelType);
+
+            final boolean matches;
+            switch(pixelType){
+                case FormatTools.UINT16:
+                    matches = dest instanceof ShortBuffer;
+                    break;
+                case FormatTools.INT32:
+                case FormatTools.UINT32:
+                    matches = dest instanceof IntBuffer;
+                    break;
+                case FormatTools.FLOAT:
+                    matches = dest instanceof FloatBuffer;
+                    break;
+                case FormatTools.DOUBLE:
+                    matches = dest instanceof DoubleBuffer;
+                    break;
+                default:
+                    matches = false;
+            }
+            if(!matches){
+                throw new FormatException("a "+dest.getClass().getSimpleName()+" cannot hold "+
+                                          FormatTools.getPixelTypeString(pixelType)+" pixels");
+            }
+            return 1;
+        }
+
+        /**
+         * Fills {@code dest} from byte {@code offset} of plane {@code z} on,
+         * crossing into the following planes as needed. This is one transfer
+         * from the decoded volume, or one per slab for chunked files; with a
+         * {@code conversion} the pixels are converted on the way. Typed
+         * buffers have to match the pixel type, see {@link #unitsPerPixel}.
+         */
+        private void copyPlanes(final Metadata meta, final RandomAccessInputStream stream,
+                                final long z0, final long offset,
+                                final PixelConversion conversion, final Buffer dest)
+            throws FormatException, IOException
+        {
+            final int sizeof = meta.getPixelSize();
+            final int out_size = conversion == null ? sizeof : conversion.getBytesPerPixel();
+            final int units = dest instanceof ByteBuffer ? out_size : 1;
+            final long bytes_per_plane = (long) meta.getSizeX() * meta.getSizeY() * sizeof;
+            final long nplanes = Math.max(meta.getSizeZ(), 1);
+
+            long z = z0, skip = offset;
+            while(dest.hasRemaining() && z < nplanes){
+                final int n;
+                try (Metadata.PlaneData data = meta.planeData(stream, z)) {
+                    final Pointer<Byte> src = data.data.next(skip);
+                    n = (int) Math.min(src.getValidBytes(), (long) dest.remaining() / units * sizeof);
+                    if(n <= 0) break;
+
+                    final long start = System.nanoTime();
+                    if(conversion != null){
+                        conversion.convert(src.getByteBuffer(n), dest);
+                    }
+                    else if(dest instanceof ByteBuffer){
+                        ((ByteBuffer) dest).put(src.getByteBuffer(n));
+                    }
+                    else {
+                        // UINT16 values, stored little endian
+                        ((ShortBuffer) dest).put(src.getByteBuffer(n).order(ByteOrder.LITTLE_ENDIAN)
+                                                 .asShortBuffer());
+                    }
+                    // bytes written to dest, like every other copy recorded
+                    SqyMetrics.getInstance().recordCopy(start, (long) n / sizeof * out_size);
+                }
+                z += (skip + n) / bytes_per_plane;
+                skip = 0;
+            }
+        }
+
+        /**
+         * Zero-copy counterpart of {@link #openPlane}: the returned plane holds
+         * a read-only, little endian view of plane {@code planeIndex} inside the
+         * decoded volume. For chunked files only the plane's slab is decoded.
+         * The plane holds a lease on the volume or slab (and keeps the file of
+         * a dataset open), so the view stays valid until the plane is closed,
+         * even if the Reader is closed first. Memory of planes that are never
+         * closed is never reused.
+         */
+        public DirectBufferPlane openDirectPlane(final int imageIndex,
+                                                 final long planeIndex) throws FormatException, IOException
+        {
+            final long nplanes = getMetadata().get(imageIndex).getPlaneCount();
+            if(planeIndex < 0 || planeIndex >= nplanes){
+                throw new FormatException("plane index "+planeIndex+" out of range [0,"+nplanes+")");
+            }
+
+            if(getMetadata().getConversion() != null){
+                throw new FormatException("direct planes are views of the decoded volume, "+
+                                          "they cannot be converted to another pixel type or byte order");
+            }
+
+            final Metadata source = getMetadata().levelOf(imageIndex);
+            final Metadata meta = source.volumeOf(planeIndex);
+            Metadata.PlaneData data = null;
+            boolean held = false;
+            try {
+                final RandomAccessInputStream stream = streamOf(meta);
+                if(!meta.isDecoded() && !meta.isChunked()){
+                    meta.decode(stream);
+                }
+
+                final long bytes_per_plane = (long) meta.getSizeX() * meta.getSizeY() * meta.getPixelSize();
+                if(bytes_per_plane > Integer.MAX_VALUE){
+                    throw new FormatException("a plane of "+bytes_per_plane+" Bytes exceeds what a ByteBuffer can address");
+                }
+
+                data = meta.planeData(stream, source.zOf(planeIndex));
+                final ByteBuffer view = data.data.getByteBuffer(bytes_per_plane)
+                    .asReadOnlyBuffer()
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+                final DirectBufferPlane plane = new DirectBufferPlane(getContext());
+                plane.populate(getMetadata().get(imageIndex), view,
+                               new FinalInterval(meta.getSizeX(), meta.getSizeY()));
+
+                // the view lives as long as the lease of this read, which the
+                // plane gives back (ending the read of the dataset member) on close
+                final Metadata.PlaneData lease = data;
+                plane.hold(() -> {
+                        try {
+                            lease.close();
+                        }
+                        finally {
+                            source.done(meta);
+                        }
+                    });
+                held = true;
+                return plane;
+            }
+            finally {
+                if(!held){
+                    if(data != null) data.close();
+                    source.done(meta);
+                }
+            }
+        }
+
+        private SqyThumbnails.Mode thumbnailMode = SqyThumbnails.Mode.MIDDLE_Z;
+
+        public SqyThumbnails.Mode getThumbnailMode() {
+            return thumbnailMode;
+        }
+
+        /** what {@link #openThumbPlane} shows, the middle Z plane by default */
+        public void setThumbnailMode(final SqyThumbnails.Mode mode) {
+            this.thumbnailMode = mode;
+        }
+
+        /**
+         * A downsampled preview of the volume plane {@code planeIndex} belongs
+         * to (see {@link SqyThumbnails}), computed from the decoded data
+         * without copying full planes and cached on disk per file.
+         */
+        @Override
+        public ByteArrayPlane openThumbPlane(final int imageIndex,
+                                             final long planeIndex) throws FormatException, IOException
+        {
+            final ImageMetadata iMeta = getMetadata().get(imageIndex);
+            if(planeIndex < 0 || planeIndex >= iMeta.getPlaneCount()){
+                throw new FormatException("plane index "+planeIndex+" out of range [0,"+iMeta.getPlaneCount()+")");
+            }
+
+            final Metadata source = getMetadata().levelOf(imageIndex);
+            final Metadata meta = source.volumeOf(planeIndex);
+            try {
+                final int[] size = SqyThumbnails.thumbSize(meta.getSizeX(), meta.getSizeY(),
+                                                           iMeta.getThumbSizeX(), iMeta.getThumbSizeY());
+                final byte[] pixels = SqyThumbnails.getInstance()
+                    .thumbnail(meta, streamOf(meta), source.zOf(planeIndex),
+                               thumbnailMode, size[0], size[1]);
+
+                final PixelConversion conversion = getMetadata().getConversion();
+                final ByteArrayPlane plane = new ByteArrayPlane(getContext(), iMeta,
+                                                                new FinalInterval(size[0], size[1]));
+                plane.setData(conversion == null ? pixels : conversion.convert(pixels));
+                return plane;
+            }
+            finally {
+                source.done(meta);
+            }
+        }
+
+        /** the stream of the file {@code meta} (a dataset member, a pyramid level or ours) describes */
+        private RandomAccessInputStream streamOf(final Metadata meta) {
+            return meta == getMetadata() ? getStream() : meta.getSource();
+        }
+
         // You must declare what domains your reader is associated with, based
         // on the list of constants in io.scif.util.FormatTools.
         // It is also sufficient to return an empty array here.
@@ -551,146 +1835,467 @@ public class SqeazyFormat extends AbstractFormat {
 
     }
 
-//     // *** OPTIONAL COMPONENTS ***
-
-//     // Writers are not implemented for proprietary formats, as doing so
-//     // typically violates licensing. However, if your format is open source you
-//     // are welcome to implement a writer.
-//     public static class Writer extends AbstractWriter<Metadata> {
-
-//         // NB: note that there is no writePlane method that uses a SCIFIOConfig.
-//         // The writer configuration comes into play in the setDest methods.
-//         // Note that all the default SCIFIOConfig#writer[XXXX] functionality is
-//         // handled in the Abstract layer.
-//         // But if there is configuration state for the writer you need to access,
-//         // you should override this setDest signature (as it is the lowest-level
-//         // signature, thus guaranteed to be called). Typically you will still want
-//         // a super.setDest call to ensure the standard boilerplate is handled
-//         // properly.
-// //			@Override
-// //			public void setDest(final RandomAccessOutputStream out, final int imageIndex,
-// //				final SCIFIOConfig config) throws FormatException, IOException
-// //			{
-// //				super.setDest(out, imageIndex, config);
-// //			}
-
-//         // Writers take a source plane and save it to their attached output stream
-//         // The image and plane indices are references to the final output dataset
-//         @Override
-//         public void writePlane(int imageIndex, long planeIndex, Plane plane,
-//                                long[] planeMin, long[] planeMax) throws FormatException, IOException
-// 			{
-// 				// This Metadata object describes how to write the data out to the
-// 				// destination image.
-// 				final Metadata meta = getMetadata();
-
-// 				// This stream is the destination image to write to.
-// 				final RandomAccessOutputStream stream = getStream();
-
-// 				// The given Plane object is the source plane to write
-// 				final byte[] bytes = plane.getBytes();
-
-// 				System.out.println(bytes.length);
-// 			}
-
-//         // If your writer supports a compression type, you can declare that here.
-//         // Otherwise it is sufficient to return an empty String[]
-//         @Override
-//         protected String[] makeCompressionTypes() {
-//             return new String[0];
-//         }
-//     }
-
-//     // The purpose of a Translator is similar to that of a Parser: to populate
-//     // the format-specific metadata of a Metadata object.
-//     // However, while a Parser reads from an image source to perform this
-//     // operation, a Translator reads from a Metadata object of another format.
-//     //
-//     // There are two main reasons when you would want to implement a Translator:
-//     // 1) If you implement a Writer, you should also implement a Translator to
-//     // describe how io.scif.Metadata should be translated to your Format-
-//     // specific metadata. This translator will then be called whenever
-//     // SCIFIO writes out your format, and it will be able to handle any
-//     // input format type. Essentially this is translating ImageMetadata to
-//     // your format-specific metadata.
-//     // 2) If you are adding support for a new Metadata schema to SCIFIO, you
-//     // will probably want to create Translators to and from your new Metadata
-//     // schema and core SCIFIO Metadata classes. The purpose of these
-//     // Translators is to more accurately or richly capture metadata
-//     // information, without the lossy ImageMetadata intermediate that would
-//     // be used by default translators.
-//     // This is a more advanced use case but mentioned for completeness. See
-//     // https://github.com/scifio/scifio-ome-xml/tree/dec59b4f37461a248cc57b1d38f4ebe2eaa3593e/src/main/java/io/scif/ome/translators
-//     // for examples of this case.
-//     public static class Translator extends
-//                                    AbstractTranslator<io.scif.Metadata, Metadata>
-//     {
-
-//         // The source and dest methods are used for finding matching Translators
-//         // They require only trivial implementations.
-
-//         @Override
-//         public Class<? extends io.scif.Metadata> source() {
-//             return io.scif.Metadata.class;
-//         }
-
-//         @Override
-//         public Class<? extends io.scif.Metadata> dest() {
-//             return Metadata.class;
-//         }
-
-//         // ** TRANSLATION METHODS **
-//         // There are three translation method hooks you can use. It is critical
-//         // to understand that the source.getAll() method may return a DIFFERENT
-//         // list of ImageMetadata than what is passed to these methods.
-//         // This is because the source's ImageMetadata may still be the direct
-//         // translation of its format-specific Metadata, but the provided
-//         // ImageMetadata may be the result of modification - cropping, zooming,
-//         // etc...
-//         // So, DO NOT CALL:
-//         // - Metadata#get(int)
-//         // - Metadata#getAll()
-//         // in these methods unless you have a good reason to do so. Use the
-//         // ImageMetadata provided.
-//         //
-//         // There are three hooks you can use in translation:
-//         // 1) typedTranslate gives you access to the concrete source and
-//         // destination metadata objects, along with the ImageMeatadata.
-//         // 2) translateFormatMetadata when you want to use format-specific
-//         // metadata from the source (only really applicable in reason #2 above
-//         // for creating a Translator)
-//         // 3) translateImageMetadata when you want to use the source's
-//         // ImageMetadata (which is always the case when making a translator
-//         // with a general io.scif.Metadata source)
-
-//         // Not used in the general case
-// //			@Override
-// //			protected void typedTranslate(final io.scif.Metadata source,
-// //				final List<ImageMetadata> imageMetadata, final Metadata dest)
-// //			{
-// //				super.typedTranslate(source, imageMetadata, dest);
-// //			}
-
-//         // Not used in the general case
-// //			@Override
-// //			protected void translateFormatMetadata(final io.scif.Metadata source,
-// //				final Metadata dest)
-// //			{
-// //			}
-
-//         // Here we use the state in the ImageMetadata to populate format-specific
-//         // metadata
-//         @Override
-//         protected void translateImageMetadata(final List<ImageMetadata> source,
-//                                               final Metadata dest)
-// 			{
-// 				ImageMetadata iMeta = source.get(0);
-// 				if (iMeta.isIndexed()) {
-// 					dest.setColor("red");
-// 				}
-// 				else {
-// 					dest.setColor("blue");
-// 				}
-// 			}
+    // *** OPTIONAL COMPONENTS ***
+
+    // Writers are not implemented for proprietary formats, as doing so
+    // typically violates licensing. sqeazy is open source, so we can.
+    // The sqeazy encoder only works on complete volumes: planes are collected
+    // in native memory and the whole volume is encoded (multi-threaded) and
+    // written once the writer is closed. With a slab depth configured, the
+    // volume is encoded as independent slabs followed by a SlabIndex; every
+    // slab is encoded as soon as it is complete, so volumes of any size can
+    // be written with memory for a few slabs only.
+    public static class Writer extends AbstractWriter<Metadata> {
+
+        /** bytes handed to the output per write call */
+        private static final int CHUNK_SIZE = 16 << 20;
+
+        /** the decoded volume being assembled (plain files only) */
+        private Pointer<Byte> volume;
+
+        /** destination path, if we were given a file name */
+        private String destination;
+
+        private String pipeline;
+        private int nThreads;
+
+        /** planes per slab, 0 for plain (single stream) sqy files */
+        private int slabDepth;
+
+        /** pyramid levels written after the file, see {@link SqyPyramid#build} */
+        private int pyramidLevels;
+        private boolean pyramidZ;
+
+        // -- chunked files only --
+        private final Map<Long, Pointer<Byte>> slabBuffers = new HashMap<>();
+        private final Map<Long, SlabFill> slabFilled = new HashMap<>();
+        private final Set<Long> flushedSlabs = new HashSet<>();
+        private final List<SlabIndex.Slab> writtenSlabs = new ArrayList<>();
+        private long written = 0;
+        private FileChannel slabChannel;
+
+        @Override
+        public void setDest(final String fileName, final int imageIndex,
+                            final SCIFIOConfig config) throws FormatException, IOException
+        {
+            destination = fileName;
+            super.setDest(fileName, imageIndex, config);
+        }
+
+        // NB: this is the lowest-level setDest signature, i.e. it is always called
+        @Override
+        public void setDest(final RandomAccessOutputStream out, final int imageIndex,
+                            final SCIFIOConfig config) throws FormatException, IOException
+        {
+            super.setDest(out, imageIndex, config);
+
+            final Metadata meta = getMetadata();
+            // sqy pixels are unsigned, signed values would come back wrapped
+            if(meta.getImageCount() > 0 && !isSupportedType(meta.get(0).getPixelType(), null)){
+                throw new FormatException("unable to store "+
+                                          FormatTools.getPixelTypeString(meta.get(0).getPixelType())+
+                                          " pixels, sqy files hold uint8 or uint16 only");
+            }
+            pipeline = SqeazyFormat.writerGetPipeline(config);
+            if(pipeline == null) pipeline = meta.getPipeline();
+            if(pipeline == null || pipeline.isEmpty()) pipeline = DEFAULT_PIPELINE;
+
+            nThreads = SqeazyFormat.writerGetThreads(config);
+            if(nThreads < 1) nThreads = meta.getNthreads() > 1 ? meta.getNthreads() :
+                                 Runtime.getRuntime().availableProcessors();
+
+            slabDepth = Math.max(0, SqeazyFormat.writerGetSlabDepth(config));
+            pyramidLevels = SqeazyFormat.writerGetPyramidLevels(config);
+            pyramidZ = SqeazyFormat.writerIsPyramidZ(config);
+        }
+
+        // planeIndex counts XY planes, bounds may cover a sub-region of them
+        // or (for 3 planar axes) a stack of planes
+        @Override
+        public void writePlane(final int imageIndex, final long planeIndex,
+                               final Plane plane, final Interval bounds) throws FormatException, IOException
+        {
+            if(imageIndex != 0){
+                throw new FormatException("sqy files hold a single image, cannot write image "+imageIndex);
+            }
+
+            final Metadata meta = getMetadata();
+            final long sizeX = meta.getSizeX(), sizeY = meta.getSizeY();
+            final long sizeZ = Math.max(meta.getSizeZ(), 1);
+            final int sizeof = meta.getPixelSize();
+            if(sizeof != 1 && sizeof != 2){
+                throw new FormatException("unable to encode pixel size "+sizeof+" (only sizeof={1 or 2} supported)");
+            }
+
+            final long x0 = bounds.min(0), y0 = bounds.min(1);
+            final long w = bounds.dimension(0), h = bounds.dimension(1);
+            final long z0 = planeIndex + (bounds.numDimensions() > 2 ? bounds.min(2) : 0);
+            final long nz = bounds.numDimensions() > 2 ? bounds.dimension(2) : 1;
+            if(x0 + w > sizeX || y0 + h > sizeY || z0 + nz > sizeZ){
+                throw new FormatException("plane "+planeIndex+" exceeds the volume of "+sizeX+"x"+sizeY+"x"+sizeZ);
+            }
+            if(slabDepth > 0){
+                // nothing is copied if any of the planes arrives too late
+                for(long s = z0 / slabDepth;s <= (z0 + nz - 1) / slabDepth;s++){
+                    if(flushedSlabs.contains(s)){
+                        throw new FormatException("slab "+s+" was already written, planes "+z0+
+                                                  " to "+(z0 + nz - 1)+" arrived too late");
+                    }
+                }
+            }
+
+            final boolean little = plane.getImageMetadata() == null ||
+                plane.getImageMetadata().isLittleEndian();
+            final ByteBuffer src = ByteBuffer.wrap(plane.getBytes())
+                .order(little ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+            final int rowBytes = (int) (w*sizeof);
+            for(long z = 0;z < nz;z++){
+                final Pointer<Byte> target = planeTarget(z0 + z);
+                for(long y = 0;y < h;y++){
+                    final int srcOffset = (int) ((z*h + y)*rowBytes);
+                    final long dstOffset = ((y0 + y)*sizeX + x0)*sizeof;
+
+                    src.limit(srcOffset + rowBytes).position(srcOffset);
+                    final ByteBuffer dst = target.next(dstOffset).getByteBuffer(rowBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                    if(sizeof == 2 && !little){
+                        dst.asShortBuffer().put(src.slice().order(src.order()).asShortBuffer());
+                    }
+                    else {
+                        dst.put(src);
+                    }
+                }
+
+                if(slabDepth > 0){
+                    // slabs are encoded and written as soon as all their
+                    // pixels arrived, so only unfinished slabs are held;
+                    // planes saved twice and overlapping tiles count once
+                    final long s = (z0 + z) / slabDepth;
+                    final SlabFill fill = slabFilled.computeIfAbsent(s, k -> new SlabFill(slabPlanes(k), sizeX, sizeY));
+                    fill.add(z0 + z - s*slabDepth, x0, y0, w, h);
+                    if(fill.isComplete()){
+                        flushSlab(s);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Where plane {@code z} goes: into the volume for plain files, into
+         * the buffer of its slab for chunked ones. Buffers are allocated on
+         * first use, addressed by {@code long} throughout.
+         */
+        private Pointer<Byte> planeTarget(final long z) throws FormatException {
+            final Metadata meta = getMetadata();
+            final long planeBytes = (long) meta.getSizeX() * meta.getSizeY() * meta.getPixelSize();
+
+            if(slabDepth <= 0){
+                if(volume == null){
+                    volume = Pointer.allocateBytes(Math.max(meta.getSizeZ(), 1)*planeBytes);
+                }
+                return volume.next(z*planeBytes);
+            }
+
+            final long s = z / slabDepth;
+            if(flushedSlabs.contains(s)){
+                throw new FormatException("slab "+s+" was already written, plane "+z+" arrived too late");
+            }
+            Pointer<Byte> slab = slabBuffers.get(s);
+            if(slab == null){
+                slab = Pointer.allocateBytes(slabPlanes(s)*planeBytes);
+                slabBuffers.put(s, slab);
+            }
+            return slab.next((z - s*slabDepth)*planeBytes);
+        }
+
+        private long slabPlanes(final long s) {
+            final long sizeZ = Math.max(getMetadata().getSizeZ(), 1);
+            return Math.min(slabDepth, sizeZ - s*slabDepth);
+        }
+
+        /**
+         * The rows of a slab written so far. Rows written in parts (tiles
+         * narrower than the plane) are tracked per column until they are
+         * complete.
+         */
+        private static final class SlabFill {
+
+            private final long sizeX;
+            private final long sizeY;
+            private final int rowCount;
+            private final BitSet rows = new BitSet();
+            private final Map<Integer, BitSet> partialRows = new HashMap<>();
+
+            SlabFill(final long planes, final long sizeX, final long sizeY) {
+                this.sizeX = sizeX;
+                this.sizeY = sizeY;
+                this.rowCount = (int) (planes*sizeY);
+            }
+
+            /** marks the tile at {@code x0, y0} of plane {@code z} (inside the slab) as written */
+            void add(final long z, final long x0, final long y0, final long w, final long h) {
+                for(long y = y0;y < y0 + h;y++){
+                    final int row = (int) (z*sizeY + y);
+                    if(rows.get(row)) continue;
+                    if(w == sizeX){
+                        rows.set(row);
+                        partialRows.remove(row);
+                        continue;
+                    }
+                    final BitSet columns = partialRows.computeIfAbsent(row, k -> new BitSet((int) sizeX));
+                    columns.set((int) x0, (int) (x0 + w));
+                    if(columns.cardinality() == sizeX){
+                        rows.set(row);
+                        partialRows.remove(row);
+                    }
+                }
+            }
+
+            boolean isComplete() {
+                return rows.nextClearBit(0) >= rowCount;
+            }
+        }
+
+        @Override
+        public int[] getPixelTypes(final String codec) {
+            return new int[] { FormatTools.UINT8, FormatTools.UINT16 };
+        }
+
+        @Override
+        public boolean canDoStacks() {
+            return true;
+        }
+
+        // The pipeline is configured through SCIFIOConfig/Metadata, sqeazy
+        // pipelines are not expressible as SCIFIO compression types.
+        @Override
+        protected String[] makeCompressionTypes() {
+            return new String[0];
+        }
+
+        @Override
+        public void close() throws IOException {
+            final boolean wrote = volume != null || !slabBuffers.isEmpty() || !flushedSlabs.isEmpty();
+            try {
+                if(volume != null){
+                    try (FileChannel channel = openChannel()) {
+                        encodeAndWrite(channel, volume, Math.max(getMetadata().getSizeZ(), 1));
+                    }
+                }
+                else if(!slabBuffers.isEmpty() || !flushedSlabs.isEmpty()){
+                    finishSlabs();
+                }
+            }
+            finally {
+                if(volume != null){
+                    volume.release();
+                    volume = null;
+                }
+                for(final Pointer<Byte> slab : slabBuffers.values()){
+                    slab.release();
+                }
+                slabBuffers.clear();
+                slabFilled.clear();
+                flushedSlabs.clear();
+                writtenSlabs.clear();
+                written = 0;
+                if(slabChannel != null){
+                    slabChannel.close();
+                    slabChannel = null;
+                }
+                super.close();
+            }
+
+            // the levels are computed from the file just written, which
+            // only exists as a file if we were given a file name
+            if(wrote && pyramidLevels != 0 && destination != null){
+                try {
+                    SqyPyramid.build(getContext(), new File(destination), pyramidLevels, pyramidZ);
+                }
+                catch (final FormatException e) {
+                    throw new IOException("unable to write the pyramid of "+destination, e);
+                }
+            }
+        }
+
+        /** the destination file opened for writing, null if we write to a stream */
+        private FileChannel openChannel() throws IOException {
+            if(destination == null) return null;
+            return FileChannel.open(new File(destination).toPath(),
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /** encodes and appends slab {@code s}, its offset goes to the index */
+        private void flushSlab(final long s) throws IOException {
+            final Metadata meta = getMetadata();
+            final long planeBytes = (long) meta.getSizeX() * meta.getSizeY() * meta.getPixelSize();
+
+            Pointer<Byte> slab = slabBuffers.remove(s);
+            if(slab == null){
+                // never written to, i.e. all zeros
+                slab = Pointer.allocateBytes(slabPlanes(s)*planeBytes);
+            }
+
+            try {
+                if(slabChannel == null && destination != null){
+                    slabChannel = openChannel();
+                }
+                final long length = encodeAndWrite(slabChannel, slab, slabPlanes(s));
+                writtenSlabs.add(new SlabIndex.Slab(written, length, s*slabDepth, slabPlanes(s)));
+                written += length;
+                flushedSlabs.add(s);
+                slabFilled.remove(s);
+            }
+            finally {
+                slab.release();
+            }
+        }
+
+        /** flushes the incomplete slabs and appends the index */
+        private void finishSlabs() throws IOException {
+            final Metadata meta = getMetadata();
+            final long sizeZ = Math.max(meta.getSizeZ(), 1);
+            final long nslabs = (sizeZ + slabDepth - 1) / slabDepth;
+            for(long s = 0;s < nslabs;s++){
+                if(!flushedSlabs.contains(s)) flushSlab(s);
+            }
+
+            // slabs may have completed in any order, the index is sorted by z
+            writtenSlabs.sort((a, b) -> Long.compare(a.getZStart(), b.getZStart()));
+            final SlabIndex index = new SlabIndex(meta.getPixelSize(), sizeZ,
+                                                  meta.getSizeY(), meta.getSizeX(), writtenSlabs);
+            write(slabChannel, index.toBytes(written));
+        }
+
+        /**
+         * Encodes {@code sizeZ} planes starting at {@code src} into one sqy
+         * stream and writes it.
+         *
+         * @return the number of bytes written
+         */
+        private long encodeAndWrite(final FileChannel channel, final Pointer<Byte> src,
+                                    final long sizeZ) throws IOException
+        {
+            final Metadata meta = getMetadata();
+            final int sizeof = meta.getPixelSize();
+            final long nbytes = sizeZ * meta.getSizeY() * meta.getSizeX() * sizeof;
+
+            final Pointer<Byte> bPipeline = pointerToCString(pipeline);
+            final Pointer<CLong> lShape = pointerToCLongs(sizeZ,
+                                                          meta.getSizeY(),
+                                                          meta.getSizeX());
+            final Pointer<CLong> lLength = Pointer.allocateCLong().setCLong(nbytes);
+
+            int sqy_status = sizeof == 1 ?
+                SqeazyLibrary.SQY_Pipeline_Max_Compressed_Length_UI8(bPipeline, pipeline.length(), lLength) :
+                SqeazyLibrary.SQY_Pipeline_Max_Compressed_Length_UI16(bPipeline, pipeline.length(), lLength);
+            if(sqy_status != 0){
+                throw new IOException("sqeazy rejected the pipeline "+pipeline+" (error code "+sqy_status+")");
+            }
+
+            final Pointer<Byte> encoded = Pointer.allocateBytes(lLength.getCLong());
+            try {
+                sqy_status = sizeof == 1 ?
+                    SqeazyLibrary.SQY_PipelineEncode_UI8(bPipeline, src, lShape, 3,
+                                                         encoded, lLength, nThreads) :
+                    SqeazyLibrary.SQY_PipelineEncode_UI16(bPipeline, src, lShape, 3,
+                                                          encoded, lLength, nThreads);
+                if(sqy_status != 0){
+                    throw new IOException("sqeazy failed to encode with "+pipeline+" (error code "+sqy_status+")");
+                }
+
+                final long length = lLength.getCLong();
+                write(channel, encoded, length);
+                return length;
+            }
+            finally {
+                encoded.release();
+            }
+        }
+
+        private void write(final FileChannel channel, final Pointer<Byte> encoded,
+                           final long length) throws IOException
+        {
+            for(long offset = 0;offset < length;offset += CHUNK_SIZE){
+                write(channel, encoded.next(offset)
+                      .getByteBuffer(Math.min(CHUNK_SIZE, length - offset)));
+            }
+        }
+
+        /** writes to the channel if there is one, to the output stream otherwise */
+        private void write(final FileChannel channel, final ByteBuffer window) throws IOException {
+            if(channel != null){
+                while(window.hasRemaining()) channel.write(window);
+                return;
+            }
+
+            final RandomAccessOutputStream out = getStream();
+            final byte[] chunk = new byte[Math.min(CHUNK_SIZE, window.remaining())];
+            while(window.hasRemaining()){
+                final int len = Math.min(chunk.length, window.remaining());
+                window.get(chunk, 0, len);
+                out.write(chunk, 0, len);
+            }
+        }
+    }
+
+    // The purpose of a Translator is similar to that of a Parser: to populate
+    // the format-specific metadata of a Metadata object.
+    // However, while a Parser reads from an image source to perform this
+    // operation, a Translator reads from a Metadata object of another format.
+    // As we implement a Writer, this translator describes how any
+    // io.scif.Metadata is turned into sqeazy Metadata. It is used whenever
+    // SCIFIO writes (or converts) to .sqy.
+    @Plugin(type = io.scif.Translator.class, priority = Priority.LOW)
+    public static class Translator extends
+                                   AbstractTranslator<io.scif.Metadata, Metadata>
+    {
+
+        // The source and dest methods are used for finding matching Translators
+        // They require only trivial implementations.
+
+        @Override
+        public Class<? extends io.scif.Metadata> source() {
+            return io.scif.Metadata.class;
+        }
+
+        @Override
+        public Class<? extends io.scif.Metadata> dest() {
+            return Metadata.class;
+        }
+
+        // NB: only the provided ImageMetadata may be used here, as it may
+        // differ from source.getAll() (cropping, zooming, ...).
+        // sqy files hold a single 3D volume: X and Y are kept, every other axis
+        // (Z, channels, time points, unknown axes) is stacked along Z in
+        // plane order.
+        @Override
+        protected void translateImageMetadata(final List<ImageMetadata> source,
+                                              final Metadata dest)
+        {
+            final ImageMetadata iMeta = source.get(0);
+
+            long sizeZ = 1;
+            for (final CalibratedAxis axis : iMeta.getAxes()) {
+                if (axis.type() == Axes.X || axis.type() == Axes.Y) continue;
+                sizeZ *= iMeta.getAxisLength(axis);
+            }
+
+            // extents beyond an int cannot be described by a sqy header
+            dest.setSizeX(Math.toIntExact(iMeta.getAxisLength(Axes.X)));
+            dest.setSizeY(Math.toIntExact(iMeta.getAxisLength(Axes.Y)));
+            dest.setSizeZ(Math.toIntExact(sizeZ));
+            dest.setPixelSize(FormatTools.getBytesPerPixel(iMeta.getPixelType()));
+            dest.setType(FormatTools.getPixelTypeString(iMeta.getPixelType()));
+            dest.setTranslatedPixelType(iMeta.getPixelType());
+
+            if (dest.getPipeline() == null) {
+                dest.setPipeline(DEFAULT_PIPELINE);
+            }
+        }
+    }
 
 }
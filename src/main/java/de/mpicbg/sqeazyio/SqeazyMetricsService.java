@@ -0,0 +1,25 @@
+package de.mpicbg.sqeazyio;
+
+import org.scijava.service.SciJavaService;
+
+import de.mpicbg.sqeazyio.SqyMetrics.Stage;
+
+/**
+ * Access to the {@link SqyMetrics} of this process, e.g. to tell whether
+ * reading is limited by the disk ({@link Stage#FILE_READ}), the codec
+ * ({@link Stage#DECODE}) or memory copies ({@link Stage#PLANE_COPY}). The
+ * same numbers are published through JMX as {@value SqyMetrics#OBJECT_NAME}
+ * while a context with this service is around.
+ */
+public interface SqeazyMetricsService extends SciJavaService {
+
+    SqyMetrics getMetrics();
+
+    StageStatistics getStatistics(Stage stage);
+
+    /** Starts counting from scratch. */
+    void reset();
+
+    /** a human readable summary of all metrics */
+    String report();
+}
@@ -0,0 +1,150 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Fraction;
+
+import de.mpicbg.sqeazyio.SqeazyDecodeService.DecodePriority;
+import de.mpicbg.sqeazyio.SqeazyFormat.Metadata;
+import de.mpicbg.sqeazyio.SqeazyFormat.Reader;
+
+import static org.bridj.Pointer.*;
+
+/**
+ * Fully loaded imglib2 images of sqy files, decoded in place.
+ * <p>
+ * Opening a sqy file through {@code ImgOpener} decodes the volume into
+ * native memory and then copies it plane by plane into the java arrays of
+ * the image, so twice the volume is held for a while. The {@link ArrayImg}
+ * returned here is backed by a direct {@link ByteBuffer} instead, which the
+ * sqeazy decoder writes into straight away: the volume is held once and
+ * never copied. Slabs of chunked files (see {@link SlabIndex}) are decoded
+ * into their part of the image, in parallel for local files. The buffer is freed by the
+ * garbage collector once the image is no longer referenced, the
+ * {@link Reader} may be closed right after.
+ * </p>
+ * <p>
+ * The image is X, Y, Z of the stored pixel type. A direct buffer holds at
+ * most 2 GB; larger volumes and multi-file datasets are read lazily with
+ * {@link SqyCellImgs} instead.
+ * </p>
+ */
+public final class SqyArrayImgs {
+
+    private SqyArrayImgs() {}
+
+    /**
+     * An array image holding the decoded volume {@code reader} was opened on.
+     * If the reader decoded the volume already, it is copied once instead of
+     * being decoded again.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends NativeType<T>> ArrayImg<T, ?> open(final Reader reader)
+        throws IOException, FormatException
+    {
+        final Metadata meta = reader.getMetadata();
+        if (meta.isDataset()) {
+            throw new IllegalArgumentException("datasets of several files are opened with SqyCellImgs");
+        }
+        final int sizeof = meta.getPixelSize();
+        if (sizeof != 1 && sizeof != 2) {
+            throw new IllegalArgumentException("unsupported pixel size " + sizeof);
+        }
+
+        final long[] dimensions = { meta.getSizeX(), meta.getSizeY(), Math.max(meta.getSizeZ(), 1) };
+        final long nbytes = dimensions[0] * dimensions[1] * dimensions[2] * sizeof;
+        if (nbytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("a volume of " + nbytes +
+                                               " Bytes exceeds a direct buffer, open it with SqyCellImgs");
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect((int) nbytes).order(ByteOrder.LITTLE_ENDIAN);
+        final RandomAccessInputStream stream = reader.getStream();
+        if (meta.isDecoded()) {
+            try (Metadata.PlaneData data = meta.planeData(stream, 0)) {
+                final long start = System.nanoTime();
+                buffer.put(data.data.getByteBuffer(nbytes));
+                SqyMetrics.getInstance().recordCopy(start, nbytes);
+            }
+            buffer.clear();
+        }
+        else {
+            meta.decodeInto(stream, pointerToBytes(buffer), DecodePriority.INTERACTIVE);
+        }
+
+        if (sizeof == 1) {
+            final ArrayImg<UnsignedByteType, ByteBufferAccess> img =
+                new ArrayImg<>(new ByteBufferAccess(buffer), dimensions, new Fraction());
+            img.setLinkedType(new UnsignedByteType(img));
+            return (ArrayImg<T, ?>) img;
+        }
+        final ArrayImg<UnsignedShortType, ShortBufferAccess> img =
+            new ArrayImg<>(new ShortBufferAccess(buffer), dimensions, new Fraction());
+        img.setLinkedType(new UnsignedShortType(img));
+        return (ArrayImg<T, ?>) img;
+    }
+
+    /** 8 bit pixels in a direct buffer */
+    public static final class ByteBufferAccess implements ByteAccess {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferAccess(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /** the pixels, e.g. to hand them to native code */
+        public ByteBuffer getBuffer() {
+            return buffer.duplicate();
+        }
+
+        @Override
+        public byte getValue(final int index) {
+            return buffer.get(index);
+        }
+
+        @Override
+        public void setValue(final int index, final byte value) {
+            buffer.put(index, value);
+        }
+    }
+
+    /** 16 bit little endian pixels in a direct buffer */
+    public static final class ShortBufferAccess implements ShortAccess {
+
+        private final ByteBuffer buffer;
+        private final ShortBuffer shorts;
+
+        ShortBufferAccess(final ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.shorts = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        }
+
+        /** the pixels, e.g. to hand them to native code */
+        public ByteBuffer getBuffer() {
+            return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public short getValue(final int index) {
+            return shorts.get(index);
+        }
+
+        @Override
+        public void setValue(final int index, final short value) {
+            shorts.put(index, value);
+        }
+    }
+}
@@ -0,0 +1,579 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.SCIFIO;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.scijava.Context;
+
+/**
+ * A persisted catalogue of the sqy files below one or more directories.
+ * <p>
+ * {@link #update(File)} walks a directory tree and records path, modification
+ * time, compressed size, shape, pixel size, type and pipeline of every .sqy
+ * file, pyramid levels (see {@link SqyPyramid}) and files still being written
+ * by a {@link SqyConverter} aside. Only the header (and the slab index of chunked files) is read, no
+ * payload is ever decoded. Files whose size and modification time did not
+ * change since the last update are not opened again.
+ * </p>
+ * <p>
+ * The catalogue file is memory mapped and scanned in place by
+ * {@link #query(Predicate)}, so queries over hundreds of thousands of files
+ * take milliseconds. Updates append the records of new and changed files and
+ * mark replaced ones as deleted; the file is compacted once most records are
+ * deleted. Updates of several processes are serialized by a file lock,
+ * queries hold a shared lock and map the file again once another process
+ * changed it; every compaction counts up the generation in the header, as it
+ * moves the records. The layout is little endian:
+ * </p>
+ * <pre>
+ * header: "SQYCAT01", int records, int deleted, long end, long generation
+ * record: int length, byte flags, byte sizeof, byte ndims, byte reserved,
+ *         long lastModified, long compressedSize, ndims x long shape,
+ *         path, type, pipeline (each unsigned short length + UTF-8 bytes,
+ *         0xffff for none)
+ * </pre>
+ */
+public final class SqyCatalogue implements Closeable {
+
+    static final byte[] MAGIC = "SQYCAT01".getBytes(StandardCharsets.US_ASCII);
+
+    static final int HEADER_SIZE = 32;
+
+    private static final int RECORD_FIXED_SIZE = 24;
+
+    private static final int NO_STRING = 0xffff;
+
+    static final byte DELETED = 1;
+
+    /** the file is no (readable) sqy file, remembered so it is not reopened */
+    static final byte INVALID = 2;
+
+    static final byte CHUNKED = 4;
+
+    private final SCIFIO scifio;
+    private final Context context;
+    private final Path path;
+
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private int records;
+    private int deleted;
+    private long end;
+    private long generation;
+
+    /** offsets of the live records, in file order */
+    private int[] live = new int[0];
+
+    /**
+     * Opens the catalogue stored in {@code catalogue}, an empty one is created
+     * if the file does not exist yet.
+     */
+    public SqyCatalogue(final Context context, final File catalogue) throws IOException {
+        this.context = context;
+        this.scifio = new SCIFIO(context);
+        this.path = catalogue.toPath().toAbsolutePath();
+        open();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                writeHeader(0, 0, HEADER_SIZE);
+            }
+            refresh();
+        }
+        catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Re-reads the header and maps the records written so far. */
+    private void refresh() throws IOException {
+        final ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(head, 0);
+        head.flip();
+        final byte[] magic = new byte[MAGIC.length];
+        if (head.remaining() < HEADER_SIZE) {
+            throw new IOException(path + " is no sqy catalogue: truncated header");
+        }
+        head.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException(path + " is no sqy catalogue");
+        }
+        records = head.getInt();
+        deleted = head.getInt();
+        end = head.getLong();
+        generation = head.getLong();
+        if (end < HEADER_SIZE || end > channel.size() || end > Integer.MAX_VALUE) {
+            throw new IOException("corrupt sqy catalogue " + path + ": " + end + " Bytes used");
+        }
+
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        final int[] offsets = new int[Math.max(records, 0)];
+        int n = 0, at = HEADER_SIZE;
+        for (int r = 0; r < records; r++) {
+            final int length = at + RECORD_FIXED_SIZE > end ? 0 : mapped.getInt(at);
+            if (length < RECORD_FIXED_SIZE || at + (long) length > end) {
+                throw new IOException("corrupt sqy catalogue " + path + ": record at " + at);
+            }
+            if ((mapped.get(at + 4) & DELETED) == 0) {
+                offsets[n++] = at;
+            }
+            at += length;
+        }
+        live = n == offsets.length ? offsets : Arrays.copyOf(offsets, n);
+    }
+
+    /**
+     * Takes a shared lock on the catalogue, mapped again if another process
+     * updated or compacted it since it was last read.
+     */
+    private FileLock lockShared() throws IOException {
+        final FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+        try {
+            final ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(head, 0);
+            if (head.position() < HEADER_SIZE || head.getInt(8) != records ||
+                head.getInt(12) != deleted || head.getLong(16) != end ||
+                head.getLong(24) != generation)
+            {
+                refresh();
+            }
+            return lock;
+        }
+        catch (final IOException | RuntimeException e) {
+            lock.release();
+            throw e;
+        }
+    }
+
+    private void writeHeader(final int records, final int deleted, final long end)
+        throws IOException
+    {
+        final ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        head.put(MAGIC).putInt(records).putInt(deleted).putLong(end).putLong(generation);
+        head.flip();
+        writeFully(channel, head, 0);
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer bytes,
+                                   long position) throws IOException
+    {
+        while (bytes.hasRemaining()) {
+            position += channel.write(bytes, position);
+        }
+    }
+
+    // -- Updating --
+
+    /**
+     * Brings the entries of all .sqy files below {@code root} up to date:
+     * new and changed files are read, entries of files that vanished are
+     * dropped.
+     *
+     * @return the number of files whose header was read
+     */
+    public synchronized int update(final File root) throws IOException {
+        final Path base = root.toPath().toAbsolutePath().normalize();
+
+        try (FileLock lock = channel.lock()) {
+            // another process may have updated the catalogue meanwhile
+            refresh();
+
+            final Map<String, Integer> known = new HashMap<>(live.length * 2);
+            for (final int offset : live) {
+                known.put(new Entry(mapped, offset).getPath(), offset);
+            }
+
+            final Set<String> seen = new HashSet<>();
+            final List<ByteBuffer> appended = new ArrayList<>();
+            final List<Integer> replaced = new ArrayList<>();
+            final int[] read = { 0 };
+
+            Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+
+                    @Override
+                    public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs)
+                        throws IOException
+                    {
+                        // pyramid levels belong to their file, partial files
+                        // of running conversions are not complete yet
+                        final String fileName = file.getFileName().toString();
+                        if (!attrs.isRegularFile() ||
+                            !fileName.toLowerCase(Locale.ROOT).endsWith(".sqy") ||
+                            SqyPyramid.isLevelFile(fileName) || SqyConverter.isPartialFile(fileName))
+                        {
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        final String name = file.toString();
+                        final long modified = attrs.lastModifiedTime().toMillis();
+                        seen.add(name);
+
+                        final Integer offset = known.get(name);
+                        if (offset != null) {
+                            final Entry entry = new Entry(mapped, offset);
+                            if (entry.getLastModified() == modified &&
+                                entry.getCompressedSize() == attrs.size())
+                            {
+                                return FileVisitResult.CONTINUE;
+                            }
+                            replaced.add(offset);
+                        }
+
+                        appended.add(record(name, modified, attrs.size()));
+                        read[0]++;
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+                        scifio.log().warn("unable to visit " + file + ": " + e.getMessage());
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+
+            // files below root that are gone
+            final String prefix = base.toString() + File.separator;
+            for (final Map.Entry<String, Integer> e : known.entrySet()) {
+                if (!seen.contains(e.getKey()) && e.getKey().startsWith(prefix)) {
+                    replaced.add(e.getValue());
+                }
+            }
+
+            if (!appended.isEmpty() || !replaced.isEmpty()) {
+                write(appended, replaced);
+            }
+            return read[0];
+        }
+    }
+
+    /**
+     * Appends {@code appended} and marks the records at {@code replaced}
+     * deleted. The header is written last: records appended by an
+     * interrupted update are not part of the catalogue, their files are just
+     * read again by the next update.
+     */
+    private void write(final List<ByteBuffer> appended, final List<Integer> replaced)
+        throws IOException
+    {
+        long at = end;
+        for (final ByteBuffer record : appended) {
+            at += record.remaining();
+            if (at > Integer.MAX_VALUE) {
+                throw new IOException("sqy catalogue " + path + " exceeds 2 GB");
+            }
+        }
+
+        final ByteBuffer batch = ByteBuffer.allocate((int) (at - end));
+        for (final ByteBuffer record : appended) batch.put(record);
+        batch.flip();
+        writeFully(channel, batch, end);
+
+        final ByteBuffer flag = ByteBuffer.allocate(1);
+        for (final int offset : replaced) {
+            flag.put(0, (byte) (mapped.get(offset + 4) | DELETED));
+            flag.rewind();
+            writeFully(channel, flag, offset + 4);
+        }
+        channel.force(false);
+        writeHeader(records + appended.size(), deleted + replaced.size(), at);
+        channel.force(false);
+
+        refresh();
+        if (deleted > 64 && deleted > live.length) compact();
+    }
+
+    /**
+     * Rewrites the catalogue without its deleted records, in place as the
+     * file lock is held on this file. The catalogue is emptied first, so an
+     * interrupted compaction only costs reading the headers again. The new
+     * generation tells other processes that their record offsets are stale.
+     */
+    private void compact() throws IOException {
+        final ByteBuffer kept = ByteBuffer.allocate((int) (end - HEADER_SIZE));
+        for (final int offset : live) {
+            final ByteBuffer record = mapped.duplicate();
+            record.position(offset).limit(offset + mapped.getInt(offset));
+            kept.put(record);
+        }
+        kept.flip();
+        final long used = HEADER_SIZE + kept.remaining();
+
+        generation++;
+        writeHeader(0, 0, HEADER_SIZE);
+        channel.force(false);
+        writeFully(channel, kept, HEADER_SIZE);
+        channel.force(false);
+        writeHeader(live.length, 0, used);
+        channel.force(false);
+        refresh();
+    }
+
+    /** The catalogue record of the file at {@code name}, read from its header. */
+    private ByteBuffer record(final String name, final long modified, final long size) {
+        byte flags = 0;
+        int sizeof = 0;
+        long[] shape = new long[0];
+        String type = null, pipeline = null;
+
+        try (RandomAccessInputStream stream = new RandomAccessInputStream(context, name)) {
+            final SqyHeader header = SqyHeader.read(stream);
+            if (header == null) {
+                flags = INVALID;
+            }
+            else {
+                sizeof = header.getSizeof();
+                shape = header.getShape();
+                type = header.getType();
+                pipeline = header.getPipeline();
+
+                // the header of a chunked file describes its first slab only
+                final SlabIndex slabs = SlabIndex.read(stream);
+                if (slabs != null) {
+                    flags = CHUNKED;
+                    shape = new long[] { slabs.getSizeZ(), slabs.getSizeY(), slabs.getSizeX() };
+                }
+            }
+        }
+        catch (final IOException | RuntimeException e) {
+            scifio.log().warn("unable to read the header of " + name + ": " + e.getMessage());
+            flags = INVALID;
+            sizeof = 0;
+            shape = new long[0];
+            type = pipeline = null;
+        }
+
+        final byte[] path = name.getBytes(StandardCharsets.UTF_8);
+        final byte[] typeBytes = type == null ? null : type.getBytes(StandardCharsets.UTF_8);
+        final byte[] pipeBytes = pipeline == null ? null : pipeline.getBytes(StandardCharsets.UTF_8);
+        final int length = RECORD_FIXED_SIZE + 8 * shape.length + 6 +
+            path.length + (typeBytes == null ? 0 : typeBytes.length) +
+            (pipeBytes == null ? 0 : pipeBytes.length);
+
+        final ByteBuffer record = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(length).put(flags).put((byte) sizeof).put((byte) shape.length).put((byte) 0);
+        record.putLong(modified).putLong(size);
+        for (final long extent : shape) record.putLong(extent);
+        putString(record, path);
+        putString(record, typeBytes);
+        putString(record, pipeBytes);
+        record.flip();
+        return record;
+    }
+
+    private static void putString(final ByteBuffer record, final byte[] bytes) {
+        if (bytes == null) {
+            record.putShort((short) NO_STRING);
+            return;
+        }
+        if (bytes.length >= NO_STRING) {
+            throw new IllegalArgumentException("catalogue strings are limited to " +
+                                               (NO_STRING - 1) + " Bytes");
+        }
+        record.putShort((short) bytes.length).put(bytes);
+    }
+
+    // -- Queries --
+
+    /**
+     * All valid sqy files of the catalogue {@code filter} accepts, in file
+     * order. {@code filter} is run on the mapped records, only the entries
+     * accepted are copied.
+     */
+    public synchronized List<Entry> query(final Predicate<Entry> filter) throws IOException {
+        try (FileLock lock = lockShared()) {
+            final List<Entry> found = new ArrayList<>();
+            for (final int offset : live) {
+                final Entry entry = new Entry(mapped, offset);
+                if (entry.isValid() && filter.test(entry)) found.add(entry.copy());
+            }
+            return found;
+        }
+    }
+
+    /** All valid sqy files of the catalogue. */
+    public List<Entry> entries() throws IOException {
+        return query(e -> true);
+    }
+
+    /** The entry of {@code file} or {@code null} if it is not catalogued. */
+    public Entry get(final File file) throws IOException {
+        final String name = file.toPath().toAbsolutePath().normalize().toString();
+        final List<Entry> found = query(e -> e.getPath().equals(name));
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /** number of valid sqy files catalogued */
+    public synchronized int size() throws IOException {
+        try (FileLock lock = lockShared()) {
+            int n = 0;
+            for (final int offset : live) {
+                if ((mapped.get(offset + 4) & INVALID) == 0) n++;
+            }
+            return n;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+        live = new int[0];
+    }
+
+    /**
+     * A catalogued file. Entries hold a copy of their record, only the
+     * fields asked for are decoded, so they stay valid whatever happens to
+     * the catalogue later on.
+     */
+    public static final class Entry {
+
+        private final ByteBuffer buffer;
+        private final int offset;
+
+        Entry(final ByteBuffer buffer, final int offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+
+        /** this entry with its own copy of the record */
+        Entry copy() {
+            final ByteBuffer record = buffer.duplicate();
+            record.position(offset).limit(offset + buffer.getInt(offset));
+            final ByteBuffer own = ByteBuffer.allocate(record.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+            own.put(record).flip();
+            return new Entry(own, 0);
+        }
+
+        boolean isValid() {
+            return (buffer.get(offset + 4) & INVALID) == 0;
+        }
+
+        /** stored as independently encoded slabs, see {@link SlabIndex} */
+        public boolean isChunked() {
+            return (buffer.get(offset + 4) & CHUNKED) != 0;
+        }
+
+        /** bytes per decoded pixel */
+        public int getSizeof() {
+            return buffer.get(offset + 5) & 0xff;
+        }
+
+        public int getNDims() {
+            return buffer.get(offset + 6) & 0xff;
+        }
+
+        /** modification time in milliseconds since the epoch, as catalogued */
+        public long getLastModified() {
+            return buffer.getLong(offset + 8);
+        }
+
+        /** size of the file in bytes */
+        public long getCompressedSize() {
+            return buffer.getLong(offset + 16);
+        }
+
+        /** the decoded shape, slowest varying dimension first (i.e. z, y, x) */
+        public long[] getShape() {
+            final long[] shape = new long[getNDims()];
+            for (int d = 0; d < shape.length; d++) {
+                shape[d] = buffer.getLong(offset + RECORD_FIXED_SIZE + 8 * d);
+            }
+            return shape;
+        }
+
+        private long extent(final int fromLast) {
+            final int ndims = getNDims();
+            return ndims < fromLast ? 1 :
+                buffer.getLong(offset + RECORD_FIXED_SIZE + 8 * (ndims - fromLast));
+        }
+
+        public long getSizeX() {
+            return extent(1);
+        }
+
+        public long getSizeY() {
+            return extent(2);
+        }
+
+        public long getSizeZ() {
+            return extent(3);
+        }
+
+        /** size of the decoded volume in bytes */
+        public long getDecodedBytes() {
+            long bytes = getSizeof();
+            for (final long extent : getShape()) bytes *= extent;
+            return bytes;
+        }
+
+        public String getPath() {
+            return string(0);
+        }
+
+        public File getFile() {
+            return new File(getPath());
+        }
+
+        public String getType() {
+            return string(1);
+        }
+
+        public String getPipeline() {
+            return string(2);
+        }
+
+        /** the {@code index}-th string of the record */
+        private String string(final int index) {
+            int at = offset + RECORD_FIXED_SIZE + 8 * getNDims();
+            for (int i = 0; i < index; i++) {
+                final int length = buffer.getShort(at) & 0xffff;
+                at += 2 + (length == NO_STRING ? 0 : length);
+            }
+            final int length = buffer.getShort(at) & 0xffff;
+            if (length == NO_STRING) return null;
+
+            final byte[] bytes = new byte[length];
+            final ByteBuffer view = buffer.duplicate();
+            view.position(at + 2);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return getPath() + " " + Arrays.toString(getShape()) + " x " + getSizeof() +
+                " Bytes, " + getPipeline();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+import io.scif.ImageMetadata;
+import io.scif.util.FormatTools;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Metadata;
+import de.mpicbg.sqeazyio.SqeazyFormat.Reader;
+
+/**
+ * Lazy imglib2 views of sqy files.
+ * <p>
+ * Instead of materializing the whole image like {@code ImgOpener}, the
+ * returned {@link CachedCellImg} loads Z slabs of full planes on first access.
+ * For chunked files (see {@link SlabIndex}) a cell is one slab of the file, so
+ * only the slabs viewed are ever decoded. Plain files are decoded once (and
+ * shared through the {@link DecodedVolumeCache}), the cells are copied from
+ * the decoded volume. The dimensions are X, Y, Z, followed by channel and
+ * time for multi-file datasets (see {@link SqyDataset}). Pyramid levels (see
+ * {@link SqyPyramid}) are opened by their image index. The pixel type is
+ * that of the reader's planes, i.e. the one requested through
+ * {@link SqeazyFormat#PARSER_PIXEL_TYPE} if set.
+ * </p>
+ * <p>
+ * Cells are soft referenced by default, i.e. dropped under memory pressure,
+ * or held in a cache bounded to a number of cells. The {@link Reader} has to
+ * stay open while the image is in use.
+ * </p>
+ */
+public final class SqyCellImgs {
+
+    /** cell size aimed at for plain files, in bytes */
+    static final long TARGET_CELL_BYTES = 16L << 20;
+
+    /** the largest cell, as a java array (and a heap ByteBuffer) */
+    static final long MAX_CELL_BYTES = Integer.MAX_VALUE - 8;
+
+    private SqyCellImgs() {}
+
+    /** A soft referenced cell image of the image {@code reader} was opened on. */
+    public static <T extends NativeType<T>> CachedCellImg<T, ?> open(final Reader reader) {
+        return open(reader, CacheType.SOFTREF, 0);
+    }
+
+    /**
+     * A cell image of the image {@code reader} was opened on.
+     *
+     * @param cacheType {@link CacheType#SOFTREF} to let the garbage collector
+     *            drop cells, {@link CacheType#BOUNDED} to keep at most
+     *            {@code maxCells} of them
+     */
+    public static <T extends NativeType<T>> CachedCellImg<T, ?> open(final Reader reader,
+                                                                     final CacheType cacheType,
+                                                                     final long maxCells)
+    {
+        return open(reader, 0, reader.getMetadata(), cacheType, maxCells);
+    }
+
+    /**
+     * A cell image of image {@code imageIndex} of {@code reader}, i.e. of
+     * pyramid level {@code imageIndex} for indices above 0.
+     *
+     * @see #open(Reader, CacheType, long)
+     */
+    public static <T extends NativeType<T>> CachedCellImg<T, ?> open(final Reader reader,
+                                                                     final int imageIndex,
+                                                                     final CacheType cacheType,
+                                                                     final long maxCells)
+        throws IOException, FormatException
+    {
+        return open(reader, imageIndex, reader.getMetadata().levelOf(imageIndex), cacheType, maxCells);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends NativeType<T>> CachedCellImg<T, ?> open(final Reader reader,
+                                                                      final int imageIndex,
+                                                                      final Metadata meta,
+                                                                      final CacheType cacheType,
+                                                                      final long maxCells)
+    {
+        final int sizeof = meta.getPixelSize();
+        if (sizeof != 1 && sizeof != 2) {
+            throw new IllegalArgumentException("unsupported pixel size " + sizeof);
+        }
+
+        final ImageMetadata iMeta = reader.getMetadata().get(imageIndex);
+        final int bytesPerPixel = FormatTools.getBytesPerPixel(iMeta.getPixelType());
+        final long planeBytes = (long) meta.getSizeX() * meta.getSizeY() * bytesPerPixel;
+        if (planeBytes > MAX_CELL_BYTES) {
+            throw new IllegalArgumentException("a plane of " + planeBytes +
+                                               " Bytes exceeds a cell, which holds at most " +
+                                               MAX_CELL_BYTES + " Bytes");
+        }
+
+        final long[] dimensions = dimensions(meta);
+        final int[] cellDimensions = new int[dimensions.length];
+        cellDimensions[0] = meta.getSizeX();
+        cellDimensions[1] = meta.getSizeY();
+        cellDimensions[2] = cellDepth(meta, bytesPerPixel);
+        for (int d = 3; d < cellDimensions.length; d++) cellDimensions[d] = 1;
+
+        ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+            .cellDimensions(cellDimensions)
+            .cacheType(cacheType);
+        if (cacheType == CacheType.BOUNDED) {
+            options = options.maxCacheSize(Math.max(1, maxCells));
+        }
+
+        final T type = (T) type(iMeta.getPixelType());
+        return new ReadOnlyCachedCellImgFactory(options)
+            .create(dimensions, type, new SlabLoader<T>(reader, imageIndex, meta));
+    }
+
+    /** the imglib2 type of planes of {@code pixelType} */
+    static NativeType<?> type(final int pixelType) {
+        switch (pixelType) {
+            case FormatTools.UINT8:
+                return new UnsignedByteType();
+            case FormatTools.UINT16:
+                return new UnsignedShortType();
+            case FormatTools.INT32:
+                return new IntType();
+            case FormatTools.UINT32:
+                return new UnsignedIntType();
+            case FormatTools.FLOAT:
+                return new FloatType();
+            case FormatTools.DOUBLE:
+                return new DoubleType();
+            default:
+                throw new IllegalArgumentException("unsupported pixel type " +
+                                                   FormatTools.getPixelTypeString(pixelType));
+        }
+    }
+
+    /** X, Y, Z and, for datasets, C and T */
+    static long[] dimensions(final Metadata meta) {
+        final long sizeZ = Math.max(meta.getSizeZ(), 1);
+        if (!meta.isDataset()) {
+            return new long[] { meta.getSizeX(), meta.getSizeY(), sizeZ };
+        }
+        return new long[] { meta.getSizeX(), meta.getSizeY(), sizeZ,
+            meta.getSizeC(), meta.getSizeT() };
+    }
+
+    /**
+     * Planes per cell: the slab depth of chunked files, otherwise as many
+     * planes as fit into {@link #TARGET_CELL_BYTES}. Cells never exceed what
+     * a java array (and a heap ByteBuffer) can hold.
+     */
+    static int cellDepth(final Metadata meta) {
+        return cellDepth(meta, meta.getPixelSize());
+    }
+
+    /** planes per cell for pixels converted to {@code bytesPerPixel} */
+    static int cellDepth(final Metadata meta, final int bytesPerPixel) {
+        final long sizeZ = Math.max(meta.getSizeZ(), 1);
+        final long planeBytes = Math.max(1, (long) meta.getSizeX() * meta.getSizeY() * bytesPerPixel);
+        final long depth = meta.isChunked() ? meta.getSlabIndex().get(0).getZCount() :
+            TARGET_CELL_BYTES / planeBytes;
+        return (int) Math.max(1, Math.min(Math.min(sizeZ, depth), MAX_CELL_BYTES / planeBytes));
+    }
+
+    /** Fills a cell with the planes it covers, in one bulk read. */
+    private static final class SlabLoader<T extends NativeType<T>> implements CellLoader<T> {
+
+        private final Reader reader;
+        private final int imageIndex;
+        private final long sizeZ;
+        private final long sizeC;
+
+        SlabLoader(final Reader reader, final int imageIndex, final Metadata meta) {
+            this.reader = reader;
+            this.imageIndex = imageIndex;
+            this.sizeZ = Math.max(meta.getSizeZ(), 1);
+            this.sizeC = meta.getSizeC();
+        }
+
+        @Override
+        public void load(final SingleCellArrayImg<T, ?> cell) throws Exception {
+            final long z = cell.min(2);
+            final int planes = (int) cell.dimension(2);
+            final long c = cell.numDimensions() > 3 ? cell.min(3) : 0;
+            final long t = cell.numDimensions() > 4 ? cell.min(4) : 0;
+            final long planeIndex = z + sizeZ * (c + sizeC * t);
+
+            // the planes are copied (and converted) straight into the cell's array
+            final Object storage = ((ArrayDataAccess<?>) cell.update(null)).getCurrentStorageArray();
+            final Buffer dest;
+            if (storage instanceof byte[]) dest = ByteBuffer.wrap((byte[]) storage);
+            else if (storage instanceof short[]) dest = ShortBuffer.wrap((short[]) storage);
+            else if (storage instanceof int[]) dest = IntBuffer.wrap((int[]) storage);
+            else if (storage instanceof float[]) dest = FloatBuffer.wrap((float[]) storage);
+            else dest = DoubleBuffer.wrap((double[]) storage);
+            read(planeIndex, planes, dest);
+        }
+
+        private void read(final long planeIndex, final int planes, final Buffer dest)
+            throws FormatException, IOException
+        {
+            // the reader is shared by all loader threads, it reads concurrently
+            int read = 0;
+            while (read < planes) {
+                final int n = reader.openPlanes(imageIndex, planeIndex + read, planes - read, dest);
+                if (n == 0) {
+                    throw new IOException("no planes read at plane " + (planeIndex + read));
+                }
+                read += n;
+            }
+        }
+    }
+}
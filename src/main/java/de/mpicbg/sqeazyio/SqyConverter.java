@@ -0,0 +1,296 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+import io.scif.ImageMetadata;
+import io.scif.Plane;
+import io.scif.Reader;
+import io.scif.SCIFIO;
+import io.scif.Writer;
+import io.scif.config.SCIFIOConfig;
+import io.scif.util.FormatTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+
+import org.scijava.Context;
+
+/**
+ * Converts images of any SCIFIO supported format (e.g. TIFF stacks) to sqy.
+ * <p>
+ * Whole directories are converted by a bounded {@link ForkJoinPool}. As each
+ * conversion holds the complete volume (plus its encoded form) in memory, a
+ * global memory budget limits how many conversions run at the same time: a
+ * conversion only starts once its estimated footprint fits into the budget.
+ * A single file larger than the budget is converted on its own. The cores not
+ * used by parallel conversions are given to the sqeazy encoder.
+ * </p>
+ * <p>
+ * Every file is written under a temporary name ({@code .name.part.sqy}) in
+ * the output directory and only renamed to its destination once it is
+ * complete, failed conversions leave no destination behind. Destination files
+ * that are newer than their source are skipped, so an interrupted run can
+ * simply be restarted.
+ * </p>
+ */
+public class SqyConverter {
+
+    private static final String PARTIAL_SUFFIX = ".part.sqy";
+
+    private final SCIFIO scifio;
+
+    private String pattern = "*.{tif,tiff,TIF,TIFF}";
+    private String pipeline = SqeazyFormat.DEFAULT_PIPELINE;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+
+    public SqyConverter(final Context context) {
+        this.scifio = new SCIFIO(context);
+    }
+
+    public SqyConverter setPattern(final String pattern) {
+        this.pattern = pattern;
+        return this;
+    }
+
+    public SqyConverter setPipeline(final String pipeline) {
+        this.pipeline = pipeline;
+        return this;
+    }
+
+    public SqyConverter setParallelism(final int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /** bytes all conversions running at the same time may occupy together */
+    public SqyConverter setMemoryBudget(final long bytes) {
+        this.memoryBudget = Math.max(1 << 20, bytes);
+        return this;
+    }
+
+    /**
+     * Converts all files in {@code inputDirectory} matching the glob pattern to
+     * .sqy files of the same base name in {@code outputDirectory}. Files
+     * sharing a base name (e.g. {@code a.tif} and {@code a.tiff}) are skipped
+     * with a warning, as are files of pixel types sqy cannot store (only
+     * uint8 and uint16 are supported).
+     *
+     * @return the files written
+     */
+    public List<File> convertDirectory(final File inputDirectory,
+                                       final File outputDirectory) throws IOException
+    {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("unable to create " + outputDirectory);
+        }
+
+        // sources sharing a base name (a.tif, a.tiff) would be written to the
+        // same destination, none of them is converted
+        final Map<String, List<File>> byName = new TreeMap<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(inputDirectory.toPath(), pattern)) {
+            for (final Path p : dir) {
+                if (!Files.isRegularFile(p)) continue;
+                byName.computeIfAbsent(baseName(p.toFile()), k -> new ArrayList<>()).add(p.toFile());
+            }
+        }
+        final List<File> sources = new ArrayList<>();
+        for (final Map.Entry<String, List<File>> e : byName.entrySet()) {
+            if (e.getValue().size() == 1) sources.add(e.getValue().get(0));
+            else scifio.log().warn("skipping " + e.getValue() + ", they would all be written to " +
+                                   e.getKey() + ".sqy");
+        }
+
+        // budget in MB, so that it fits the int permits of a semaphore
+        final int budgetMB = (int) Math.min(Integer.MAX_VALUE, memoryBudget >> 20);
+        final Semaphore budget = new Semaphore(budgetMB, true);
+        final int encoderThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / parallelism);
+
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        final List<ForkJoinTask<File>> tasks = new ArrayList<>();
+        try {
+            for (final File source : sources) {
+                final File dest = new File(outputDirectory, baseName(source) + ".sqy");
+                tasks.add(pool.submit(() -> convert(source, dest, budget, budgetMB, encoderThreads)));
+            }
+
+            final List<File> written = new ArrayList<>();
+            for (final ForkJoinTask<File> task : tasks) {
+                try {
+                    final File dest = task.get();
+                    if (dest != null) written.add(dest);
+                }
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("conversion interrupted", e);
+                }
+                catch (final ExecutionException e) {
+                    scifio.log().error("conversion failed", e.getCause());
+                }
+            }
+            return written;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Converts a single file using all cores for the encoder. */
+    public void convert(final File source, final File dest) throws IOException,
+        FormatException
+    {
+        try {
+            write(source, dest, null, 0, Runtime.getRuntime().availableProcessors());
+        }
+        catch (final InterruptedException e) {
+            // nothing waits without a budget
+            Thread.currentThread().interrupt();
+            throw new IOException("conversion interrupted", e);
+        }
+    }
+
+    private File convert(final File source, final File dest,
+                         final Semaphore budget, final int budgetMB,
+                         final int encoderThreads) throws IOException, FormatException,
+        InterruptedException
+    {
+        if (dest.isFile() && dest.lastModified() >= source.lastModified()) {
+            scifio.log().info("skipping " + source + ", " + dest + " is up to date");
+            return null;
+        }
+
+        write(source, dest, budget, budgetMB, encoderThreads);
+        return dest;
+    }
+
+    /**
+     * Writes {@code source} to {@code dest} once its footprint fits into
+     * {@code budget} ({@code null} to start right away).
+     */
+    private void write(final File source, final File dest, final Semaphore budget,
+                       final int budgetMB, final int encoderThreads)
+        throws IOException, FormatException, InterruptedException
+    {
+        final Reader reader = scifio.initializer().initializeReader(source.getAbsolutePath());
+        try {
+            final ImageMetadata iMeta = reader.getMetadata().get(0);
+            if (reader.getImageCount() > 1) {
+                scifio.log().warn(source + " contains " + reader.getImageCount() +
+                                  " images, only the first one is converted");
+            }
+            if (iMeta.getPlanarAxisCount() > 2) {
+                throw new FormatException(source + " has interleaved planes, which sqy cannot store");
+            }
+            if (iMeta.getPixelType() != FormatTools.UINT8 && iMeta.getPixelType() != FormatTools.UINT16) {
+                throw new FormatException(source + " holds " +
+                                          FormatTools.getPixelTypeString(iMeta.getPixelType()) +
+                                          " pixels, sqy files hold uint8 or uint16 only");
+            }
+
+            final int neededMB = budget == null ? 0 :
+                (int) Math.max(1, Math.min(budgetMB, (2 * iMeta.getSize()) >> 20));
+            if (budget != null) budget.acquire(neededMB);
+            try {
+                write(reader, dest, encoderThreads);
+            }
+            finally {
+                if (budget != null) budget.release(neededMB);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        scifio.log().info("converted " + source + " to " + dest);
+    }
+
+    private void write(final Reader reader, final File dest, final int encoderThreads)
+        throws IOException, FormatException
+    {
+        final SCIFIOConfig config = new SCIFIOConfig();
+        SqeazyFormat.writerSetPipeline(config, pipeline);
+        SqeazyFormat.writerSetThreads(config, encoderThreads);
+
+        final File partial = partialFile(dest);
+        boolean complete = false;
+        try {
+            final Writer writer = scifio.initializer().initializeWriter(reader.getMetadata(),
+                                                                        partial.getAbsolutePath(),
+                                                                        config);
+            try {
+                final long planeCount = reader.getPlaneCount(0);
+                for (long p = 0; p < planeCount; p++) {
+                    final Plane plane = reader.openPlane(0, p);
+                    writer.savePlane(0, p, plane);
+                }
+            }
+            finally {
+                writer.close();
+            }
+
+            // dest only appears once the writer completed the file
+            Files.move(partial.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+            complete = true;
+        }
+        finally {
+            if (!complete) Files.deleteIfExists(partial.toPath());
+        }
+    }
+
+    /**
+     * The file {@code dest} is written to before it is renamed, in the same
+     * directory so that the rename is atomic. Partial files left by a killed
+     * run are overwritten by the next one.
+     */
+    private static File partialFile(final File dest) {
+        return new File(dest.getAbsoluteFile().getParentFile(), "." + baseName(dest) + PARTIAL_SUFFIX);
+    }
+
+    /** if {@code name} is the name of a file still being written by a conversion */
+    static boolean isPartialFile(final String name) {
+        return name.startsWith(".") && name.endsWith(PARTIAL_SUFFIX);
+    }
+
+    private static String baseName(final File file) {
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Command line entry point:
+     * {@code SqyConverter <input dir> <output dir> [glob] [pipeline] [parallelism] [budget MB]}
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: SqyConverter <input dir> <output dir> [glob] [pipeline] [parallelism] [memory budget in MB]");
+            System.exit(1);
+        }
+
+        final Context context = new Context();
+        try {
+            final SqyConverter converter = new SqyConverter(context);
+            if (args.length > 2) converter.setPattern(args[2]);
+            if (args.length > 3) converter.setPipeline(args[3]);
+            if (args.length > 4) converter.setParallelism(Integer.parseInt(args[4]));
+            if (args.length > 5) converter.setMemoryBudget(Long.parseLong(args[5]) << 20);
+
+            final List<File> written = converter.convertDirectory(new File(args[0]), new File(args[1]));
+            System.out.println("wrote " + written.size() + " sqy file(s) to " + args[1]);
+        }
+        finally {
+            context.dispose();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package de.mpicbg.sqeazyio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A multi-channel and/or time-lapse dataset stored as one sqy file per
+ * channel and time point.
+ * <p>
+ * Files belong to the same dataset if their names only differ in the numbers
+ * following a {@code t} (time point) or {@code c} (channel) token, e.g.
+ * {@code embryo_t0001_c1.sqy}, {@code embryo_t0001_c2.sqy},
+ * {@code embryo_t0002_c1.sqy}, ... Tokens are separated by {@code _}, {@code -}
+ * or {@code .} from the rest of the name; a missing token counts as 0.
+ * Channels and time points are numbered in ascending order of their tokens,
+ * every combination has to be present.
+ * </p>
+ */
+public final class SqyDataset {
+
+    private static final Pattern TOKEN =
+        Pattern.compile("(?<=^|[_.\\-])([cCtT])(\\d+)(?=[_.\\-]|$)");
+
+    private static final String SUFFIX = ".sqy";
+
+    private final File[] files;
+    private final int sizeC;
+    private final int sizeT;
+
+    private SqyDataset(final File[] files, final int sizeC, final int sizeT) {
+        this.files = files;
+        this.sizeC = sizeC;
+        this.sizeT = sizeT;
+    }
+
+    public int getSizeC() {
+        return sizeC;
+    }
+
+    public int getSizeT() {
+        return sizeT;
+    }
+
+    /** number of files, i.e. channels times time points */
+    public int size() {
+        return files.length;
+    }
+
+    public File getFile(final int c, final int t) {
+        if (c < 0 || c >= sizeC || t < 0 || t >= sizeT) {
+            throw new IndexOutOfBoundsException("no file for channel " + c +
+                                                " and time point " + t + " in " + this);
+        }
+        return files[c + sizeC * t];
+    }
+
+    /** all files, channels varying fastest */
+    public List<File> getFiles() {
+        return Collections.unmodifiableList(Arrays.asList(files));
+    }
+
+    @Override
+    public String toString() {
+        return "SqyDataset[" + sizeC + " channel(s) x " + sizeT + " time point(s), " +
+            files[0].getName() + ", ...]";
+    }
+
+    // -- Discovery --
+
+    /**
+     * The dataset {@code member} belongs to, made up of the sqy files next to
+     * it that share its name template.
+     */
+    public static SqyDataset find(final File member) throws IOException {
+        final File dir = member.getAbsoluteFile().getParentFile();
+        final String template = template(member.getName());
+
+        final List<File> files = new ArrayList<>();
+        for (final File f : list(dir)) {
+            if (template.equals(template(f.getName()))) files.add(f);
+        }
+        return of(files);
+    }
+
+    /** Arranges {@code files} by their channel and time point tokens. */
+    public static SqyDataset of(final List<File> files) throws IOException {
+        if (files.isEmpty()) {
+            throw new IOException("a dataset needs at least one file");
+        }
+
+        final TreeSet<Long> cs = new TreeSet<>();
+        final TreeSet<Long> ts = new TreeSet<>();
+        for (final File f : files) {
+            cs.add(token(f.getName(), 'c'));
+            ts.add(token(f.getName(), 't'));
+        }
+
+        final List<Long> cIndex = new ArrayList<>(cs);
+        final List<Long> tIndex = new ArrayList<>(ts);
+        final File[] grid = new File[cs.size() * ts.size()];
+        for (final File f : files) {
+            final int c = cIndex.indexOf(token(f.getName(), 'c'));
+            final int t = tIndex.indexOf(token(f.getName(), 't'));
+            final int i = c + cs.size() * t;
+            if (grid[i] != null) {
+                throw new IOException(grid[i].getName() + " and " + f.getName() +
+                                      " are the same channel and time point");
+            }
+            grid[i] = f;
+        }
+
+        for (int i = 0; i < grid.length; i++) {
+            if (grid[i] == null) {
+                throw new IOException("dataset of " + files.get(0).getName() +
+                                      " lacks channel " + cIndex.get(i % cs.size()) +
+                                      " of time point " + tIndex.get(i / cs.size()));
+            }
+        }
+
+        return new SqyDataset(grid, cs.size(), ts.size());
+    }
+
+    private static List<File> list(final File dir) throws IOException {
+        final File[] entries = dir.listFiles();
+        if (entries == null) throw new IOException("unable to list " + dir);
+
+        final List<File> files = new ArrayList<>();
+        for (final File f : entries) {
+            if (f.isFile() && f.getName().toLowerCase().endsWith(SUFFIX) &&
+                !SqyPyramid.isLevelFile(f.getName()))
+            {
+                files.add(f);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /** the file name with the numbers of all c/t tokens blanked */
+    static String template(final String name) {
+        final Matcher m = TOKEN.matcher(baseName(name));
+        final StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            m.appendReplacement(sb, m.group(1).toLowerCase() + "#");
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    /** the number following the {@code kind} token, 0 if there is none */
+    static long token(final String name, final char kind) {
+        final Matcher m = TOKEN.matcher(baseName(name));
+        while (m.find()) {
+            if (Character.toLowerCase(m.group(1).charAt(0)) == kind) {
+                return Long.parseLong(m.group(2));
+            }
+        }
+        return 0;
+    }
+
+    private static String baseName(final String name) {
+        return name.toLowerCase().endsWith(SUFFIX) ?
+            name.substring(0, name.length() - SUFFIX.length()) : name;
+    }
+}
@@ -0,0 +1,439 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bridj.CLong;
+import org.bridj.Pointer;
+
+import static org.bridj.Pointer.*;
+
+import sqeazy.bindings.SqeazyLibrary;
+
+/**
+ * The parsed header of a sqy file.
+ * <p>
+ * A sqy file starts with a JSON-like text header (opening with <code>{</code>)
+ * that is terminated by a <code>|</code>, the encoded payload follows. Only
+ * the bytes up to the terminator are ever read to detect and parse a header,
+ * and they are parsed in Java, so probing files needs no native library.
+ * Headers of local files are cached (keyed like the
+ * {@link DecodedVolumeCache}), so the {@link SqeazyFormat.Checker} and the
+ * {@link SqeazyFormat.Parser} read every file header only once.
+ * </p>
+ */
+public final class SqyHeader {
+
+    /** headers larger than this are not considered sqy headers */
+    public static final int MAX_HEADER_SIZE = 16 << 10;
+
+    /** bytes read on the first attempt to find the header terminator */
+    private static final int PROBE_SIZE = 1 << 10;
+
+    private static final int MAX_CACHED_HEADERS = 4096;
+
+    private static final Map<FileKey, SqyHeader> CACHE =
+        new LinkedHashMap<FileKey, SqyHeader>(64, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<FileKey, SqyHeader> eldest) {
+                return size() > MAX_CACHED_HEADERS;
+            }
+        };
+
+    private final long headerSize;
+    private final int sizeof;
+    private final long[] shape;
+    private final String pipeline;
+    private final String type;
+
+    SqyHeader(final long headerSize, final int sizeof, final long[] shape,
+              final String pipeline, final String type)
+    {
+        this.headerSize = headerSize;
+        this.sizeof = sizeof;
+        this.shape = shape.clone();
+        this.pipeline = pipeline;
+        this.type = type;
+    }
+
+    /** length of the header in bytes, i.e. the offset of the payload */
+    public long getHeaderSize() {
+        return headerSize;
+    }
+
+    /** bytes per decoded pixel */
+    public int getSizeof() {
+        return sizeof;
+    }
+
+    public int getNDims() {
+        return shape.length;
+    }
+
+    /** the decoded shape, slowest varying dimension first (i.e. z, y, x) */
+    public long[] getShape() {
+        return shape.clone();
+    }
+
+    public long getSizeX() {
+        return shape[shape.length - 1];
+    }
+
+    public long getSizeY() {
+        return shape.length > 1 ? shape[shape.length - 2] : 1;
+    }
+
+    public long getSizeZ() {
+        return shape.length > 2 ? shape[shape.length - 3] : 1;
+    }
+
+    public String getPipeline() {
+        return pipeline;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /** size of the decoded volume in bytes */
+    public long getDecodedBytes() {
+        long bytes = sizeof;
+        for (final long extent : shape) bytes *= extent;
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SqyHeader[" + Arrays.toString(shape) + " x " + sizeof +
+            " Bytes, " + pipeline + "]";
+    }
+
+    // -- Reading --
+
+    /**
+     * Reads the header of {@code stream}, served from the header cache for
+     * local files that did not change since they were last read.
+     *
+     * @return the header or {@code null} if {@code stream} holds no sqy data
+     */
+    public static SqyHeader read(final RandomAccessInputStream stream)
+        throws IOException
+    {
+        final File file = EncodedInput.localFile(stream);
+        final FileKey key = file == null ? null : new FileKey(file);
+
+        if (key != null) {
+            synchronized (CACHE) {
+                final SqyHeader cached = CACHE.get(key);
+                if (cached != null) return cached;
+            }
+        }
+
+        final long start = System.nanoTime();
+        final byte[] bytes = readHeaderBytes(stream);
+        if (bytes == null) return null;
+
+        final SqyHeader header = parse(bytes);
+        SqyMetrics.getInstance().record(SqyMetrics.Stage.HEADER_PARSE, start);
+        if (header != null && key != null) {
+            synchronized (CACHE) {
+                CACHE.put(key, header);
+            }
+        }
+        return header;
+    }
+
+    /** Forgets all cached headers. */
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    /**
+     * Reads the raw header bytes, up to and including the terminating
+     * <code>|</code>. Anything not starting like a sqy header is rejected
+     * after the first few bytes.
+     *
+     * @return the header bytes or {@code null} if there is no sqy header
+     */
+    static byte[] readHeaderBytes(final RandomAccessInputStream stream)
+        throws IOException
+    {
+        final long length = stream.length();
+        final int limit = (int) Math.min(MAX_HEADER_SIZE, length);
+        if (limit < 2) return null;
+
+        final byte[] buffer = new byte[limit];
+        stream.seek(0);
+
+        int read = 0;
+        int wanted = Math.min(PROBE_SIZE, limit);
+        while (true) {
+            stream.readFully(buffer, read, wanted - read);
+
+            if (read == 0 && firstNonWhitespace(buffer, wanted) != '{') return null;
+
+            for (int i = read; i < wanted; i++) {
+                if (buffer[i] == '|') return Arrays.copyOf(buffer, i + 1);
+            }
+
+            read = wanted;
+            if (read == limit) return null;
+            wanted = Math.min(2 * wanted, limit);
+        }
+    }
+
+    private static int firstNonWhitespace(final byte[] bytes, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (!Character.isWhitespace(bytes[i])) return bytes[i];
+        }
+        return -1;
+    }
+
+    // -- Parsing --
+
+    private static final byte[] PIPENAME = ascii("pipename");
+    private static final byte[] RAW = ascii("raw");
+    private static final byte[] TYPE = ascii("type");
+    private static final byte[] RANK = ascii("rank");
+    private static final byte[] SHAPE = ascii("shape");
+    private static final byte[] DIM = ascii("dim");
+
+    /** objects of the header whose content is of interest */
+    private static final int OTHER = 0, ROOT = 1, RAW_OBJECT = 2, SHAPE_OBJECT = 3;
+
+    private static final int MAX_DEPTH = 16;
+
+    private static byte[] ascii(final String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Parses raw header bytes in Java, without the native library. The
+     * header is the JSON-like text up to and including the first
+     * <code>|</code>: the pipeline is taken from {@code pipename}, type and
+     * shape (slowest varying dimension first) from {@code raw}. The result
+     * matches what the native <code>SQY_Header_Size</code>,
+     * <code>SQY_Decompressed_Sizeof</code> and
+     * <code>SQY_Decompressed_Shape</code> report (see {@link #parseNative}).
+     *
+     * @return the header or {@code null} if {@code bytes} hold no valid header
+     */
+    static SqyHeader parse(final byte[] bytes) {
+        int end = 0;
+        while (end < bytes.length && bytes[end] != '|') end++;
+        if (end == bytes.length) return null;
+
+        final int[] scopes = new int[MAX_DEPTH];
+        int depth = 0;
+        int opening = ROOT;
+
+        String pipeline = null, type = null;
+        long rank = -1;
+        long[] dims = new long[4];
+        int ndims = 0;
+        boolean raw = false;
+
+        int i = 0;
+        while (i < end) {
+            final byte b = bytes[i];
+            if (b == '{') {
+                if (depth == MAX_DEPTH) return null;
+                scopes[depth++] = opening;
+                opening = OTHER;
+                i++;
+            }
+            else if (b == '}') {
+                if (depth == 0) return null;
+                depth--;
+                i++;
+            }
+            else if (b == '"') {
+                final int keyStart = i + 1;
+                final int keyEnd = closingQuote(bytes, keyStart, end);
+                if (keyEnd < 0) return null;
+
+                i = skipWhitespace(bytes, keyEnd + 1, end);
+                if (i == end || bytes[i] != ':') continue;
+                i = skipWhitespace(bytes, i + 1, end);
+                if (i == end) return null;
+
+                final int scope = depth == 0 ? OTHER : scopes[depth - 1];
+                if (bytes[i] == '{') {
+                    // the object is opened in the next iteration
+                    if (scope == ROOT && matches(bytes, keyStart, keyEnd, RAW)) {
+                        opening = RAW_OBJECT;
+                        raw = true;
+                    }
+                    else if (scope == RAW_OBJECT && matches(bytes, keyStart, keyEnd, SHAPE)) {
+                        opening = SHAPE_OBJECT;
+                    }
+                    continue;
+                }
+
+                // a quoted or bare value
+                final int valueStart, valueEnd;
+                if (bytes[i] == '"') {
+                    valueStart = i + 1;
+                    valueEnd = closingQuote(bytes, valueStart, end);
+                    if (valueEnd < 0) return null;
+                    i = valueEnd + 1;
+                }
+                else {
+                    valueStart = i;
+                    while (i < end && bytes[i] != ',' && bytes[i] != '}' &&
+                           !Character.isWhitespace(bytes[i])) i++;
+                    valueEnd = i;
+                }
+
+                if (scope == ROOT && matches(bytes, keyStart, keyEnd, PIPENAME)) {
+                    pipeline = new String(bytes, valueStart, valueEnd - valueStart,
+                                          StandardCharsets.US_ASCII);
+                }
+                else if (scope == RAW_OBJECT && matches(bytes, keyStart, keyEnd, TYPE)) {
+                    type = new String(bytes, valueStart, valueEnd - valueStart,
+                                      StandardCharsets.US_ASCII);
+                }
+                else if (scope == RAW_OBJECT && matches(bytes, keyStart, keyEnd, RANK)) {
+                    rank = number(bytes, valueStart, valueEnd);
+                }
+                else if (scope == SHAPE_OBJECT && matches(bytes, keyStart, keyEnd, DIM)) {
+                    final long dim = number(bytes, valueStart, valueEnd);
+                    if (dim < 0) return null;
+                    if (ndims == dims.length) dims = Arrays.copyOf(dims, 2 * ndims);
+                    dims[ndims++] = dim;
+                }
+            }
+            else {
+                i++;
+            }
+        }
+
+        final int sizeof = sizeofType(type);
+        if (!raw || depth != 0 || sizeof == 0 || ndims == 0 || (rank >= 0 && rank != ndims)) {
+            return null;
+        }
+        return new SqyHeader(end + 1, sizeof, Arrays.copyOf(dims, ndims), pipeline, type);
+    }
+
+    private static int closingQuote(final byte[] bytes, int i, final int end) {
+        while (i < end) {
+            if (bytes[i] == '\\') i += 2;
+            else if (bytes[i] == '"') return i;
+            else i++;
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(final byte[] bytes, int i, final int end) {
+        while (i < end && Character.isWhitespace(bytes[i])) i++;
+        return i;
+    }
+
+    private static boolean matches(final byte[] bytes, final int start, final int end,
+                                   final byte[] key)
+    {
+        if (end - start != key.length) return false;
+        for (int k = 0; k < key.length; k++) {
+            if (bytes[start + k] != key[k]) return false;
+        }
+        return true;
+    }
+
+    /** the non-negative decimal in {@code bytes[start, end)}, -1 if there is none */
+    private static long number(final byte[] bytes, final int start, final int end) {
+        if (start == end || end - start > 18) return -1;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9') return -1;
+            value = 10 * value + (bytes[i] - '0');
+        }
+        return value;
+    }
+
+    /** bytes per pixel of the sqeazy type name, 0 if it is unknown */
+    static int sizeofType(final String type) {
+        if (type == null) return 0;
+        switch (type) {
+            case "uint8": case "int8": case "char": case "unsigned char":
+                return 1;
+            case "uint16": case "int16": case "short": case "unsigned short":
+                return 2;
+            case "uint32": case "int32": case "int": case "unsigned int": case "float":
+                return 4;
+            case "uint64": case "int64": case "double":
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Parses raw header bytes with the native sqeazy functions, kept as the
+     * reference for {@link #parse}.
+     *
+     * @return the header or {@code null} if sqeazy does not accept them
+     */
+    static SqyHeader parseNative(final byte[] bytes) {
+        final Pointer<Byte> bHdr = pointerToBytes(bytes);
+        final Pointer<CLong> lLength = Pointer.allocateCLong().setCLong(bytes.length);
+        try {
+            int sqy_status = SqeazyLibrary.SQY_Header_Size(bHdr, lLength);
+            final long headerSize = lLength.getCLong();
+            if (sqy_status != 0 || headerSize == 0) return null;
+
+            lLength.setCLong(headerSize);
+            sqy_status = SqeazyLibrary.SQY_Decompressed_Sizeof(bHdr, lLength);
+            final int sizeof = (int) lLength.getCLong();
+            if (sqy_status != 0 || sizeof == 0) return null;
+
+            lLength.setCLong(headerSize);
+            sqy_status = SqeazyLibrary.SQY_Decompressed_NDims(bHdr, lLength);
+            final int ndims = (int) lLength.getCLong();
+            if (sqy_status != 0 || ndims < 1) return null;
+
+            final Pointer<CLong> lShape = Pointer.allocateCLongs(ndims);
+            lShape.setCLongAtIndex(0, headerSize);
+            sqy_status = SqeazyLibrary.SQY_Decompressed_Shape(bHdr, lShape);
+            if (sqy_status != 0) return null;
+
+            final long[] shape = new long[ndims];
+            for (int d = 0; d < ndims; d++) {
+                shape[d] = lShape.getCLongAtIndex(d);
+            }
+            lShape.release();
+
+            final String text = new String(bytes, 0, (int) headerSize,
+                                           StandardCharsets.US_ASCII);
+            return new SqyHeader(headerSize, sizeof, shape,
+                                 stringValue(text, "pipename"),
+                                 stringValue(text, "type"));
+        }
+        finally {
+            bHdr.release();
+            lLength.release();
+        }
+    }
+
+    /** the quoted value of the first occurrence of {@code "key": "value"} */
+    static String stringValue(final String header, final String key) {
+        final int k = header.indexOf('"' + key + '"');
+        if (k < 0) return null;
+        final int colon = header.indexOf(':', k + key.length() + 2);
+        if (colon < 0) return null;
+        final int open = header.indexOf('"', colon);
+        if (open < 0) return null;
+        final int close = header.indexOf('"', open + 1);
+        return close < 0 ? null : header.substring(open + 1, close);
+    }
+}
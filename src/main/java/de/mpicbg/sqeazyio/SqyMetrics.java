@@ -0,0 +1,289 @@
+package de.mpicbg.sqeazyio;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide timings and throughput of reading sqy files.
+ * <p>
+ * Every {@link Stage} keeps a count, the total and maximum time and a
+ * histogram of its durations (power of two buckets in microseconds, bucket
+ * {@code i} counting durations below {@code 2^i} µs). Next to that the bytes
+ * read from disk, decoded and copied into planes are counted, together with
+ * the number of native decodes running. Recording is lock free and cheap
+ * enough for every plane read.
+ * </p>
+ * <p>
+ * The metrics are published as the MXBean {@value #OBJECT_NAME} once
+ * {@link #register()} was called (the {@link SqeazyMetricsService} does so)
+ * and can be read through that service as well.
+ * </p>
+ */
+public final class SqyMetrics implements SqyMetricsMXBean {
+
+    public static final String OBJECT_NAME = "de.mpicbg.sqeazyio:type=SqyMetrics";
+
+    static final int BUCKETS = 32;
+
+    /** The measured parts of reading a sqy file. */
+    public enum Stage {
+        /** reading and parsing a sqy header (cache misses only) */
+        HEADER_PARSE,
+        /**
+         * mapping or reading the encoded bytes handed to the decoder; pages
+         * of mapped files are only read from disk while decoding
+         */
+        FILE_READ,
+        /** the native sqeazy decode */
+        DECODE,
+        /** copying decoded pixels into planes or buffers */
+        PLANE_COPY
+    }
+
+    private static final SqyMetrics INSTANCE = new SqyMetrics();
+
+    private final Map<Stage, Timer> timers = new EnumMap<>(Stage.class);
+
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesEncoded = new LongAdder();
+    private final LongAdder bytesDecoded = new LongAdder();
+    private final LongAdder bytesCopied = new LongAdder();
+
+    private final AtomicInteger concurrentDecodes = new AtomicInteger();
+    private final AtomicInteger peakConcurrentDecodes = new AtomicInteger();
+
+    private boolean registered = false;
+
+    SqyMetrics() {
+        for (final Stage stage : Stage.values()) {
+            timers.put(stage, new Timer());
+        }
+    }
+
+    public static SqyMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    // -- Recording --
+
+    /** Records a {@code stage} that started at {@code startNanos} (see {@link System#nanoTime()}). */
+    public void record(final Stage stage, final long startNanos) {
+        timers.get(stage).add(System.nanoTime() - startNanos);
+    }
+
+    /** Records a file read of {@code bytes} that started at {@code startNanos}. */
+    public void recordRead(final long startNanos, final long bytes) {
+        record(Stage.FILE_READ, startNanos);
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * Records a copy out of the decoded data that started at
+     * {@code startNanos} and wrote {@code bytes} to its destination, i.e.
+     * counted after any pixel conversion.
+     */
+    public void recordCopy(final long startNanos, final long bytes) {
+        record(Stage.PLANE_COPY, startNanos);
+        bytesCopied.add(bytes);
+    }
+
+    /**
+     * Marks the start of a native decode.
+     *
+     * @return the start time to pass to {@link #decodeFinished}
+     */
+    public long decodeStarted() {
+        final int running = concurrentDecodes.incrementAndGet();
+        peakConcurrentDecodes.accumulateAndGet(running, Math::max);
+        return System.nanoTime();
+    }
+
+    /**
+     * Marks the end of a native decode of {@code encoded} into
+     * {@code decoded} bytes, {@code success} tells if the data counts.
+     */
+    public void decodeFinished(final long startNanos, final long encoded,
+                               final long decoded, final boolean success)
+    {
+        concurrentDecodes.decrementAndGet();
+        if (!success) return;
+        record(Stage.DECODE, startNanos);
+        bytesEncoded.add(encoded);
+        bytesDecoded.add(decoded);
+    }
+
+    // -- Queries --
+
+    public StageStatistics getStatistics(final Stage stage) {
+        return timers.get(stage).snapshot();
+    }
+
+    @Override
+    public StageStatistics getHeaderParse() {
+        return getStatistics(Stage.HEADER_PARSE);
+    }
+
+    @Override
+    public StageStatistics getFileRead() {
+        return getStatistics(Stage.FILE_READ);
+    }
+
+    @Override
+    public StageStatistics getDecode() {
+        return getStatistics(Stage.DECODE);
+    }
+
+    @Override
+    public StageStatistics getPlaneCopy() {
+        return getStatistics(Stage.PLANE_COPY);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesDecoded() {
+        return bytesDecoded.sum();
+    }
+
+    @Override
+    public long getBytesCopied() {
+        return bytesCopied.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        final long encoded = bytesEncoded.sum();
+        return encoded == 0 ? 0 : (double) bytesDecoded.sum() / encoded;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return DecodedVolumeCache.getInstance().getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return DecodedVolumeCache.getInstance().getMisses();
+    }
+
+    @Override
+    public long getCachedBytes() {
+        return DecodedVolumeCache.getInstance().getCachedBytes();
+    }
+
+    @Override
+    public long getPoolIdleBytes() {
+        return NativeBufferPool.getInstance().getIdleBytes();
+    }
+
+    @Override
+    public long getPoolHits() {
+        return NativeBufferPool.getInstance().getHits();
+    }
+
+    @Override
+    public long getPoolMisses() {
+        return NativeBufferPool.getInstance().getMisses();
+    }
+
+    @Override
+    public long getPoolLeaks() {
+        return NativeBufferPool.getInstance().getLeaks();
+    }
+
+    @Override
+    public int getConcurrentDecodes() {
+        return concurrentDecodes.get();
+    }
+
+    @Override
+    public int getPeakConcurrentDecodes() {
+        return peakConcurrentDecodes.get();
+    }
+
+    /** Starts counting from scratch, decodes still running stay counted. */
+    @Override
+    public void reset() {
+        for (final Timer timer : timers.values()) timer.reset();
+        bytesRead.reset();
+        bytesEncoded.reset();
+        bytesDecoded.reset();
+        bytesCopied.reset();
+        peakConcurrentDecodes.set(concurrentDecodes.get());
+    }
+
+    // -- JMX --
+
+    /**
+     * Publishes the metrics on the platform MBean server, unless they are
+     * already. Failures (e.g. a security manager refusing it) only mean the
+     * metrics are not available through JMX.
+     *
+     * @return true if the metrics are registered
+     */
+    public synchronized boolean register() {
+        if (registered) return true;
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+            registered = true;
+        }
+        catch (final JMException | SecurityException e) {
+            registered = false;
+        }
+        return registered;
+    }
+
+    /** Durations of one stage, updates only lock for a new maximum. */
+    private static final class Timer {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        private volatile long maxNanos = 0;
+
+        void add(final long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            histogram.incrementAndGet(bucket(nanos));
+            if (nanos > maxNanos) {
+                synchronized (this) {
+                    if (nanos > maxNanos) maxNanos = nanos;
+                }
+            }
+        }
+
+        StageStatistics snapshot() {
+            final long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) buckets[i] = histogram.get(i);
+            return new StageStatistics(count.sum(), totalNanos.sum(), maxNanos, buckets);
+        }
+
+        synchronized void reset() {
+            count.reset();
+            totalNanos.reset();
+            for (int i = 0; i < BUCKETS; i++) histogram.set(i, 0);
+            maxNanos = 0;
+        }
+    }
+
+    /** the histogram bucket of {@code nanos}: the bit length of its microseconds */
+    static int bucket(final long nanos) {
+        final long micros = Math.max(0, nanos / 1000);
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+}
@@ -0,0 +1,51 @@
+package de.mpicbg.sqeazyio;
+
+/**
+ * JMX view of the {@link SqyMetrics}. Times are reported in milliseconds,
+ * sizes in bytes.
+ */
+public interface SqyMetricsMXBean {
+
+    StageStatistics getHeaderParse();
+
+    StageStatistics getFileRead();
+
+    StageStatistics getDecode();
+
+    StageStatistics getPlaneCopy();
+
+    /** encoded bytes read from disk (or mapped) for decoding */
+    long getBytesRead();
+
+    /** bytes produced by the native decoder */
+    long getBytesDecoded();
+
+    /** bytes written into planes and buffers, in the pixel type returned */
+    long getBytesCopied();
+
+    /** decoded bytes per encoded byte over all decodes, 0 before the first one */
+    double getCompressionRatio();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCachedBytes();
+
+    /** idle bytes of the {@link NativeBufferPool} */
+    long getPoolIdleBytes();
+
+    /** allocations served from the {@link NativeBufferPool} without malloc */
+    long getPoolHits();
+
+    long getPoolMisses();
+
+    /** pooled buffers that became unreachable without being given back */
+    long getPoolLeaks();
+
+    int getConcurrentDecodes();
+
+    int getPeakConcurrentDecodes();
+
+    void reset();
+}
@@ -0,0 +1,293 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.ByteArrayPlane;
+import io.scif.FormatException;
+import io.scif.config.SCIFIOConfig;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.scijava.Context;
+
+import net.imglib2.FinalInterval;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Metadata;
+import de.mpicbg.sqeazyio.SqeazyFormat.Reader;
+import de.mpicbg.sqeazyio.SqeazyFormat.Writer;
+
+/**
+ * Downsampled resolution levels of a sqy file, stored as sidecar files.
+ * <p>
+ * Level {@code l} of {@code name.sqy} is the plain sqy file
+ * {@code name.Ll.sqy} next to it: X and Y are halved (rounding up) from one
+ * level to the next by averaging 2x2 pixels, Z is either kept or halved as
+ * well. The {@link SqeazyFormat.Parser} exposes the levels found as the
+ * image indices 1, 2, ... after the full resolution image 0, so viewers can
+ * read just the level on screen. Levels older than their file or not of the
+ * expected shape are ignored.
+ * </p>
+ * <p>
+ * Levels are built by {@link #build} or, at write time, by the
+ * {@link SqeazyFormat.Writer} if {@link SqeazyFormat#WRITER_PYRAMID_LEVELS}
+ * is configured. Every level is computed from the previous one.
+ * </p>
+ */
+public final class SqyPyramid {
+
+    private static final String SUFFIX = ".sqy";
+
+    private static final Pattern LEVEL = Pattern.compile(".*\\.L\\d+\\.sqy", Pattern.CASE_INSENSITIVE);
+
+    /** levels are added until both plane extents are at most this */
+    static final int MIN_EXTENT = 256;
+
+    private final List<File> files;
+    private final List<SqyHeader> headers;
+
+    private SqyPyramid(final List<File> files, final List<SqyHeader> headers) {
+        this.files = Collections.unmodifiableList(files);
+        this.headers = Collections.unmodifiableList(headers);
+    }
+
+    /** number of downsampled levels, the full resolution file not counted */
+    public int size() {
+        return files.size();
+    }
+
+    /** the file of level {@code level}, counting from 1 */
+    public File getFile(final int level) {
+        return files.get(level - 1);
+    }
+
+    /** the header of level {@code level}, counting from 1 */
+    public SqyHeader getHeader(final int level) {
+        return headers.get(level - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "SqyPyramid[" + files.size() + " level(s), " +
+            (files.isEmpty() ? "" : files.get(0).getName() + ", ...") + "]";
+    }
+
+    /** the sidecar file of level {@code level} of {@code file} */
+    public static File levelFile(final File file, final int level) {
+        final String name = file.getName();
+        final String base = name.toLowerCase().endsWith(SUFFIX) ?
+            name.substring(0, name.length() - SUFFIX.length()) : name;
+        return new File(file.getAbsoluteFile().getParentFile(), base + ".L" + level + SUFFIX);
+    }
+
+    /** if {@code name} is the name of a level sidecar rather than a sqy file of its own */
+    static boolean isLevelFile(final String name) {
+        return LEVEL.matcher(name).matches();
+    }
+
+    /** the extent of the next level along an axis */
+    static long halve(final long extent) {
+        return (extent + 1) / 2;
+    }
+
+    /** levels needed until both plane extents are at most {@link #MIN_EXTENT} */
+    static int defaultLevels(long sizeX, long sizeY) {
+        int levels = 0;
+        while (Math.max(sizeX, sizeY) > MIN_EXTENT) {
+            sizeX = halve(sizeX);
+            sizeY = halve(sizeY);
+            levels++;
+        }
+        return levels;
+    }
+
+    // -- Discovery --
+
+    /**
+     * The levels of {@code file} (whose header is {@code header}) that are
+     * up to date, {@code null} if there are none. Only headers are read.
+     */
+    public static SqyPyramid find(final Context context, final File file,
+                                  final SqyHeader header) throws IOException
+    {
+        final List<File> files = new ArrayList<>();
+        final List<SqyHeader> headers = new ArrayList<>();
+
+        SqyHeader previous = header;
+        for (int level = 1;; level++) {
+            final File f = levelFile(file, level);
+            if (!f.isFile() || f.lastModified() < file.lastModified()) break;
+
+            final SqyHeader h;
+            try (RandomAccessInputStream in = new RandomAccessInputStream(context, f.getAbsolutePath())) {
+                h = SqyHeader.read(in);
+            }
+            if (h == null || h.getSizeof() != header.getSizeof() ||
+                h.getSizeX() != halve(previous.getSizeX()) ||
+                h.getSizeY() != halve(previous.getSizeY()) ||
+                (h.getSizeZ() != previous.getSizeZ() && h.getSizeZ() != halve(previous.getSizeZ())))
+            {
+                break;
+            }
+            files.add(f);
+            headers.add(h);
+            previous = h;
+        }
+        return files.isEmpty() ? null : new SqyPyramid(files, headers);
+    }
+
+    // -- Building --
+
+    /**
+     * Writes {@code levels} downsampled levels of {@code file} (as many as
+     * {@link #defaultLevels} suggests if {@code levels} is negative), each
+     * encoded with the pipeline of {@code file}. Existing levels are
+     * replaced.
+     *
+     * @param downsampleZ halve Z along with X and Y
+     * @return the level files written
+     */
+    public static List<File> build(final Context context, final File file, final int levels,
+                                   final boolean downsampleZ) throws IOException, FormatException
+    {
+        final SqeazyFormat format = new SqeazyFormat();
+        format.setContext(context);
+
+        final List<File> written = new ArrayList<>();
+        File source = file;
+        for (int level = 1; levels < 0 || level <= levels; level++) {
+            final Reader reader = (Reader) format.createReader();
+            reader.setSource(new RandomAccessInputStream(context, source.getAbsolutePath()));
+            try {
+                final Metadata meta = reader.getMetadata();
+                if (levels < 0 && defaultLevels(meta.getSizeX(), meta.getSizeY()) == 0) break;
+                if (meta.getSizeX() == 1 && meta.getSizeY() == 1 &&
+                    (!downsampleZ || meta.getSizeZ() <= 1)) break;
+
+                final File dest = levelFile(file, level);
+                try {
+                    writeLevel(context, format, reader, dest, downsampleZ);
+                }
+                catch (final IOException | FormatException | RuntimeException e) {
+                    dest.delete();
+                    throw e;
+                }
+                written.add(dest);
+                source = dest;
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        // stale levels beyond the new ones would not match anymore anyway
+        for (int level = written.size() + 1; levelFile(file, level).isFile(); level++) {
+            levelFile(file, level).delete();
+        }
+        return written;
+    }
+
+    /** Writes the level following the one {@code reader} is open on to {@code dest}. */
+    private static void writeLevel(final Context context, final SqeazyFormat format,
+                                   final Reader reader, final File dest,
+                                   final boolean downsampleZ) throws IOException, FormatException
+    {
+        final Metadata meta = reader.getMetadata();
+        final int sizeX = meta.getSizeX(), sizeY = meta.getSizeY();
+        final int sizeZ = Math.max(meta.getSizeZ(), 1);
+        final int sizeof = meta.getPixelSize();
+        final int toX = (int) halve(sizeX), toY = (int) halve(sizeY);
+        final int toZ = downsampleZ ? (int) halve(sizeZ) : sizeZ;
+
+        final Metadata wMeta = (Metadata) format.createMetadata();
+        wMeta.setSizeX(toX);
+        wMeta.setSizeY(toY);
+        wMeta.setSizeZ(toZ);
+        wMeta.setPixelSize(sizeof);
+        wMeta.populateImageMetadata();
+
+        final SCIFIOConfig config = new SCIFIOConfig();
+        if (meta.getPipeline() != null) SqeazyFormat.writerSetPipeline(config, meta.getPipeline());
+
+        final Writer writer = (Writer) format.createWriter();
+        writer.setMetadata(wMeta);
+        writer.setDest(dest.getAbsolutePath(), config);
+
+        final long planeBytes = (long) sizeX * sizeY * sizeof;
+        final ByteBuffer first = ByteBuffer.allocate((int) planeBytes).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteBuffer second = ByteBuffer.allocate((int) planeBytes).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            for (int z = 0; z < toZ; z++) {
+                final int z0 = downsampleZ ? 2 * z : z;
+                read(reader, z0, first);
+                final boolean pair = downsampleZ && z0 + 1 < sizeZ;
+                if (pair) read(reader, z0 + 1, second);
+
+                final ByteArrayPlane plane = new ByteArrayPlane(context, wMeta.get(0),
+                                                                new FinalInterval(toX, toY));
+                plane.setData(downsample(first, pair ? second : null, sizeX, sizeY, sizeof));
+                writer.savePlane(0, z, plane);
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private static void read(final Reader reader, final long z, final ByteBuffer dest)
+        throws IOException, FormatException
+    {
+        dest.clear();
+        if (reader.openPlanes(0, z, 1, dest) != 1) {
+            throw new IOException("unable to read plane " + z);
+        }
+        dest.flip();
+    }
+
+    /**
+     * The plane of half the extents of {@code first} (averaged with
+     * {@code second} if given), every pixel averaging the up to 2x2(x2)
+     * pixels it covers, rounded to the nearest value.
+     */
+    static byte[] downsample(final ByteBuffer first, final ByteBuffer second,
+                             final int sizeX, final int sizeY, final int sizeof)
+    {
+        final int toX = (int) halve(sizeX), toY = (int) halve(sizeY);
+        final ByteBuffer out = ByteBuffer.allocate(toX * toY * sizeof).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int y = 0; y < toY; y++) {
+            final int y1 = Math.min(2 * y + 1, sizeY - 1);
+            for (int x = 0; x < toX; x++) {
+                final int x1 = Math.min(2 * x + 1, sizeX - 1);
+
+                long sum = 0;
+                int count = 0;
+                for (int yy = 2 * y; yy <= y1; yy++) {
+                    for (int xx = 2 * x; xx <= x1; xx++) {
+                        final int i = yy * sizeX + xx;
+                        sum += value(first, i, sizeof);
+                        count++;
+                        if (second != null) {
+                            sum += value(second, i, sizeof);
+                            count++;
+                        }
+                    }
+                }
+
+                final long mean = (sum + count / 2) / count;
+                if (sizeof == 1) out.put((byte) mean);
+                else out.putShort((short) mean);
+            }
+        }
+        return out.array();
+    }
+
+    private static int value(final ByteBuffer plane, final int index, final int sizeof) {
+        return sizeof == 1 ? plane.get(index) & 0xff : plane.getShort(2 * index) & 0xffff;
+    }
+}
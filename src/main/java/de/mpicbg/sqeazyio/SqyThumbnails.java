@@ -0,0 +1,377 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Metadata;
+
+/**
+ * Small previews of sqy volumes, as returned by
+ * {@link SqeazyFormat.Reader#openThumbPlane}.
+ * <p>
+ * A thumbnail is downsampled straight from the decoded volume (or, for
+ * chunked files, from the slabs holding the planes needed) without copying
+ * full resolution planes: every thumbnail pixel averages a few samples of
+ * the block of pixels it covers. Depending on the {@link Mode} the thumbnail
+ * shows a single plane, the middle Z plane or the maximum projection along Z.
+ * </p>
+ * <p>
+ * Thumbnails of local files are kept in a small on-disk cache keyed by path,
+ * size and modification time, so file browsers showing the same files again
+ * decode nothing. The cache directory defaults to
+ * {@code ~/.cache/sqeazy/thumbnails} and can be changed through the system
+ * property {@value #DIR_PROPERTY} (empty to disable the cache), its size is
+ * bounded by {@value #MAX_BYTES_PROPERTY} (64 MB by default); the least
+ * recently used thumbnails are deleted first. The size of the cache is
+ * summed up once and then kept up to date as thumbnails are stored, so the
+ * directory is only listed again when the budget is exceeded.
+ * </p>
+ */
+public final class SqyThumbnails {
+
+    public static final String DIR_PROPERTY = "sqeazy.thumbnails.dir";
+
+    public static final String MAX_BYTES_PROPERTY = "sqeazy.thumbnails.maxBytes";
+
+    private static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    /** edge length of thumbnails if the image metadata does not name one */
+    static final int DEFAULT_SIZE = 128;
+
+    /** samples per axis averaged into one thumbnail pixel */
+    static final int SAMPLES = 4;
+
+    static final byte[] MAGIC = "SQYTHMB1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int FILE_HEADER_SIZE = 8 + 3 * 4;
+
+    private static final SqyThumbnails INSTANCE = new SqyThumbnails(defaultDirectory(),
+        Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+
+    /** What a thumbnail shows. */
+    public enum Mode {
+        /** the plane asked for */
+        PLANE,
+        /** the middle Z plane of the volume the plane belongs to */
+        MIDDLE_Z,
+        /** the maximum projection of that volume along Z */
+        MAX_PROJECTION
+    }
+
+    private File directory;
+    private long maxBytes;
+
+    /** bytes of the thumbnails in {@link #directory}, -1 until they are summed up */
+    private long cachedBytes = -1;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    SqyThumbnails(final File directory, final long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    public static SqyThumbnails getInstance() {
+        return INSTANCE;
+    }
+
+    private static File defaultDirectory() {
+        final String dir = System.getProperty(DIR_PROPERTY);
+        if (dir != null) return dir.isEmpty() ? null : new File(dir);
+        return new File(System.getProperty("user.home"), ".cache" + File.separator +
+                        "sqeazy" + File.separator + "thumbnails");
+    }
+
+    /** the cache directory, {@code null} if thumbnails are not stored */
+    public synchronized File getDirectory() {
+        return directory;
+    }
+
+    public synchronized void setDirectory(final File directory) {
+        this.directory = directory;
+        cachedBytes = -1;
+    }
+
+    public synchronized long getMaximumBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaximumBytes(final long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        if (getCachedBytes() > this.maxBytes) trim();
+    }
+
+    /** bytes taken by the thumbnails in the cache directory */
+    public synchronized long getCachedBytes() {
+        if (cachedBytes < 0) {
+            cachedBytes = 0;
+            final File[] files = thumbFiles();
+            if (files != null) {
+                for (final File f : files) cachedBytes += f.length();
+            }
+        }
+        return cachedBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Thumbnail extents fitting into {@code thumbX x thumbY} (or
+     * {@link #DEFAULT_SIZE} if not given) with the aspect ratio of a
+     * {@code sizeX x sizeY} plane, never larger than the plane itself.
+     */
+    static int[] thumbSize(final long sizeX, final long sizeY, final long thumbX,
+                           final long thumbY)
+    {
+        final double boxX = thumbX > 0 ? thumbX : DEFAULT_SIZE;
+        final double boxY = thumbY > 0 ? thumbY : DEFAULT_SIZE;
+        final double scale = Math.min(1, Math.min(boxX / sizeX, boxY / sizeY));
+        return new int[] { (int) Math.max(1, Math.round(sizeX * scale)),
+            (int) Math.max(1, Math.round(sizeY * scale)) };
+    }
+
+    /**
+     * The {@code width x height} thumbnail of {@code meta}, little endian
+     * pixels of the volume's pixel size. {@code z} is the plane shown in
+     * {@link Mode#PLANE} mode.
+     */
+    byte[] thumbnail(final Metadata meta, final RandomAccessInputStream stream,
+                     final long z, final Mode mode, final int width,
+                     final int height) throws IOException, FormatException
+    {
+        final File file = EncodedInput.localFile(stream);
+        final File cached = file == null ? null : cacheFile(new FileKey(file), z, mode, width, height);
+
+        if (cached != null) {
+            final byte[] pixels = load(cached, width, height, meta.getPixelSize());
+            synchronized (this) {
+                if (pixels != null) {
+                    hits++;
+                    return pixels;
+                }
+                misses++;
+            }
+        }
+
+        final byte[] pixels = compute(meta, stream, z, mode, width, height);
+        if (cached != null) store(cached, width, height, meta.getPixelSize(), pixels);
+        return pixels;
+    }
+
+    /** Downsamples the planes selected by {@code mode}. */
+    static byte[] compute(final Metadata meta, final RandomAccessInputStream stream,
+                          final long z, final Mode mode, final int width,
+                          final int height) throws IOException, FormatException
+    {
+        final int sizeof = meta.getPixelSize();
+        if (sizeof != 1 && sizeof != 2) {
+            throw new FormatException("unsupported pixel size " + sizeof);
+        }
+        final long sizeZ = Math.max(meta.getSizeZ(), 1);
+
+        final long first, last;
+        switch (mode) {
+            case MIDDLE_Z:
+                first = last = sizeZ / 2;
+                break;
+            case MAX_PROJECTION:
+                first = 0;
+                last = sizeZ - 1;
+                break;
+            default:
+                first = last = z;
+        }
+
+        final int[] values = new int[width * height];
+        for (long plane = first; plane <= last; plane++) {
+            try (Metadata.PlaneData data = meta.planeData(stream, plane)) {
+                reduce(data.data.getByteBuffer(meta.getSizeX() * (long) meta.getSizeY() * sizeof)
+                       .order(ByteOrder.LITTLE_ENDIAN),
+                       meta.getSizeX(), meta.getSizeY(), sizeof, width, height, values);
+            }
+        }
+
+        final ByteBuffer pixels = ByteBuffer.allocate(values.length * sizeof)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        for (final int value : values) {
+            if (sizeof == 1) pixels.put((byte) value);
+            else pixels.putShort((short) value);
+        }
+        return pixels.array();
+    }
+
+    /**
+     * Maximum of {@code values} and the block averages of {@code plane}: each
+     * thumbnail pixel averages up to {@link #SAMPLES} x {@link #SAMPLES}
+     * evenly spread pixels of the block it covers.
+     */
+    static void reduce(final ByteBuffer plane, final int sizeX, final int sizeY,
+                       final int sizeof, final int width, final int height,
+                       final int[] values)
+    {
+        for (int ty = 0; ty < height; ty++) {
+            final int y0 = (int) ((long) ty * sizeY / height);
+            final int y1 = Math.max(y0 + 1, (int) ((long) (ty + 1) * sizeY / height));
+            final int stepY = Math.max(1, (y1 - y0) / SAMPLES);
+
+            for (int tx = 0; tx < width; tx++) {
+                final int x0 = (int) ((long) tx * sizeX / width);
+                final int x1 = Math.max(x0 + 1, (int) ((long) (tx + 1) * sizeX / width));
+                final int stepX = Math.max(1, (x1 - x0) / SAMPLES);
+
+                long sum = 0;
+                int count = 0;
+                for (int y = y0; y < y1; y += stepY) {
+                    final int row = y * sizeX;
+                    for (int x = x0; x < x1; x += stepX) {
+                        sum += sizeof == 1 ? plane.get(row + x) & 0xff :
+                            plane.getShort(2 * (row + x)) & 0xffff;
+                        count++;
+                    }
+                }
+
+                final int i = ty * width + tx;
+                values[i] = Math.max(values[i], (int) (sum / count));
+            }
+        }
+    }
+
+    // -- Disk cache --
+
+    private synchronized File cacheFile(final FileKey key, final long z, final Mode mode,
+                                        final int width, final int height)
+    {
+        if (directory == null || maxBytes == 0) return null;
+
+        final String id = key + "|" + mode + "|" + (mode == Mode.PLANE ? z : -1) +
+            "|" + width + "x" + height;
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1")
+                .digest(id.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder(2 * digest.length + 6);
+            for (final byte b : digest) name.append(String.format("%02x", b & 0xff));
+            return new File(directory, name.append(".thumb").toString());
+        }
+        catch (final NoSuchAlgorithmException e) {
+            // every JRE has to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** the cached pixels, {@code null} if there are none (or they do not fit) */
+    private static byte[] load(final File cached, final int width, final int height,
+                               final int sizeof)
+    {
+        if (!cached.isFile()) return null;
+        try {
+            final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(cached.toPath()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+            final byte[] magic = new byte[MAGIC.length];
+            final long expected = FILE_HEADER_SIZE + (long) width * height * sizeof;
+            if (bytes.remaining() != expected) return null;
+            bytes.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || bytes.getInt() != width ||
+                bytes.getInt() != height || bytes.getInt() != sizeof)
+            {
+                return null;
+            }
+
+            // recently used thumbnails survive trimming
+            cached.setLastModified(System.currentTimeMillis());
+            final byte[] pixels = new byte[bytes.remaining()];
+            bytes.get(pixels);
+            return pixels;
+        }
+        catch (final IOException e) {
+            return null;
+        }
+    }
+
+    private void store(final File cached, final int width, final int height,
+                       final int sizeof, final byte[] pixels)
+    {
+        final ByteBuffer bytes = ByteBuffer.allocate(FILE_HEADER_SIZE + pixels.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        bytes.put(MAGIC).putInt(width).putInt(height).putInt(sizeof).put(pixels);
+
+        try {
+            final File dir = cached.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) return;
+            final long replaced = cached.length();
+
+            // readers never see partially written thumbnails
+            final File tmp = File.createTempFile("thumb", ".tmp", dir);
+            try {
+                Files.write(tmp.toPath(), bytes.array());
+                Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        }
+        catch (final IOException e) {
+            // a thumbnail that is not cached is just computed again
+            return;
+        }
+
+        synchronized (this) {
+            // a total not summed up yet includes the new thumbnail already
+            if (!cached.getParentFile().equals(directory)) return;
+            if (cachedBytes >= 0) cachedBytes += bytes.capacity() - replaced;
+            if (getCachedBytes() > maxBytes) trim();
+        }
+    }
+
+    private synchronized File[] thumbFiles() {
+        return directory == null ? null :
+            directory.listFiles((dir, name) -> name.endsWith(".thumb"));
+    }
+
+    /**
+     * Deletes the least recently used thumbnails beyond the budget and sums
+     * up the size of the cache again, in case files were removed meanwhile.
+     */
+    private synchronized void trim() {
+        final File[] files = thumbFiles();
+        cachedBytes = 0;
+        if (files == null) return;
+
+        for (final File f : files) cachedBytes += f.length();
+        if (cachedBytes <= maxBytes) return;
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (final File f : files) {
+            if (cachedBytes <= maxBytes) break;
+            final long length = f.length();
+            if (f.delete()) cachedBytes -= length;
+        }
+    }
+
+    /** Deletes all cached thumbnails. */
+    public synchronized void clear() {
+        final long budget = maxBytes;
+        maxBytes = 0;
+        trim();
+        maxBytes = budget;
+    }
+}
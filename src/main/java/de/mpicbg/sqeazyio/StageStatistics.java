@@ -0,0 +1,87 @@
+package de.mpicbg.sqeazyio;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of the durations recorded for one {@link SqyMetrics.Stage}. The
+ * histogram has power of two buckets in microseconds: bucket {@code i} counts
+ * durations below {@code 2^i} µs (and at least {@code 2^(i-1)} µs), so
+ * percentiles are upper bounds accurate to a factor of 2.
+ */
+public final class StageStatistics {
+
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long[] histogram;
+
+    @ConstructorProperties({ "count", "totalNanos", "maxNanos", "histogram" })
+    public StageStatistics(final long count, final long totalNanos,
+                           final long maxNanos, final long[] histogram)
+    {
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.histogram = histogram.clone();
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    public double getTotalMillis() {
+        return totalNanos / 1e6;
+    }
+
+    public double getMeanMillis() {
+        return count == 0 ? 0 : totalNanos / 1e6 / count;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos / 1e6;
+    }
+
+    public double getMedianMillis() {
+        return percentileMillis(0.5);
+    }
+
+    public double getP99Millis() {
+        return percentileMillis(0.99);
+    }
+
+    /** upper bound of the {@code q} quantile (0 to 1), 0 without samples */
+    public double percentileMillis(final double q) {
+        long total = 0;
+        for (final long n : histogram) total += n;
+        if (total == 0) return 0;
+
+        final long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min((1L << i) / 1e3, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d x, mean %.3f ms, median <= %.3f ms, p99 <= %.3f ms, max %.3f ms",
+                             count, getMeanMillis(), getMedianMillis(), getP99Millis(),
+                             getMaxMillis());
+    }
+}
@@ -0,0 +1,257 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Metadata;
+
+/**
+ * Decodes the time points of a {@link SqyDataset} ahead of the one being
+ * viewed.
+ * <p>
+ * Every access reports the time point and plane viewed. The direction of
+ * travel is taken from the last two time points accessed, the next
+ * {@code depth} time points in that direction are opened and decoded in the
+ * background (for chunked files only the slab around the viewed plane).
+ * Prefetched files are handed over by {@link #take} (or {@link #claim} and
+ * {@link #await}) once they are requested.
+ * Jumping elsewhere cancels the prefetches that were queued but not started
+ * yet, finished ones are given back (their decoded data may still be served
+ * by the {@link DecodedVolumeCache}). At most {@code depth} time points are
+ * held per dataset.
+ * </p>
+ * <p>
+ * The decodes run on a process-wide pool of {@value #DEFAULT_THREADS} thread(s)
+ * (system property {@value #THREADS_PROPERTY}) and are scheduled by the
+ * {@link SqeazyDecodeService} as {@link SqeazyDecodeService.DecodePriority#BACKGROUND}
+ * work, so interactive decodes overtake them.
+ * </p>
+ */
+final class TimepointPrefetcher implements Closeable {
+
+    static final String THREADS_PROPERTY = "sqeazy.prefetch.threads";
+
+    private static final int DEFAULT_THREADS = 1;
+
+    private static final ThreadPoolExecutor EXECUTOR = createExecutor(
+        Math.max(1, Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS)));
+
+    /** Opens and decodes the file of channel {@code c} at time point {@code t}. */
+    interface Loader {
+        Metadata load(int c, int t, long z) throws IOException, FormatException;
+    }
+
+    private final int sizeC;
+    private final int sizeT;
+    private final int depth;
+    private final Loader loader;
+
+    /** guarded by this, key is {@code c + sizeC*t} */
+    private final Map<Integer, Prefetch> pending = new HashMap<>();
+
+    private int lastT = -1;
+    private int direction = 1;
+    private boolean closed = false;
+
+    TimepointPrefetcher(final int sizeC, final int sizeT, final int depth,
+                        final Loader loader)
+    {
+        this.sizeC = sizeC;
+        this.sizeT = sizeT;
+        this.depth = depth;
+        this.loader = loader;
+    }
+
+    /**
+     * Reports that plane {@code z} of time point {@code t} is viewed, which
+     * (re)targets the prefetches if the time point changed.
+     */
+    synchronized void accessed(final int t, final long z) {
+        if (closed || t == lastT) return;
+        if (lastT >= 0) direction = t > lastT ? 1 : -1;
+        lastT = t;
+
+        // drop what is not ahead of t anymore
+        final Iterator<Map.Entry<Integer, Prefetch>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            final Prefetch p = it.next().getValue();
+            if (!isAhead(p.t)) {
+                it.remove();
+                cancel(p);
+            }
+        }
+
+        for (int k = 1; k <= depth; k++) {
+            final int next = t + direction * k;
+            if (next < 0 || next >= sizeT) break;
+            for (int c = 0; c < sizeC; c++) {
+                final int key = c + sizeC * next;
+                if (pending.containsKey(key)) continue;
+
+                final Prefetch p = new Prefetch(c, next, z);
+                pending.put(key, p);
+                p.future = EXECUTOR.submit(p);
+            }
+        }
+    }
+
+    private boolean isAhead(final int t) {
+        final int k = (t - lastT) * direction;
+        return k >= 1 && k <= depth;
+    }
+
+    /**
+     * The prefetched file of channel {@code c} at time point {@code t}, now
+     * owned by the caller. Waits for a running prefetch to finish, see
+     * {@link #claim} and {@link #await}.
+     */
+    Metadata take(final int c, final int t) {
+        final Prefetch p = claim(c, t);
+        return p == null ? null : await(p);
+    }
+
+    /**
+     * Hands the prefetch of channel {@code c} at time point {@code t} over to
+     * the caller without waiting for it, the file is obtained by
+     * {@link #await}. Callers holding locks of their own claim under them
+     * and wait after releasing them.
+     *
+     * @return {@code null} if {@code (c, t)} is not being prefetched (a queued
+     *         prefetch is cancelled then, to be repeated by the caller)
+     */
+    synchronized Prefetch claim(final int c, final int t) {
+        final Prefetch p = pending.remove(c + sizeC * t);
+        if (p == null) return null;
+
+        if (!p.started) {
+            cancel(p);
+            return null;
+        }
+        return p;
+    }
+
+    /**
+     * Waits for the claimed prefetch {@code p} to finish.
+     *
+     * @return the opened Metadata, owned by the caller, or {@code null} if the
+     *         prefetch failed or the wait was interrupted
+     */
+    synchronized Metadata await(final Prefetch p) {
+        try {
+            while (!p.done) wait();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(p);
+            return null;
+        }
+        final Metadata result = p.result;
+        p.result = null;
+        return result;
+    }
+
+    /** Cancels all prefetches and gives back the prefetched files. */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (final Prefetch p : pending.values()) cancel(p);
+        pending.clear();
+    }
+
+    /** number of time points x channels queued, running or ready */
+    synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    // guarded by this
+    private void cancel(final Prefetch p) {
+        p.cancelled = true;
+        if (!p.started && p.future != null) {
+            p.future.cancel(false);
+        }
+        if (p.done && p.result != null) {
+            release(p.result);
+            p.result = null;
+        }
+    }
+
+    private static void release(final Metadata member) {
+        try {
+            Metadata.closeMember(member);
+        }
+        catch (final IOException e) {
+            // the file was only read from, nothing got lost
+        }
+    }
+
+    /** One file being prefetched, state guarded by the TimepointPrefetcher. */
+    final class Prefetch implements Runnable {
+
+        final int c;
+        final int t;
+        final long z;
+
+        Future<?> future;
+        boolean started = false;
+        boolean done = false;
+        boolean cancelled = false;
+        Metadata result;
+
+        Prefetch(final int c, final int t, final long z) {
+            this.c = c;
+            this.t = t;
+            this.z = z;
+        }
+
+        @Override
+        public void run() {
+            synchronized (TimepointPrefetcher.this) {
+                if (cancelled) return;
+                started = true;
+            }
+
+            Metadata loaded = null;
+            try {
+                loaded = loader.load(c, t, z);
+            }
+            catch (final IOException | FormatException | RuntimeException e) {
+                // the interactive request for this file will fail the same way
+            }
+
+            synchronized (TimepointPrefetcher.this) {
+                done = true;
+                if (cancelled) {
+                    if (loaded != null) release(loaded);
+                }
+                else {
+                    result = loaded;
+                }
+                TimepointPrefetcher.this.notifyAll();
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor(final int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<Runnable>(), r -> {
+                                       final Thread thread =
+                                           new Thread(r, "sqeazy-prefetch-" + count.incrementAndGet());
+                                       thread.setDaemon(true);
+                                       return thread;
+                                   });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
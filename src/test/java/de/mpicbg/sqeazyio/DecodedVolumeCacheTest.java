@@ -0,0 +1,220 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.config.SCIFIOConfig;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+import org.bridj.Pointer;
+
+public class DecodedVolumeCacheTest {
+
+    private static final Context context = new Context();
+    private static final SqeazyFormat format = new SqeazyFormat();
+
+    static {
+        format.setContext(context);
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private File resource(final String name) throws Exception {
+        final URL url = getClass().getResource(name);
+        assertNotEquals(url,null);
+        return Paths.get(url.toURI()).toFile();
+    }
+
+    @Test public void testHitsAndMisses() throws Exception {
+
+        final DecodedVolumeCache cache = new DecodedVolumeCache(1 << 20);
+        final File droso = resource("droso.sqy");
+
+        final DecodedVolumeCache.Lease first = cache.acquire(droso, () -> Pointer.allocateBytes(100));
+        final DecodedVolumeCache.Lease second = cache.acquire(droso, () -> {
+                throw new AssertionError("decoded twice");
+            });
+
+        assertSame(first.data(), second.data());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(100, cache.getCachedBytes());
+
+        first.close();
+        second.close();
+        assertEquals(1, cache.size());
+    }
+
+    @Test public void testLeastRecentlyUsedIsEvicted() throws Exception {
+
+        final DecodedVolumeCache cache = new DecodedVolumeCache(250);
+
+        final DecodedVolumeCache.Lease droso = cache.acquire(resource("droso.sqy"), () -> Pointer.allocateBytes(100));
+        final DecodedVolumeCache.Lease fly = cache.acquire(resource("flybrain.sqy"), () -> Pointer.allocateBytes(100));
+        droso.close();
+        fly.close();
+
+        //touch droso, so flybrain becomes the eldest entry
+        cache.acquire(resource("droso.sqy"), () -> Pointer.allocateBytes(100)).close();
+
+        cache.acquire(resource("tiny-10x10x3.sqy"), () -> Pointer.allocateBytes(100)).close();
+        assertEquals(1, cache.getEvictions());
+        assertEquals(200, cache.getCachedBytes());
+
+        final DecodedVolumeCache.Lease hit = cache.acquire(resource("droso.sqy"), () -> {
+                throw new AssertionError("droso should still be cached");
+            });
+        hit.close();
+    }
+
+    @Test public void testLeasedVolumesSurviveEviction() throws Exception {
+
+        final DecodedVolumeCache cache = new DecodedVolumeCache(150);
+
+        final DecodedVolumeCache.Lease droso = cache.acquire(resource("droso.sqy"), () -> Pointer.allocateBytes(100));
+        final DecodedVolumeCache.Lease fly = cache.acquire(resource("flybrain.sqy"), () -> Pointer.allocateBytes(100));
+
+        //both are in use, so nothing can be evicted yet
+        assertEquals(0, cache.getEvictions());
+        assertEquals(200, cache.getCachedBytes());
+        droso.data().setByteAtIndex(99, (byte)42);
+
+        droso.close();
+        assertEquals(1, cache.getEvictions());
+        assertEquals(100, cache.getCachedBytes());
+
+        fly.close();
+        assertEquals(1, cache.size());
+    }
+
+    @Test public void testReadersShareDecodedVolume() throws Exception {
+
+        DecodedVolumeCache.getInstance().clear();
+        final String fpath = resource("droso.sqy").getPath();
+
+        final SqeazyFormat.Reader first = (SqeazyFormat.Reader) format.createReader();
+        first.setSource(new RandomAccessInputStream(context, fpath));
+        final SqeazyFormat.Reader second = (SqeazyFormat.Reader) format.createReader();
+        second.setSource(new RandomAccessInputStream(context, fpath));
+
+        final long hits = DecodedVolumeCache.getInstance().getHits();
+        first.openPlane(0, (long)48, new SCIFIOConfig());
+        second.openPlane(0, (long)48, new SCIFIOConfig());
+
+        assertEquals(hits + 1, DecodedVolumeCache.getInstance().getHits());
+        assertSame(first.getMetadata().getData(), second.getMetadata().getData());
+
+        first.close();
+        second.close();
+    }
+
+    private static void await(final CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        }
+        catch (final InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Test public void testConcurrentRequestsDecodeOnce() throws Exception {
+
+        // nothing is kept, concurrent requests are still coalesced
+        final DecodedVolumeCache cache = new DecodedVolumeCache(0);
+        final File droso = resource("droso.sqy");
+        final AtomicInteger decodes = new AtomicInteger();
+        final CountDownLatch decoding = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final List<Future<DecodedVolumeCache.Lease>> leases = new ArrayList<>();
+        leases.add(pool.submit(() -> cache.acquire(droso, () -> {
+                        decodes.incrementAndGet();
+                        decoding.countDown();
+                        await(proceed);
+                        return NativeBufferPool.getInstance().allocate(100);
+                    })));
+        assertTrue(decoding.await(10, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 3; i++) {
+            leases.add(pool.submit(() -> cache.acquire(droso, () -> {
+                            decodes.incrementAndGet();
+                            return NativeBufferPool.getInstance().allocate(100);
+                        })));
+        }
+        // let the followers queue up behind the running decode
+        while (cache.getHits() < 3) Thread.sleep(5);
+        proceed.countDown();
+
+        final Pointer<Byte> data = leases.get(0).get().data();
+        for (final Future<DecodedVolumeCache.Lease> lease : leases) {
+            assertSame(data, lease.get().data());
+        }
+        assertEquals(1, decodes.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.size());
+
+        for (final Future<DecodedVolumeCache.Lease> lease : leases) {
+            lease.get().close();
+        }
+        pool.shutdown();
+    }
+
+    @Test public void testFailedDecodeReachesAllWaiters() throws Exception {
+
+        final DecodedVolumeCache cache = new DecodedVolumeCache(1 << 20);
+        final File droso = resource("droso.sqy");
+        final CountDownLatch proceed = new CountDownLatch(1);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        final Future<DecodedVolumeCache.Lease> leader = pool.submit(() -> cache.acquire(droso, () -> {
+                    await(proceed);
+                    throw new IOException("corrupt");
+                }));
+        while (cache.getMisses() < 1) Thread.sleep(5);
+        final Future<DecodedVolumeCache.Lease> follower = pool.submit(() -> cache.acquire(droso, () -> {
+                    throw new AssertionError("decoded twice");
+                }));
+        while (cache.getHits() < 1) Thread.sleep(5);
+        proceed.countDown();
+
+        for (final Future<DecodedVolumeCache.Lease> lease : Arrays.asList(leader, follower)) {
+            try {
+                lease.get();
+                fail("the decode failure was not passed on");
+            }
+            catch (final ExecutionException e) {
+                assertEquals("corrupt", e.getCause().getMessage());
+            }
+        }
+
+        // a failed decode is not cached, the next request tries again
+        cache.acquire(droso, () -> Pointer.allocateBytes(100)).close();
+        assertEquals(2, cache.getMisses());
+        pool.shutdown();
+    }
+
+}
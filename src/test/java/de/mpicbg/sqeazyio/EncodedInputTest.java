@@ -0,0 +1,112 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+public class EncodedInputTest {
+
+    private static final Context context = new Context();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    @Test public void testMappedAndCopiedAreEqual() throws Exception {
+
+        final URL droso = getClass().getResource("droso.sqy");
+        assertNotEquals(droso,null);
+        final Path fnio = Paths.get(droso.toURI());
+        final long fileSize = new File(fnio.toString()).length();
+
+        final RandomAccessInputStream stream = new RandomAccessInputStream(context, fnio.toString());
+
+        try (final EncodedInput mapped = EncodedInput.open(stream);
+             final EncodedInput copied = EncodedInput.copy(stream, stream.length()))
+        {
+            assertEquals(true, mapped.isMapped());
+            assertEquals(false, copied.isMapped());
+            assertEquals(fileSize, mapped.length());
+            assertEquals(fileSize, copied.length());
+
+            //header starts with '{', payload follows after '|'
+            assertEquals((byte)'{', (byte)mapped.pointer().getByteAtIndex(0));
+            for(long i = 0;i<fileSize;i += 1021){
+                assertEquals(mapped.pointer().getByteAtIndex(i),
+                             copied.pointer().getByteAtIndex(i));
+            }
+            assertEquals(mapped.pointer().getByteAtIndex(fileSize-1),
+                         copied.pointer().getByteAtIndex(fileSize-1));
+        }
+    }
+
+    @Test public void testReadBeyondMappingLimit() throws Exception {
+
+        final URL droso = getClass().getResource("droso.sqy");
+        assertNotEquals(droso,null);
+        final String path = Paths.get(droso.toURI()).toString();
+        final RandomAccessInputStream stream = new RandomAccessInputStream(context, path);
+        final long fileSize = stream.length();
+
+        //a mapping limit below the payload takes the path of payloads beyond 2 GB
+        try (final EncodedInput mapped = EncodedInput.open(stream, 100, fileSize - 100);
+             final EncodedInput read = EncodedInput.open(stream, 100, fileSize - 100, 1000))
+        {
+            assertEquals(true, mapped.isMapped());
+            assertEquals(false, read.isMapped());
+            assertEquals(fileSize - 100, read.length());
+            for(long i = 0;i<read.length();i += 1021){
+                assertEquals(mapped.pointer().getByteAtIndex(i),
+                             read.pointer().getByteAtIndex(i));
+            }
+            assertEquals(mapped.pointer().getByteAtIndex(read.length()-1),
+                         read.pointer().getByteAtIndex(read.length()-1));
+        }
+        stream.close();
+    }
+
+    @Test public void testPayloadBeyond2GB() throws Exception {
+        // a sparse file, but reading it needs as much native memory
+        Assume.assumeTrue(Boolean.getBoolean("sqeazy.test.largeVolumes"));
+
+        final File large = folder.newFile("large.bin");
+        final long size = EncodedInput.MAX_MAPPING + (16L << 20) + 3;
+        try (RandomAccessFile raf = new RandomAccessFile(large, "rw")) {
+            raf.setLength(size);
+            raf.seek(0);
+            raf.write(17);
+            raf.seek(EncodedInput.MAX_MAPPING);
+            raf.write(42);
+            raf.seek(size - 1);
+            raf.write(99);
+        }
+
+        final RandomAccessInputStream stream = new RandomAccessInputStream(context, large.getAbsolutePath());
+        try (final EncodedInput input = EncodedInput.open(stream)) {
+            assertEquals(false, input.isMapped());
+            assertEquals(size, input.length());
+            assertEquals((byte)17, (byte)input.pointer().getByteAtIndex(0));
+            assertEquals((byte)42, (byte)input.pointer().getByteAtIndex(EncodedInput.MAX_MAPPING));
+            assertEquals((byte)99, (byte)input.pointer().getByteAtIndex(size - 1));
+        }
+        stream.close();
+    }
+}
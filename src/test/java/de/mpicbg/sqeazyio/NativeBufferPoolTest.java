@@ -0,0 +1,99 @@
+package de.mpicbg.sqeazyio;
+
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.bridj.Pointer;
+
+public class NativeBufferPoolTest {
+
+    @Test public void testSizeClasses() {
+        assertEquals(1, NativeBufferPool.sizeClass(1));
+        assertEquals(4096, NativeBufferPool.sizeClass(4000));
+        assertEquals(4096, NativeBufferPool.sizeClass(4096));
+        assertEquals(1 << 20, NativeBufferPool.sizeClass((1 << 20) - 1));
+
+        // above 1 MB four classes per power of two
+        assertEquals(5L << 18, NativeBufferPool.sizeClass((1 << 20) + 1));
+        assertEquals(6L << 28, NativeBufferPool.sizeClass((5L << 28) + 1));
+        for (long bytes = 1 << 20; bytes < 1L << 34; bytes = bytes * 5 / 4 + 7) {
+            final long sizeClass = NativeBufferPool.sizeClass(bytes);
+            assertTrue(sizeClass >= bytes);
+            assertTrue(sizeClass <= bytes * 5 / 4);
+        }
+    }
+
+    @Test public void testReuse() {
+        final NativeBufferPool pool = new NativeBufferPool(1 << 20, false);
+
+        final Pointer<Byte> first = pool.allocate(1000);
+        assertEquals(1000, first.getValidBytes());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, first.order());
+        final long address = first.getPeer();
+        pool.release(first);
+        assertEquals(1024, pool.getIdleBytes());
+
+        // same size class, same memory
+        final Pointer<Byte> second = pool.allocate(1020);
+        assertEquals(address, second.getPeer());
+        assertEquals(1020, second.getValidBytes());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(0, pool.getIdleBytes());
+        assertEquals(1024, pool.getLoanedBytes());
+
+        pool.release(second);
+        pool.clear();
+        assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test public void testCap() {
+        final NativeBufferPool pool = new NativeBufferPool(8192, false);
+
+        final Pointer<Byte> a = pool.allocate(4096);
+        final Pointer<Byte> b = pool.allocate(4096);
+        final Pointer<Byte> c = pool.allocate(4096);
+        final Pointer<Byte> huge = pool.allocate(16384);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        pool.release(huge);
+
+        assertEquals(8192, pool.getIdleBytes());
+        assertEquals(0, pool.getLoanCount());
+
+        pool.setMaximumBytes(0);
+        assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDoubleRelease() {
+        final NativeBufferPool pool = new NativeBufferPool(1 << 20, false);
+        final Pointer<Byte> buffer = pool.allocate(100);
+        pool.release(buffer);
+        pool.release(buffer);
+    }
+
+    @Test public void testForeignPointersAreReleased() {
+        final NativeBufferPool pool = new NativeBufferPool(1 << 20, false);
+        pool.release(Pointer.allocateBytes(100));
+        assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test public void testLeakDetection() throws Exception {
+        final NativeBufferPool pool = new NativeBufferPool(1 << 20, true);
+        pool.allocate(100);
+        assertEquals(1, pool.getLoanCount());
+
+        for (int i = 0; i < 50 && pool.getLeaks() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.getLeaks());
+        assertEquals(0, pool.getLoanCount());
+        assertTrue(pool.getLeakReports().get(0).contains("testLeakDetection"));
+    }
+}
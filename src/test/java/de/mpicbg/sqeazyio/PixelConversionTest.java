@@ -0,0 +1,91 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+import io.scif.util.FormatTools;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PixelConversionTest {
+
+    @Test public void testStoredPixelsAreNotConverted() throws Exception {
+        assertNull(PixelConversion.of(1, -1, true));
+        assertNull(PixelConversion.of(1, FormatTools.UINT8, false));
+        assertNull(PixelConversion.of(2, FormatTools.UINT16, true));
+        assertNotNull(PixelConversion.of(2, -1, false));
+    }
+
+    @Test(expected = FormatException.class)
+    public void testNarrowingIsRejected() throws Exception {
+        PixelConversion.of(2, FormatTools.UINT8, true);
+    }
+
+    @Test public void testByteSwap() throws Exception {
+        final PixelConversion swap = PixelConversion.of(2, FormatTools.UINT16, false);
+        assertArrayEquals(new byte[]{1, 2, (byte) 0xff, 0x10},
+                          swap.convert(new byte[]{2, 1, 0x10, (byte) 0xff}));
+    }
+
+    @Test public void testWidening() throws Exception {
+        // unsigned values survive, including the highest
+        final byte[] bytes = {0, 1, (byte) 200, (byte) 255};
+        final ByteBuffer shorts = ByteBuffer.wrap(PixelConversion.of(1, FormatTools.UINT16, true).convert(bytes))
+            .order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(200, shorts.getShort(4) & 0xffff);
+        assertEquals(255, shorts.getShort(6) & 0xffff);
+
+        final ByteBuffer words = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        words.putShort((short) 7).putShort((short) 65535);
+        final ByteBuffer doubles = ByteBuffer.wrap(PixelConversion.of(2, FormatTools.DOUBLE, false)
+                                                   .convert(words.array()));
+        assertEquals(7.0, doubles.getDouble(0), 0.0);
+        assertEquals(65535.0, doubles.getDouble(8), 0.0);
+    }
+
+    @Test public void testConversionAdvancesDestination() throws Exception {
+        // more pixels than one chunk, written after what dest already holds
+        final int pixels = 10000;
+        final ByteBuffer src = ByteBuffer.allocate(pixels);
+        for (int i = 0; i < pixels; i++) src.put((byte) i);
+        src.flip();
+
+        final ByteBuffer dest = ByteBuffer.allocate(4 + 4 * pixels);
+        dest.putInt(-1);
+        PixelConversion.of(1, FormatTools.FLOAT, false).convert(src, dest);
+
+        assertEquals(dest.capacity(), dest.position());
+        assertEquals(0, src.position());
+        assertEquals(-1, dest.getInt(0));
+        assertEquals((float) (9999 & 0xff), dest.getFloat(4 + 4 * 9999), 0f);
+    }
+
+    @Test public void testTypedDestinations() throws Exception {
+        // values land in arrays as they are, whatever the configured byte order
+        final ByteBuffer words = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        words.putShort((short) 7).putShort((short) 65535);
+        words.flip();
+
+        final float[] floats = new float[3];
+        final FloatBuffer dest = FloatBuffer.wrap(floats);
+        dest.put(-1f);
+        PixelConversion.of(2, FormatTools.FLOAT, false).convert(words, dest);
+        assertEquals(3, dest.position());
+        assertArrayEquals(new float[]{-1f, 7f, 65535f}, floats, 0f);
+
+        final short[] shorts = new short[2];
+        PixelConversion.of(2, FormatTools.UINT16, false).convert(words, ShortBuffer.wrap(shorts));
+        assertArrayEquals(new short[]{7, (short) 65535}, shorts);
+
+        final int[] ints = new int[2];
+        PixelConversion.of(1, FormatTools.UINT32, true)
+            .convert(ByteBuffer.wrap(new byte[]{3, (byte) 250}), IntBuffer.wrap(ints));
+        assertArrayEquals(new int[]{3, 250}, ints);
+    }
+}
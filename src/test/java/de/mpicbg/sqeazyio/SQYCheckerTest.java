@@ -109,5 +109,22 @@ public class SQYCheckerTest {
         assertEquals(c.isFormat(file_stream),true);
     }
 
+    @Test public void testRejectsTiff() throws IOException {
+
+        final URL tif = getClass().getResource("droso.tif");
+        assertNotEquals(tif,null);
+
+        final RandomAccessInputStream file_stream = new RandomAccessInputStream(context, tif.getPath());
+        assertEquals(c.isFormat(file_stream),false);
+    }
+
+    @Test public void testRecognizesTinyFile() throws IOException {
+
+        final URL tiny = getClass().getResource("tiny-10x10x3.sqy");
+        assertNotEquals(tiny,null);
+
+        final RandomAccessInputStream file_stream = new RandomAccessInputStream(context, tiny.getPath());
+        assertEquals(c.isFormat(file_stream),true);
+    }
 
 }
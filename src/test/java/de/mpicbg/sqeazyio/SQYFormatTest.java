@@ -9,10 +9,17 @@ import io.scif.io.RandomAccessInputStream;
 import io.scif.ImageMetadata;
 import io.scif.FormatException;
 import io.scif.ByteArrayPlane;
+import io.scif.util.FormatTools;
 
 import java.net.URL;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
@@ -313,4 +320,234 @@ public class SQYFormatTest {
 
         }
 
+        @Test
+        public void testUI16DirectPlane() throws Exception {
+                // SETUP
+                final URL tiny = getClass().getResource("droso.sqy");
+                assertNotEquals(tiny,null);
+
+                final String fpath = tiny.getPath();
+                final int width = 64;
+                final int height = 64;
+
+                final RandomAccessInputStream stream = new RandomAccessInputStream(context,fpath);
+                final Reader reader = (Reader) format.createReader();
+                reader.setSource(stream);
+
+                // EXECUTE
+                final DirectBufferPlane plane = reader.openDirectPlane(0, (long)48);
+
+                // VERIFY
+                final ByteBuffer view = plane.getData();
+                assertEquals(true, view.isDirect());
+                assertEquals(true, view.isReadOnly());
+                assertEquals(width*height*2, view.capacity());
+                assertEquals((short)151, view.getShort(2*(50*width + 33)));
+
+                //getBytes hands out a heap copy of the same pixels
+                final ByteBuffer copy = ByteBuffer.wrap(plane.getBytes()).order(ByteOrder.LITTLE_ENDIAN);
+                assertEquals((short)151, copy.getShort(2*(50*width + 33)));
+
+                final DirectBufferPlane first = reader.openDirectPlane(0, (long)0);
+                assertEquals((short)100, first.getData().getShort(0));
+                assertEquals((short)101, first.getData().getShort(2));
+
+                plane.close();
+                first.close();
+                reader.close();
+        }
+
+        @Test
+        public void testDirectPlaneOutlivesReader() throws Exception {
+                final URL droso = getClass().getResource("droso.sqy");
+                assertNotEquals(droso,null);
+                final int width = 64;
+
+                final Reader reader = (Reader) format.createReader();
+                reader.setSource(new RandomAccessInputStream(context,droso.getPath()));
+                final DirectBufferPlane plane = reader.openDirectPlane(0, (long)48);
+                reader.close();
+                DecodedVolumeCache.getInstance().clear();
+
+                // the pool must not hand the volume's memory to other decodes
+                final URL fly = getClass().getResource("flybrain.sqy");
+                assertNotEquals(fly,null);
+                final Reader other = (Reader) format.createReader();
+                other.setSource(new RandomAccessInputStream(context,fly.getPath()));
+                other.openPlane(0, (long)24);
+                other.close();
+
+                assertEquals((short)151, plane.getData().getShort(2*(50*width + 33)));
+                plane.close();
+                plane.close();
+        }
+
+        @Test
+        public void testUI16PlaneRegion() throws Exception {
+                // SETUP
+                final URL tiny = getClass().getResource("droso.sqy");
+                assertNotEquals(tiny,null);
+
+                final String fpath = tiny.getPath();
+                final int width = 64;
+                final int height = 64;
+
+                final RandomAccessInputStream stream = new RandomAccessInputStream(context,fpath);
+                final Reader reader = (Reader) format.createReader();
+                reader.setSource(stream);
+
+                final ByteArrayPlane full = new ByteArrayPlane(context);
+                full.setData(new byte[width*height*2]);
+                reader.openPlane(0, (long)48, full, new FinalInterval(width, height), new SCIFIOConfig());
+                final ShortBuffer full_shorts = ByteBuffer.wrap(full.getBytes()).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+
+                // EXECUTE, a 10x8 crop at x=30, y=48
+                final Interval bounds = new FinalInterval(new long[]{30, 48}, new long[]{39, 55});
+                final ByteArrayPlane crop = new ByteArrayPlane(context);
+                crop.setData(new byte[10*8*2]);
+                reader.openPlane(0, (long)48, crop, bounds, new SCIFIOConfig());
+
+                // VERIFY, intensity(z=48, y=50, x=33) == 151
+                final ShortBuffer crop_shorts = ByteBuffer.wrap(crop.getBytes()).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+                assertEquals((short)151, crop_shorts.get(2*10 + 3));
+
+                for(int y = 0;y<8;y++){
+                        for(int x = 0;x<10;x++){
+                                assertEquals(full_shorts.get((48+y)*width + 30 + x), crop_shorts.get(y*10 + x));
+                        }
+                }
+        }
+
+        @Test(expected = FormatException.class)
+        public void testRegionOutsidePlane() throws Exception {
+                final URL tiny = getClass().getResource("droso.sqy");
+                final RandomAccessInputStream stream = new RandomAccessInputStream(context,tiny.getPath());
+                final Reader reader = (Reader) format.createReader();
+                reader.setSource(stream);
+
+                final ByteArrayPlane crop = new ByteArrayPlane(context);
+                crop.setData(new byte[10*10*2]);
+                reader.openPlane(0, (long)0, crop,
+                                 new FinalInterval(new long[]{60, 0}, new long[]{69, 9}),
+                                 new SCIFIOConfig());
+        }
+
+        @Test
+        public void testUI16PlaneRange() throws Exception {
+                // SETUP
+                final URL tiny = getClass().getResource("droso.sqy");
+                assertNotEquals(tiny,null);
+
+                final int width = 64;
+                final int height = 64;
+                final int planeBytes = width * height * 2;
+
+                final RandomAccessInputStream stream = new RandomAccessInputStream(context,tiny.getPath());
+                final Reader reader = (Reader) format.createReader();
+                reader.setSource(stream);
+
+                // EXECUTE, room for 3.5 planes starting at z=46
+                final ByteBuffer slab = ByteBuffer.allocateDirect(3*planeBytes + planeBytes/2).order(ByteOrder.LITTLE_ENDIAN);
+                final int filled = reader.openPlanes(0, 46, 10, slab);
+
+                // VERIFY, planes 46,47,48 were copied
+                assertEquals(3, filled);
+                assertEquals(3*planeBytes, slab.position());
+                assertEquals((short)151, slab.getShort(2*planeBytes + 2*(50*width + 33)));
+
+                //the range is cut at the last plane
+                final ByteBuffer tail = ByteBuffer.allocate(4*planeBytes).order(ByteOrder.LITTLE_ENDIAN);
+                assertEquals(2, reader.openPlanes(0, 79, 4, tail));
+
+                final ByteBuffer first = ByteBuffer.allocate(planeBytes).order(ByteOrder.LITTLE_ENDIAN);
+                assertEquals(1, reader.openPlanes(0, 0, 1, first));
+                assertEquals((short)100, first.getShort(0));
+                assertEquals((short)101, first.getShort(2));
+        }
+
+        @Test
+        public void testUI16AsFloat() throws Exception {
+                // SETUP, planes are requested as big endian floats
+                final URL droso = getClass().getResource("droso.sqy");
+                assertNotEquals(droso,null);
+
+                final SCIFIOConfig config = SqeazyFormat.parserSetPixelType(new SCIFIOConfig(),
+                                                                            FormatTools.FLOAT, false);
+                final Reader reader = (Reader) format.createReader();
+                reader.setSource(new RandomAccessInputStream(context,droso.getPath()), config);
+
+                final ImageMetadata iMeta = reader.getMetadata().get(0);
+                assertEquals(FormatTools.FLOAT, iMeta.getPixelType());
+                assertFalse(iMeta.isLittleEndian());
+
+                // EXECUTE
+                final ByteBuffer plane48 = ByteBuffer.wrap(reader.openPlane(0, 48).getBytes()).order(ByteOrder.BIG_ENDIAN);
+                final ByteArrayPlane crop = reader.openPlane(0, 0, new FinalInterval(new long[]{0, 0}, new long[]{1, 0}));
+                final ByteBuffer slab = ByteBuffer.allocate(2*64*64*4).order(ByteOrder.BIG_ENDIAN);
+                final int filled = reader.openPlanes(0, 47, 2, slab);
+
+                // VERIFY
+                assertEquals(64*64*4, plane48.capacity());
+                assertEquals(151f, plane48.getFloat(4*(50*64 + 33)), 0f);
+                final ByteBuffer pixels = ByteBuffer.wrap(crop.getBytes()).order(ByteOrder.BIG_ENDIAN);
+                assertEquals(100f, pixels.getFloat(0), 0f);
+                assertEquals(101f, pixels.getFloat(4), 0f);
+                assertEquals(2, filled);
+                assertEquals(151f, slab.getFloat(4*(64*64 + 50*64 + 33)), 0f);
+                reader.close();
+        }
+
+        @Test(expected = FormatException.class)
+        public void narrowing_is_rejected() throws Exception {
+                final URL droso = getClass().getResource("droso.sqy");
+                final SCIFIOConfig config = SqeazyFormat.parserSetPixelType(new SCIFIOConfig(),
+                                                                            FormatTools.UINT8, true);
+                final Reader reader = (Reader) format.createReader();
+                reader.setSource(new RandomAccessInputStream(context,droso.getPath()), config);
+        }
+
+        @Test
+        public void concurrent_plane_reads_decode_once() throws Exception {
+
+                // SETUP, every thread reads all planes of droso.sqy in its own order
+                final URL droso = getClass().getResource("droso.sqy");
+                assertNotEquals(droso,null);
+                DecodedVolumeCache.getInstance().clear();
+                final long misses = DecodedVolumeCache.getInstance().getMisses();
+
+                final Reader reader = (Reader) format.createReader();
+                reader.setSource(new RandomAccessInputStream(context,droso.getPath()));
+                final int nplanes = (int) reader.getMetadata().get(0).getPlaneCount();
+
+                final int nthreads = 8;
+                final ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+                final List<Future<byte[][]>> results = new ArrayList<>();
+                for(int i = 0;i < nthreads;i++){
+                        final int offset = i*7;
+                        results.add(pool.submit((Callable<byte[][]>) () -> {
+                                                final byte[][] planes = new byte[nplanes][];
+                                                for(int p = 0;p < nplanes;p++){
+                                                        final int z = (p + offset) % nplanes;
+                                                        planes[z] = reader.openPlane(0, z).getBytes();
+                                                }
+                                                return planes;
+                                        }));
+                }
+
+                // VERIFY, all threads saw the same pixels, the volume was decoded once
+                final byte[][] first = results.get(0).get();
+                for(final Future<byte[][]> result : results){
+                        final byte[][] planes = result.get();
+                        for(int z = 0;z < nplanes;z++){
+                                assertArrayEquals(first[z], planes[z]);
+                        }
+                }
+                final ShortBuffer plane48 = ByteBuffer.wrap(first[48]).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+                assertEquals((short)151, plane48.get(50*64 + 33));
+                assertEquals(misses + 1, DecodedVolumeCache.getInstance().getMisses());
+
+                pool.shutdown();
+                reader.close();
+        }
+
 }
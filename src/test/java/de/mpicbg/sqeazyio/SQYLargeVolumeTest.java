@@ -0,0 +1,163 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.ByteArrayPlane;
+import io.scif.config.SCIFIOConfig;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+import net.imagej.axis.Axes;
+import net.imglib2.FinalInterval;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Reader;
+import de.mpicbg.sqeazyio.SqeazyFormat.Writer;
+
+/**
+ * Volumes beyond 2 GB. The synthetic volume is a chunked file repeating one
+ * encoded slab of 256 planes (256x256 uint8, every plane filled with
+ * {@code z % 256 % 251}) 160 times, i.e. 2.5 GB decoded from a small file.
+ * Decoding it as a whole needs the same amount of memory and only runs with
+ * {@code -Dsqeazy.test.largeVolumes=true}.
+ */
+public class SQYLargeVolumeTest {
+
+    private static final Context context = new Context();
+    private static final SqeazyFormat format = new SqeazyFormat();
+
+    private static final int SIDE = 256;
+    private static final int SLAB_DEPTH = 256;
+    private static final int SLABS = 160;
+    private static final long PLANE_BYTES = SIDE*SIDE;
+    private static final long SIZE_Z = (long) SLABS*SLAB_DEPTH;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File large;
+
+    @BeforeClass
+    public static void oneTimeSetup() throws Exception {
+        format.setContext(context);
+
+        // one plain sqy stream holding a slab
+        final SqeazyFormat.Metadata wMeta = (SqeazyFormat.Metadata) format.createMetadata();
+        wMeta.setSizeX(SIDE);
+        wMeta.setSizeY(SIDE);
+        wMeta.setSizeZ(SLAB_DEPTH);
+        wMeta.setPixelSize(1);
+        wMeta.populateImageMetadata();
+
+        final File slab = folder.newFile("slab.sqy");
+        final Writer writer = (Writer) format.createWriter();
+        writer.setMetadata(wMeta);
+        writer.setDest(slab.getAbsolutePath(), new SCIFIOConfig());
+        for(int z = 0;z < SLAB_DEPTH;z++){
+            final byte[] pixels = new byte[(int) PLANE_BYTES];
+            Arrays.fill(pixels, value(z));
+            final ByteArrayPlane plane = new ByteArrayPlane(context, wMeta.get(0),
+                                                            new FinalInterval(SIDE, SIDE));
+            plane.setData(pixels);
+            writer.savePlane(0, z, plane);
+        }
+        writer.close();
+
+        // repeated into a chunked file
+        final byte[] encoded = Files.readAllBytes(slab.toPath());
+        final List<SlabIndex.Slab> slabs = new ArrayList<>();
+        large = folder.newFile("large.sqy");
+        try (OutputStream out = new FileOutputStream(large)) {
+            for(int s = 0;s < SLABS;s++){
+                out.write(encoded);
+                slabs.add(new SlabIndex.Slab((long) s*encoded.length, encoded.length,
+                                             (long) s*SLAB_DEPTH, SLAB_DEPTH));
+            }
+            final ByteBuffer index = new SlabIndex(1, SIZE_Z, SIDE, SIDE, slabs)
+                .toBytes((long) SLABS*encoded.length);
+            out.write(index.array(), 0, index.limit());
+        }
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private static byte value(final long z) {
+        return (byte) (z % SLAB_DEPTH % 251);
+    }
+
+    private Reader open() throws Exception {
+        final Reader reader = (Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, large.getAbsolutePath()));
+        return reader;
+    }
+
+    @Test public void testParse() throws Exception {
+        final Reader reader = open();
+        assertEquals(SIZE_Z, reader.getMetadata().getSizeZ());
+        assertEquals(SIZE_Z, reader.getMetadata().get(0).getAxisLength(Axes.Z));
+        assertTrue(reader.getMetadata().get(0).getSize() > Integer.MAX_VALUE);
+        assertEquals(SIZE_Z, reader.getPlaneCount(0));
+        reader.close();
+    }
+
+    @Test public void testPlanesBeyond2GB() throws Exception {
+        final Reader reader = open();
+
+        // the last plane starts 2.5 GB into the volume
+        final long last = SIZE_Z - 1;
+        assertTrue(last*PLANE_BYTES > Integer.MAX_VALUE);
+
+        final byte[] plane = reader.openPlane(0, last).getBytes();
+        assertEquals(PLANE_BYTES, plane.length);
+        assertEquals(value(last), plane[0]);
+        assertEquals(value(last), plane[plane.length - 1]);
+
+        final DirectBufferPlane direct = reader.openDirectPlane(0, last - 300);
+        assertEquals(value(last - 300), direct.getData().get(1234));
+        direct.close();
+
+        // a range across a slab border
+        final long z0 = SIZE_Z - SLAB_DEPTH - 3;
+        final ByteBuffer range = ByteBuffer.allocate((int) (6*PLANE_BYTES));
+        assertEquals(6, reader.openPlanes(0, z0, 6, range));
+        for(int i = 0;i < 6;i++){
+            assertEquals(value(z0 + i), range.get((int) (i*PLANE_BYTES + 17)));
+        }
+
+        assertEquals(false, reader.getMetadata().isDecoded());
+        reader.close();
+    }
+
+    @Test public void testDecodeEntireVolume() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("sqeazy.test.largeVolumes"));
+
+        final Reader reader = open();
+        final SqeazyFormat.Metadata meta = reader.getMetadata();
+        meta.decode(reader.getStream());
+
+        assertEquals(SIZE_Z*PLANE_BYTES, meta.getData().getValidBytes());
+        assertEquals(value(SIZE_Z - 1), (byte) meta.getData().getByteAtOffset((SIZE_Z - 1)*PLANE_BYTES + 5));
+        assertEquals(value(SIZE_Z/2), (byte) meta.getData().getByteAtOffset((SIZE_Z/2)*PLANE_BYTES));
+        reader.close();
+    }
+
+}
@@ -215,7 +215,7 @@ public class SQYParserTest {
         final String data = stream.readString(blockLen);
         assertThat(data, containsString("pipename"));
         assertThat(data, containsString("rank"));
-        final SCIFIOConfig config = new SCIFIOConfig();
+        final SCIFIOConfig config = SqeazyFormat.parserSetLazy(new SCIFIOConfig(), false);
 
         assertNotEquals(stream, null);
 		assertNotEquals(reader, null);
@@ -224,6 +224,7 @@ public class SQYParserTest {
         parser.typedParse(stream, sqyMeta, config);
 
 // VERIFY
+        assertEquals(true, sqyMeta.isDecoded());
         assertEquals(64, sqyMeta.getSizeX());
 		assertEquals(64, sqyMeta.getSizeY());
         assertEquals(81, sqyMeta.getSizeZ());
@@ -253,6 +254,33 @@ public class SQYParserTest {
 
     }
 
+    @Test public void testLazyParseReadsHeaderOnly() throws IOException, FormatException, URISyntaxException {
+
+        final URL droso = getClass().getResource("droso.sqy");
+        assertNotEquals(droso,null);
+
+        final Path fnio = Paths.get(droso.toURI());
+
+        final SqeazyFormat.Metadata sqyMeta = new SqeazyFormat.Metadata();
+        final RandomAccessInputStream stream = new RandomAccessInputStream(context, fnio.toString());
+        final SCIFIOConfig config = new SCIFIOConfig();
+        assertEquals(true, SqeazyFormat.parserIsLazy(config));
+
+        parser.typedParse(stream, sqyMeta, config);
 
+// VERIFY
+        assertEquals(64, sqyMeta.getSizeX());
+		assertEquals(64, sqyMeta.getSizeY());
+        assertEquals(81, sqyMeta.getSizeZ());
+        assertEquals(2, sqyMeta.getPixelSize());
+        assertEquals(false, sqyMeta.isDecoded());
+        assertEquals(null, sqyMeta.getData());
+
+        sqyMeta.decode(stream);
+
+        assertEquals(true, sqyMeta.isDecoded());
+        assertEquals((short)100,sqyMeta.getData().getShortBuffer().get(0));
+        assertEquals((short)151,sqyMeta.getData().getShortBuffer().get(48*(64*64)+50*64 + 33));
+    }
 
 }
@@ -0,0 +1,230 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.ByteArrayPlane;
+import io.scif.FormatException;
+import io.scif.Plane;
+import io.scif.config.SCIFIOConfig;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+import net.imglib2.FinalInterval;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Reader;
+import de.mpicbg.sqeazyio.SqeazyFormat.Writer;
+
+public class SQYWriterTest {
+
+    private static final Context context = new Context();
+    private static final SqeazyFormat format = new SqeazyFormat();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void oneTimeSetup() throws Exception {
+        format.setContext(context);
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    @Test public void testConfigHelpers() {
+        final SCIFIOConfig config = new SCIFIOConfig();
+        assertEquals(null, SqeazyFormat.writerGetPipeline(config));
+        assertEquals(0, SqeazyFormat.writerGetThreads(config));
+
+        SqeazyFormat.writerSetPipeline(config, "lz4");
+        SqeazyFormat.writerSetThreads(config, 4);
+        assertEquals("lz4", SqeazyFormat.writerGetPipeline(config));
+        assertEquals(4, SqeazyFormat.writerGetThreads(config));
+    }
+
+    @Test public void testUI16RoundTrip() throws Exception {
+
+        final URL droso = getClass().getResource("droso.sqy");
+        assertNotEquals(droso,null);
+
+        final Reader reader = (Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, droso.getPath()));
+
+        final SqeazyFormat.Metadata wMeta = (SqeazyFormat.Metadata) format.createMetadata();
+        wMeta.setSizeX(64);
+        wMeta.setSizeY(64);
+        wMeta.setSizeZ(81);
+        wMeta.setPixelSize(2);
+        wMeta.populateImageMetadata();
+
+        final File out = new File(folder.getRoot(), "droso_copy.sqy");
+        final SCIFIOConfig config = new SCIFIOConfig();
+        SqeazyFormat.writerSetThreads(config, 2);
+
+        final Writer writer = (Writer) format.createWriter();
+        writer.setMetadata(wMeta);
+        writer.setDest(out.getAbsolutePath(), config);
+
+        for(long p = 0;p < reader.getPlaneCount(0);p++){
+            final Plane plane = reader.openPlane(0, p);
+            writer.savePlane(0, p, plane);
+        }
+        writer.close();
+        reader.close();
+
+        assertEquals(true, out.isFile());
+        assertNotEquals(0, out.length());
+
+        final Reader check = (Reader) format.createReader();
+        check.setSource(new RandomAccessInputStream(context, out.getAbsolutePath()));
+        assertEquals(64, check.getMetadata().getSizeX());
+        assertEquals(81, check.getMetadata().getSizeZ());
+
+        final ByteBuffer plane48 = ByteBuffer.wrap(check.openPlane(0, 48L).getBytes())
+            .order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals((short)151, plane48.getShort(2*(50*64 + 33)));
+        check.close();
+    }
+
+    @Test public void testUI16ChunkedRoundTrip() throws Exception {
+
+        final URL droso = getClass().getResource("droso.sqy");
+        assertNotEquals(droso,null);
+
+        final Reader reader = (Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, droso.getPath()));
+
+        final SqeazyFormat.Metadata wMeta = (SqeazyFormat.Metadata) format.createMetadata();
+        wMeta.setSizeX(64);
+        wMeta.setSizeY(64);
+        wMeta.setSizeZ(81);
+        wMeta.setPixelSize(2);
+        wMeta.populateImageMetadata();
+
+        final File out = new File(folder.getRoot(), "droso_slabs.sqy");
+        final SCIFIOConfig config = new SCIFIOConfig();
+        SqeazyFormat.writerSetThreads(config, 2);
+        SqeazyFormat.writerSetSlabDepth(config, 16);
+
+        final Writer writer = (Writer) format.createWriter();
+        writer.setMetadata(wMeta);
+        writer.setDest(out.getAbsolutePath(), config);
+
+        for(long p = 0;p < reader.getPlaneCount(0);p++){
+            writer.savePlane(0, p, reader.openPlane(0, p));
+        }
+        writer.close();
+
+        // 81 planes in slabs of 16
+        final SlabIndex index = SlabIndex.read(new RandomAccessInputStream(context, out.getAbsolutePath()));
+        assertNotNull(index);
+        assertEquals(6, index.size());
+        assertEquals(81, index.getSizeZ());
+        assertEquals(80, index.get(5).getZStart());
+        assertEquals(1, index.get(5).getZCount());
+        assertEquals(3, index.slabOf(48));
+
+        final Reader check = (Reader) format.createReader();
+        check.setSource(new RandomAccessInputStream(context, out.getAbsolutePath()));
+        assertEquals(true, check.getMetadata().isChunked());
+        assertEquals(81, check.getMetadata().getSizeZ());
+
+        // a single plane only decodes its slab
+        final ByteBuffer plane48 = ByteBuffer.wrap(check.openPlane(0, 48L).getBytes())
+            .order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals((short)151, plane48.getShort(2*(50*64 + 33)));
+        assertEquals(false, check.getMetadata().isDecoded());
+
+        // ranges crossing slab borders, compared against the plain file
+        final int planeBytes = 64*64*2;
+        final ByteBuffer slab = ByteBuffer.allocate(40*planeBytes);
+        assertEquals(40, check.openPlanes(0, 10, 40, slab));
+        final ByteBuffer expected = ByteBuffer.allocate(40*planeBytes);
+        assertEquals(40, reader.openPlanes(0, 10, 40, expected));
+        assertArrayEquals(expected.array(), slab.array());
+
+        final ByteBuffer last = ByteBuffer.wrap(check.openPlane(0, 80L).getBytes());
+        assertArrayEquals(reader.openPlane(0, 80L).getBytes(), last.array());
+
+        // decoding the entire volume assembles all slabs
+        check.getMetadata().decode(check.getStream());
+        assertEquals(81L*planeBytes, check.getMetadata().getData().getValidBytes());
+        assertEquals((short)151, check.getMetadata().getData().getShortAtOffset(48L*planeBytes + 2*(50*64 + 33)));
+
+        check.close();
+        reader.close();
+    }
+
+    private static Plane filled(final SqeazyFormat.Metadata meta, final int w, final int h,
+                                final byte value)
+    {
+        final byte[] pixels = new byte[w*h];
+        Arrays.fill(pixels, value);
+        final ByteArrayPlane plane = new ByteArrayPlane(context, meta.get(0), new FinalInterval(w, h));
+        plane.setData(pixels);
+        return plane;
+    }
+
+    @Test public void testSlabsWaitForAllTiles() throws Exception {
+        // 4x4x4 uint8 in slabs of 2 planes
+        final SqeazyFormat.Metadata wMeta = (SqeazyFormat.Metadata) format.createMetadata();
+        wMeta.setSizeX(4);
+        wMeta.setSizeY(4);
+        wMeta.setSizeZ(4);
+        wMeta.setPixelSize(1);
+        wMeta.populateImageMetadata();
+
+        final File out = new File(folder.getRoot(), "tiles.sqy");
+        final SCIFIOConfig config = new SCIFIOConfig();
+        SqeazyFormat.writerSetSlabDepth(config, 2);
+
+        final Writer writer = (Writer) format.createWriter();
+        writer.setMetadata(wMeta);
+        writer.setDest(out.getAbsolutePath(), config);
+
+        // plane 0 twice and overlapping tiles of plane 1: as many bytes as
+        // the slab holds arrived before plane 1 is complete
+        writer.savePlane(0, 0, filled(wMeta, 4, 4, (byte) 1));
+        writer.savePlane(0, 0, filled(wMeta, 4, 4, (byte) 1));
+        writer.savePlane(0, 1, filled(wMeta, 3, 3, (byte) 2), new FinalInterval(new long[]{0, 0}, new long[]{2, 2}));
+        writer.savePlane(0, 1, filled(wMeta, 3, 3, (byte) 3), new FinalInterval(new long[]{1, 1}, new long[]{3, 3}));
+        writer.savePlane(0, 1, filled(wMeta, 1, 1, (byte) 4), new FinalInterval(new long[]{3, 0}, new long[]{3, 0}));
+        writer.savePlane(0, 1, filled(wMeta, 1, 1, (byte) 5), new FinalInterval(new long[]{0, 3}, new long[]{0, 3}));
+
+        // the slab is complete and written now, later planes of it are refused
+        try {
+            writer.savePlane(0, 1, filled(wMeta, 4, 4, (byte) 8));
+            fail("slab 0 was written already");
+        }
+        catch (final FormatException e) {
+            // expected
+        }
+        writer.savePlane(0, 2, filled(wMeta, 4, 4, (byte) 9));
+        writer.savePlane(0, 3, filled(wMeta, 4, 4, (byte) 10));
+        writer.close();
+
+        final Reader check = (Reader) format.createReader();
+        check.setSource(new RandomAccessInputStream(context, out.getAbsolutePath()));
+        assertEquals(2, check.getMetadata().getSlabIndex().size());
+        assertArrayEquals(new byte[]{1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1},
+                          check.openPlane(0, 0L).getBytes());
+        assertArrayEquals(new byte[]{2, 2, 2, 4, 2, 3, 3, 3, 2, 3, 3, 3, 5, 3, 3, 3},
+                          check.openPlane(0, 1L).getBytes());
+        assertEquals(10, check.openPlane(0, 3L).getBytes()[15]);
+        check.close();
+    }
+}
@@ -0,0 +1,63 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.io.ByteArrayHandle;
+import io.scif.io.RandomAccessInputStream;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+public class SlabIndexTest {
+
+    private static final Context context = new Context();
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private static RandomAccessInputStream stream(final byte[] bytes) throws Exception {
+        return new RandomAccessInputStream(context, new ByteArrayHandle(bytes));
+    }
+
+    @Test public void testRoundTrip() throws Exception {
+
+        final SlabIndex index = new SlabIndex(2, 10, 64, 32,
+                                              Arrays.asList(new SlabIndex.Slab(0, 100, 0, 4),
+                                                            new SlabIndex.Slab(100, 80, 4, 4),
+                                                            new SlabIndex.Slab(180, 20, 8, 2)));
+
+        // 200 bytes of (fake) slabs followed by index and trailer
+        final ByteBuffer footer = index.toBytes(200);
+        final byte[] file = new byte[200 + footer.remaining()];
+        footer.get(file, 200, footer.remaining());
+
+        final SlabIndex read = SlabIndex.read(stream(file));
+        assertNotNull(read);
+        assertEquals(3, read.size());
+        assertEquals(2, read.getSizeof());
+        assertEquals(10, read.getSizeZ());
+        assertEquals(64*32*2, read.getPlaneBytes());
+        assertEquals(100, read.get(1).getOffset());
+        assertEquals(80, read.get(1).getLength());
+
+        assertEquals(0, read.slabOf(3));
+        assertEquals(1, read.slabOf(4));
+        assertEquals(2, read.slabOf(9));
+        assertTrue(read.get(1).overlaps(2, 3));
+        assertFalse(read.get(1).overlaps(8, 2));
+    }
+
+    @Test public void testPlainFilesHaveNoIndex() throws Exception {
+        assertNull(SlabIndex.read(new RandomAccessInputStream(context,
+                                                              getClass().getResource("droso.sqy").getPath())));
+        assertNull(SlabIndex.read(stream(new byte[8])));
+    }
+
+}
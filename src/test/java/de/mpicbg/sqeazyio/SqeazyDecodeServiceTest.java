@@ -0,0 +1,171 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+import io.scif.io.RandomAccessInputStream;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+import org.bridj.Pointer;
+
+import de.mpicbg.sqeazyio.SqeazyDecodeService.DecodePriority;
+
+public class SqeazyDecodeServiceTest {
+
+    private static final Context context = new Context();
+
+    //droso.sqy: 81x64x64 uint16
+    private static final long DROSO_BYTES = 81L*64*64*2;
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private String droso() {
+        final URL url = getClass().getResource("droso.sqy");
+        assertNotEquals(url,null);
+        return url.getPath();
+    }
+
+    @Test public void testServiceIsAvailable() {
+        final SqeazyDecodeService service = context.getService(SqeazyDecodeService.class);
+        assertNotNull(service);
+        assertTrue(service.getMaxThreads() >= 1);
+        assertEquals(0, service.getRunningDecodes());
+    }
+
+    @Test public void testDecode() throws Exception {
+        final SqeazyDecodeService service = context.getService(SqeazyDecodeService.class);
+
+        final RandomAccessInputStream stream = new RandomAccessInputStream(context, droso());
+        final Pointer<Byte> decoded = service.decode(stream, 2, DROSO_BYTES, 0,
+                                                     DecodePriority.INTERACTIVE);
+        assertEquals(DROSO_BYTES, decoded.getValidBytes());
+        assertEquals((short)100, decoded.getShortBuffer().get(0));
+        NativeBufferPool.getInstance().release(decoded);
+
+        assertEquals(0, service.getThreadsInUse());
+        assertEquals(0, service.getBytesInFlight());
+    }
+
+    @Test(expected = FormatException.class)
+    public void testRefusesVolumesBeyondBudget() throws Exception {
+        final SqeazyDecodeService service = context.getService(SqeazyDecodeService.class);
+        final long budget = service.getMemoryBudget();
+        service.setMemoryBudget(DROSO_BYTES - 1);
+        try {
+            service.decode(new RandomAccessInputStream(context, droso()), 2, DROSO_BYTES, 0,
+                           DecodePriority.BACKGROUND);
+        }
+        finally {
+            service.setMemoryBudget(budget);
+        }
+    }
+
+    @Test public void testConcurrentDecodesRespectThreadCap() throws Exception {
+        final SqeazyDecodeService service = context.getService(SqeazyDecodeService.class);
+        final int maxThreads = service.getMaxThreads();
+        service.setMaxThreads(1);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Short>> results = new ArrayList<>();
+            for(int i = 0;i<8;i++){
+                final DecodePriority priority = i % 2 == 0 ? DecodePriority.INTERACTIVE : DecodePriority.BACKGROUND;
+                results.add(pool.submit(() -> {
+                            final Pointer<Byte> decoded = service.decode(new RandomAccessInputStream(context, droso()),
+                                                                         2, DROSO_BYTES, 0, priority);
+                            assertTrue(service.getThreadsInUse() <= 1);
+                            final short first = decoded.getShortBuffer().get(0);
+                            NativeBufferPool.getInstance().release(decoded);
+                            return first;
+                        }));
+            }
+            for(final Future<Short> result : results){
+                assertEquals((short)100, (short)result.get());
+            }
+        }
+        finally {
+            pool.shutdown();
+            service.setMaxThreads(maxThreads);
+        }
+
+        assertEquals(0, service.getRunningDecodes());
+        assertEquals(0, service.getQueuedDecodes());
+    }
+
+    @Test public void testContextsShareThreadCap() throws Exception {
+        final Context other = new Context();
+        final SqeazyDecodeService first = context.getService(SqeazyDecodeService.class);
+        final SqeazyDecodeService second = other.getService(SqeazyDecodeService.class);
+        final int maxThreads = first.getMaxThreads();
+        first.setMaxThreads(1);
+
+        // two contexts and a Metadata without any context, all decoding at once
+        final ExecutorService pool = Executors.newFixedThreadPool(6);
+        final AtomicBoolean decoding = new AtomicBoolean(true);
+        final AtomicInteger peak = new AtomicInteger();
+        final Thread sampler = new Thread(() -> {
+                while(decoding.get()){
+                    peak.accumulateAndGet(first.getThreadsInUse(), Math::max);
+                    Thread.yield();
+                }
+            });
+        try {
+            assertEquals(1, second.getMaxThreads());
+            sampler.start();
+
+            final List<Future<Short>> results = new ArrayList<>();
+            for(int i = 0;i<12;i++){
+                final int kind = i % 3;
+                results.add(pool.submit(() -> {
+                            final Pointer<Byte> decoded;
+                            if(kind == 2){
+                                final SqeazyFormat.Metadata meta = new SqeazyFormat.Metadata();
+                                final RandomAccessInputStream stream = new RandomAccessInputStream(context, droso());
+                                assertTrue(meta.readHeaders(stream));
+                                decoded = NativeBufferPool.getInstance().allocate(DROSO_BYTES);
+                                meta.decodeInto(stream, decoded, DecodePriority.BACKGROUND);
+                            }
+                            else {
+                                final SqeazyDecodeService service = kind == 0 ? first : second;
+                                final Context owner = kind == 0 ? context : other;
+                                decoded = service.decode(new RandomAccessInputStream(owner, droso()),
+                                                         2, DROSO_BYTES, 0, DecodePriority.INTERACTIVE);
+                            }
+                            final short value = decoded.getShortBuffer().get(0);
+                            NativeBufferPool.getInstance().release(decoded);
+                            return value;
+                        }));
+            }
+            for(final Future<Short> result : results){
+                assertEquals((short)100, (short)result.get());
+            }
+        }
+        finally {
+            decoding.set(false);
+            sampler.join();
+            pool.shutdown();
+            first.setMaxThreads(maxThreads);
+            other.dispose();
+        }
+
+        assertTrue(peak.get() <= 1);
+        assertEquals(maxThreads, second.getMaxThreads());
+        assertEquals(0, second.getRunningDecodes());
+    }
+}
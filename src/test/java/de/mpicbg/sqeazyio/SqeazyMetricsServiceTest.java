@@ -0,0 +1,142 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.ByteArrayPlane;
+import io.scif.config.SCIFIOConfig;
+import io.scif.io.RandomAccessInputStream;
+import io.scif.util.FormatTools;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+import org.bridj.Pointer;
+
+import net.imglib2.FinalInterval;
+
+import de.mpicbg.sqeazyio.SqeazyDecodeService.DecodePriority;
+import de.mpicbg.sqeazyio.SqyMetrics.Stage;
+
+public class SqeazyMetricsServiceTest {
+
+    private static final Context context = new Context();
+
+    //droso.sqy: 81x64x64 uint16
+    private static final long DROSO_BYTES = 81L*64*64*2;
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private String droso() {
+        final URL url = getClass().getResource("droso.sqy");
+        assertNotEquals(url,null);
+        return url.getPath();
+    }
+
+    @Test public void testBuckets() {
+        assertEquals(0, SqyMetrics.bucket(999));
+        assertEquals(1, SqyMetrics.bucket(1000));
+        assertEquals(2, SqyMetrics.bucket(3999));
+        assertEquals(3, SqyMetrics.bucket(4000));
+        assertEquals(SqyMetrics.BUCKETS - 1, SqyMetrics.bucket(Long.MAX_VALUE));
+    }
+
+    @Test public void testPercentiles() {
+        final long[] histogram = new long[SqyMetrics.BUCKETS];
+        histogram[4] = 98; // below 16 us
+        histogram[11] = 2; // below 2048 us
+        final StageStatistics stats = new StageStatistics(100, 5000000, 2000000, histogram);
+
+        assertEquals(0.016, stats.getMedianMillis(), 1e-9);
+        assertEquals(2.0, stats.getP99Millis(), 1e-9);
+        assertEquals(0.05, stats.getMeanMillis(), 1e-9);
+        assertEquals(0, new StageStatistics(0, 0, 0, new long[SqyMetrics.BUCKETS]).getP99Millis(), 0);
+    }
+
+    @Test public void testDecodeIsRecorded() throws Exception {
+        final SqeazyMetricsService service = context.getService(SqeazyMetricsService.class);
+        assertNotNull(service);
+
+        final SqyMetrics metrics = service.getMetrics();
+        final long decodes = metrics.getDecode().getCount();
+        final long reads = metrics.getFileRead().getCount();
+        final long decoded = metrics.getBytesDecoded();
+
+        final RandomAccessInputStream stream = new RandomAccessInputStream(context, droso());
+        final Pointer<Byte> volume = context.getService(SqeazyDecodeService.class)
+            .decode(stream, 2, DROSO_BYTES, 0, DecodePriority.INTERACTIVE);
+        NativeBufferPool.getInstance().release(volume);
+        stream.close();
+
+        assertTrue(metrics.getDecode().getCount() > decodes);
+        assertTrue(metrics.getFileRead().getCount() > reads);
+        assertTrue(metrics.getBytesDecoded() - decoded >= DROSO_BYTES);
+        assertTrue(metrics.getCompressionRatio() > 1);
+        assertTrue(service.getStatistics(Stage.DECODE).getTotalNanos() > 0);
+        assertEquals(0, metrics.getConcurrentDecodes());
+        assertTrue(metrics.getPeakConcurrentDecodes() >= 1);
+    }
+
+    @Test public void testPlaneCopyIsRecorded() throws Exception {
+        final SqeazyMetricsService service = context.getService(SqeazyMetricsService.class);
+        final long copied = service.getMetrics().getBytesCopied();
+
+        final SqeazyFormat format = new SqeazyFormat();
+        format.setContext(context);
+        final SqeazyFormat.Reader reader = (SqeazyFormat.Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, droso()));
+        final ByteArrayPlane plane = reader.openPlane(0, 5);
+        reader.close();
+
+        assertEquals(plane.getBytes().length, service.getMetrics().getBytesCopied() - copied);
+        assertTrue(service.getStatistics(Stage.PLANE_COPY).getCount() > 0);
+        assertTrue(service.report().contains("PLANE_COPY"));
+    }
+
+    @Test public void testConvertedCopiesCountOutputBytes() throws Exception {
+        final SqeazyMetricsService service = context.getService(SqeazyMetricsService.class);
+
+        final SqeazyFormat format = new SqeazyFormat();
+        format.setContext(context);
+        final SqeazyFormat.Reader reader = (SqeazyFormat.Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, droso()),
+                         SqeazyFormat.parserSetPixelType(new SCIFIOConfig(), FormatTools.FLOAT, true));
+
+        // whole planes (one transfer) and crops (one per row) count the same
+        long copied = service.getMetrics().getBytesCopied();
+        final byte[] full = reader.openPlane(0, 5).getBytes();
+        assertEquals(64*64*4, full.length);
+        assertEquals(full.length, service.getMetrics().getBytesCopied() - copied);
+
+        copied = service.getMetrics().getBytesCopied();
+        final ByteArrayPlane crop = new ByteArrayPlane(context);
+        crop.setData(new byte[10*8*4]);
+        reader.openPlane(0, 5, crop, new FinalInterval(new long[]{3, 2}, new long[]{12, 9}),
+                         new SCIFIOConfig());
+        assertEquals(crop.getBytes().length, service.getMetrics().getBytesCopied() - copied);
+        reader.close();
+    }
+
+        @Test public void testPublishedThroughJmx() throws Exception {
+        final SqeazyMetricsService service = context.getService(SqeazyMetricsService.class);
+        service.getMetrics().getBytesRead();
+
+        final ObjectName name = new ObjectName(SqyMetrics.OBJECT_NAME);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+        final CompositeData decode =
+            (CompositeData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Decode");
+        assertNotNull(decode.get("count"));
+        assertNotNull(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "CompressionRatio"));
+    }
+}
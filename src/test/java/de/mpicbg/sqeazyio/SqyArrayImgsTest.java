@@ -0,0 +1,82 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.io.RandomAccessInputStream;
+
+import java.net.URL;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Reader;
+
+public class SqyArrayImgsTest {
+
+    private static final Context context = new Context();
+    private static final SqeazyFormat format = new SqeazyFormat();
+
+    static {
+        format.setContext(context);
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private Reader open(final String name) throws Exception {
+        final URL url = getClass().getResource(name);
+        assertNotEquals(url,null);
+        final Reader reader = (Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, url.getPath()));
+        return reader;
+    }
+
+    @Test public void testUI16() throws Exception {
+        //droso.sqy: 81x64x64 uint16
+        final Reader reader = open("droso.sqy");
+        final ArrayImg<UnsignedShortType, ?> img = SqyArrayImgs.open(reader);
+        // decoded into the image, not into the reader's volume
+        assertFalse(reader.getMetadata().isDecoded());
+        reader.close();
+
+        assertArrayEquals(new long[]{64, 64, 81}, new long[]{img.dimension(0), img.dimension(1), img.dimension(2)});
+        assertTrue(img.update(null) instanceof SqyArrayImgs.ShortBufferAccess);
+
+        final RandomAccess<UnsignedShortType> ra = img.randomAccess();
+        ra.setPosition(new long[]{0, 0, 0});
+        assertEquals(100, ra.get().get());
+        ra.setPosition(new long[]{1, 0, 0});
+        assertEquals(101, ra.get().get());
+        ra.setPosition(new long[]{33, 50, 48});
+        assertEquals(151, ra.get().get());
+    }
+
+    @Test public void testUI8AfterPlaneReads() throws Exception {
+        //flybrain.sqy: 57x256x256 uint8
+        final Reader reader = open("flybrain.sqy");
+        final byte[] plane = reader.openPlane(0, 24).getBytes();
+        assertTrue(reader.getMetadata().isDecoded());
+
+        // the volume the reader holds already is copied
+        final ArrayImg<UnsignedByteType, ?> img = SqyArrayImgs.open(reader);
+        reader.close();
+
+        assertEquals(57, img.dimension(2));
+        final RandomAccess<UnsignedByteType> ra = img.randomAccess();
+        ra.setPosition(new long[]{107, 3, 24});
+        assertEquals(79, ra.get().get());
+        ra.setPosition(new long[]{112, 16, 24});
+        assertEquals(121, ra.get().get());
+        ra.setPosition(new long[]{5, 9, 24});
+        assertEquals(plane[9*256 + 5] & 0xff, ra.get().get());
+    }
+}
@@ -0,0 +1,173 @@
+package de.mpicbg.sqeazyio;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+public class SqyCatalogueTest {
+
+    private static final Context context = new Context();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private File copy(final String name, final File dir) throws Exception {
+        final URL url = getClass().getResource(name);
+        assertNotEquals(url,null);
+        final File dest = new File(dir, name);
+        Files.copy(Paths.get(url.toURI()), dest.toPath());
+        return dest;
+    }
+
+    @Test public void testHeadersAreCatalogued() throws Exception {
+        final File root = folder.newFolder("acquisitions");
+        final File sub = new File(root, "embryo");
+        assertTrue(sub.mkdir());
+        final File droso = copy("droso.sqy", root);
+        copy("flybrain.sqy", sub);
+        Files.write(new File(sub, "notes.txt").toPath(), "no sqy".getBytes(StandardCharsets.US_ASCII));
+
+        try (SqyCatalogue catalogue = new SqyCatalogue(context, folder.newFile("index.cat"))) {
+            assertEquals(2, catalogue.update(root));
+            assertEquals(2, catalogue.size());
+
+            //droso.sqy: 81x64x64 uint16
+            final List<SqyCatalogue.Entry> wide = catalogue.query(e -> e.getSizeof() == 2);
+            assertEquals(1, wide.size());
+            final SqyCatalogue.Entry entry = wide.get(0);
+            assertEquals(droso.getAbsolutePath(), entry.getPath());
+            assertArrayEquals(new long[]{81, 64, 64}, entry.getShape());
+            assertEquals(64, entry.getSizeX());
+            assertEquals(81, entry.getSizeZ());
+            assertEquals(droso.length(), entry.getCompressedSize());
+            assertEquals(81L*64*64*2, entry.getDecodedBytes());
+            assertNotNull(entry.getPipeline());
+            assertFalse(entry.isChunked());
+
+            //flybrain.sqy: 57x256x256 uint8
+            final List<SqyCatalogue.Entry> large = catalogue.query(e -> e.getSizeX() == 256);
+            assertEquals(1, large.size());
+            assertEquals(57, large.get(0).getSizeZ());
+            assertNotNull(catalogue.get(droso));
+        }
+    }
+
+    @Test public void testUnchangedFilesAreNotReopened() throws Exception {
+        final File root = folder.newFolder("acquisitions");
+        final File droso = copy("droso.sqy", root);
+        final File fly = copy("flybrain.sqy", root);
+        final File index = folder.newFile("index.cat");
+        // no sqy file, it is remembered all the same
+        Files.write(new File(root, "broken.sqy").toPath(), "{ nope".getBytes(StandardCharsets.US_ASCII));
+
+        try (SqyCatalogue catalogue = new SqyCatalogue(context, index)) {
+            assertEquals(3, catalogue.update(root));
+            assertEquals(0, catalogue.update(root));
+
+            assertTrue(droso.setLastModified(droso.lastModified() - 60000));
+            assertTrue(fly.delete());
+            assertEquals(1, catalogue.update(root));
+            assertEquals(1, catalogue.size());
+            assertNull(catalogue.get(fly));
+            assertEquals(droso.lastModified(), catalogue.get(droso).getLastModified());
+        }
+
+        // the catalogue is persisted
+        try (SqyCatalogue reopened = new SqyCatalogue(context, index)) {
+            assertEquals(1, reopened.size());
+            assertEquals(0, reopened.update(root));
+            assertArrayEquals(new long[]{81, 64, 64}, reopened.entries().get(0).getShape());
+        }
+    }
+
+    @Test public void testDeletedRecordsAreCompacted() throws Exception {
+        final File root = folder.newFolder("acquisitions");
+        final File tiny = copy("tiny-10x10x3.sqy", root);
+        final File index = folder.newFile("index.cat");
+
+        try (SqyCatalogue catalogue = new SqyCatalogue(context, index)) {
+            catalogue.update(root);
+            final long size = index.length();
+            for (int i = 1; i <= 100; i++) {
+                assertTrue(tiny.setLastModified(tiny.lastModified() + 1000));
+                assertEquals(1, catalogue.update(root));
+            }
+            assertEquals(1, catalogue.size());
+            assertEquals(tiny.lastModified(), catalogue.entries().get(0).getLastModified());
+            // the replaced records were dropped at least once
+            assertTrue(index.length() < 100 * (size - SqyCatalogue.HEADER_SIZE));
+        }
+    }
+
+    @Test public void testLevelsAndPartialFilesAreSkipped() throws Exception {
+        final File root = folder.newFolder("acquisitions");
+        final File tiny = copy("tiny-10x10x3.sqy", root);
+        SqyPyramid.build(context, tiny, 1, false);
+        assertTrue(SqyPyramid.levelFile(tiny, 1).isFile());
+        // as left by a conversion still running
+        Files.copy(tiny.toPath(), new File(root, ".converting.part.sqy").toPath());
+
+        try (SqyCatalogue catalogue = new SqyCatalogue(context, folder.newFile("index.cat"))) {
+            assertEquals(1, catalogue.update(root));
+            assertEquals(1, catalogue.size());
+            assertEquals(tiny.getAbsolutePath(), catalogue.entries().get(0).getPath());
+        }
+    }
+
+    @Test public void testCompactionIsSeenByOtherInstances() throws Exception {
+        final File root = folder.newFolder("acquisitions");
+        final File tiny = copy("tiny-10x10x3.sqy", root);
+        final File droso = copy("droso.sqy", root);
+        final File index = folder.newFile("index.cat");
+
+        try (SqyCatalogue writer = new SqyCatalogue(context, index);
+             SqyCatalogue reader = new SqyCatalogue(context, index))
+        {
+            writer.update(root);
+            final SqyCatalogue.Entry before = reader.get(droso);
+            assertNotNull(before);
+
+            // the records of tiny are replaced until the catalogue is compacted
+            final long size = index.length();
+            for (int i = 1; i <= 100; i++) {
+                assertTrue(tiny.setLastModified(tiny.lastModified() + 1000));
+                writer.update(root);
+            }
+            assertTrue(index.length() < 100 * (size - SqyCatalogue.HEADER_SIZE));
+
+            assertEquals(2, reader.size());
+            assertEquals(tiny.lastModified(), reader.get(tiny).getLastModified());
+            assertEquals(droso.getAbsolutePath(), reader.get(droso).getPath());
+            assertArrayEquals(new long[]{81, 64, 64}, reader.get(droso).getShape());
+            // entries are copies, compaction does not touch them
+            assertEquals(droso.getAbsolutePath(), before.getPath());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testForeignFilesAreRejected() throws Exception {
+        final File notes = folder.newFile("notes.txt");
+        Files.write(notes.toPath(), Arrays.asList("this is no catalogue, but long enough for a header"),
+                    StandardCharsets.US_ASCII);
+        new SqyCatalogue(context, notes).close();
+    }
+}
@@ -0,0 +1,140 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.config.SCIFIOConfig;
+import io.scif.io.RandomAccessInputStream;
+import io.scif.util.FormatTools;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Reader;
+
+public class SqyCellImgsTest {
+
+    private static final Context context = new Context();
+    private static final SqeazyFormat format = new SqeazyFormat();
+
+    static {
+        format.setContext(context);
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private Reader open(final String name) throws Exception {
+        final URL url = getClass().getResource(name);
+        assertNotEquals(url,null);
+        final Reader reader = (Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, url.getPath()));
+        return reader;
+    }
+
+    @Test public void testUI16() throws Exception {
+        //droso.sqy: 81x64x64 uint16
+        final Reader reader = open("droso.sqy");
+        final CachedCellImg<UnsignedShortType, ?> img = SqyCellImgs.open(reader);
+
+        assertArrayEquals(new long[]{64, 64, 81}, new long[]{img.dimension(0), img.dimension(1), img.dimension(2)});
+        assertEquals(81, img.getCellGrid().cellDimension(2));
+
+        final RandomAccess<UnsignedShortType> ra = img.randomAccess();
+        ra.setPosition(new long[]{0, 0, 0});
+        assertEquals(100, ra.get().get());
+        ra.setPosition(new long[]{1, 0, 0});
+        assertEquals(101, ra.get().get());
+        ra.setPosition(new long[]{33, 50, 48});
+        assertEquals(151, ra.get().get());
+        reader.close();
+    }
+
+    @Test public void testConvertedCells() throws Exception {
+        //droso.sqy: 81x64x64 uint16, read as big endian floats straight into float[] cells
+        final URL url = getClass().getResource("droso.sqy");
+        assertNotEquals(url,null);
+        final Reader reader = (Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, url.getPath()),
+                         SqeazyFormat.parserSetPixelType(new SCIFIOConfig(), FormatTools.FLOAT, false));
+        final CachedCellImg<FloatType, ?> img = SqyCellImgs.open(reader);
+
+        final RandomAccess<FloatType> ra = img.randomAccess();
+        ra.setPosition(new long[]{1, 0, 0});
+        assertEquals(101f, ra.get().get(), 0f);
+        ra.setPosition(new long[]{33, 50, 48});
+        assertEquals(151f, ra.get().get(), 0f);
+        reader.close();
+    }
+
+    @Test public void testUI8BoundedCache() throws Exception {
+        //flybrain.sqy: 57x256x256 uint8
+        final Reader reader = open("flybrain.sqy");
+        final CachedCellImg<UnsignedByteType, ?> img = SqyCellImgs.open(reader, CacheType.BOUNDED, 2);
+
+        assertEquals(57, img.dimension(2));
+        final RandomAccess<UnsignedByteType> ra = img.randomAccess();
+        ra.setPosition(new long[]{107, 3, 24});
+        assertEquals(79, ra.get().get());
+        ra.setPosition(new long[]{112, 16, 24});
+        assertEquals(121, ra.get().get());
+        reader.close();
+    }
+
+    @Test public void testCellDepth() throws Exception {
+        final SqeazyFormat.Metadata meta = new SqeazyFormat.Metadata();
+        meta.setSizeX(2048);
+        meta.setSizeY(2048);
+        meta.setSizeZ(1000);
+        meta.setPixelSize(2);
+        // 8 MB planes, two per cell
+        assertEquals(2, SqyCellImgs.cellDepth(meta));
+
+        meta.setSizeX(16);
+        meta.setSizeY(16);
+        meta.setSizeZ(10);
+        assertEquals(10, SqyCellImgs.cellDepth(meta));
+    }
+
+    @Test public void testPlanesBeyondACellAreRejected() throws Exception {
+        // only the header is parsed: a single 40000x40000 uint16 plane of 3.2 GB
+        final File file = folder.newFile("huge.sqy");
+        Files.write(file.toPath(), ("{\"pipename\":\"lz4\",\"raw\":{\"type\":\"uint16\",\"rank\":2," +
+                                    "\"shape\":{\"dim\":\"40000\",\"dim\":\"40000\"}}," +
+                                    "\"encoded\":{\"bytes\":\"12\"}}|0123456789ab")
+                    .getBytes(StandardCharsets.US_ASCII));
+
+        final Reader reader = (Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, file.getAbsolutePath()));
+        try {
+            SqyCellImgs.open(reader);
+            fail("a plane of 3.2 GB does not fit a cell");
+        }
+        catch (final IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(Long.toString(40000L * 40000 * 2)));
+        }
+        finally {
+            reader.close();
+        }
+    }
+}
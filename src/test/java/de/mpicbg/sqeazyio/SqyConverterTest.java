@@ -0,0 +1,173 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.FormatException;
+import io.scif.SCIFIO;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Reader;
+
+public class SqyConverterTest {
+
+    private static final Context context = new Context();
+    private static final SqeazyFormat format = new SqeazyFormat();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void oneTimeSetup() throws Exception {
+        format.setContext(context);
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private File copyResource(final String name, final File dir) throws Exception {
+        final URL url = getClass().getResource(name);
+        assertNotEquals(url,null);
+        final File copy = new File(dir, name);
+        Files.copy(Paths.get(url.toURI()), copy.toPath());
+        return copy;
+    }
+
+    @Test public void testTranslatorStacksNonPlanarAxes() throws Exception {
+
+        final File tiny = new File(getClass().getResource("tiny-10x10x3.tif").toURI());
+        final SCIFIO scifio = new SCIFIO(context);
+        final io.scif.Metadata tiffMeta = scifio.initializer().parseMetadata(tiny.getAbsolutePath());
+
+        final SqeazyFormat.Metadata sqyMeta = (SqeazyFormat.Metadata) format.createMetadata();
+        new SqeazyFormat.Translator().translate(tiffMeta, sqyMeta);
+
+        assertEquals(10, sqyMeta.getSizeX());
+        assertEquals(10, sqyMeta.getSizeY());
+        assertEquals(3, sqyMeta.getSizeZ());
+        assertEquals(1, sqyMeta.getPixelSize());
+        assertEquals(SqeazyFormat.DEFAULT_PIPELINE, sqyMeta.getPipeline());
+    }
+
+    @Test public void testConvertDirectory() throws Exception {
+
+        final File in = folder.newFolder("tiffs");
+        final File out = new File(folder.getRoot(), "sqys");
+        copyResource("tiny-10x10x3.tif", in);
+        copyResource("droso.tif", in);
+
+        final SqyConverter converter = new SqyConverter(context)
+            .setParallelism(2)
+            .setMemoryBudget(64L << 20);
+
+        final List<File> written = converter.convertDirectory(in, out);
+        assertEquals(2, written.size());
+
+        final File droso = new File(out, "droso.sqy");
+        assertEquals(true, droso.isFile());
+
+        final Reader reader = (Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, droso.getAbsolutePath()));
+        assertEquals(64, reader.getMetadata().getSizeX());
+        assertEquals(64, reader.getMetadata().getSizeY());
+        assertEquals(81, reader.getMetadata().getSizeZ());
+
+        //same probe as for the bundled droso.sqy
+        final ByteBuffer plane48 = ByteBuffer.wrap(reader.openPlane(0, 48L).getBytes())
+            .order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals((short)151, plane48.getShort(2*(50*64 + 33)));
+        reader.close();
+
+        //nothing to do on a second run
+        assertEquals(0, converter.convertDirectory(in, out).size());
+    }
+
+    @Test public void testFailedConversionLeavesNoDestination() throws Exception {
+
+        final File in = folder.newFolder("tiffs");
+        final File out = folder.newFolder("sqys");
+        final File tiny = copyResource("tiny-10x10x3.tif", in);
+
+        // sqeazy rejects the pipeline once the volume is encoded, i.e. after
+        // the writer was opened
+        final SqyConverter converter = new SqyConverter(context).setPipeline("no_such_filter");
+
+        final File dest = new File(out, "tiny-10x10x3.sqy");
+        try {
+            converter.convert(tiny, dest);
+            fail("an unknown pipeline has to fail the conversion");
+        }
+        catch (final IOException | FormatException e) {
+            // expected
+        }
+        assertFalse(dest.exists());
+        assertEquals(0, out.list().length);
+
+        assertEquals(0, converter.convertDirectory(in, out).size());
+        assertEquals(0, out.list().length);
+    }
+
+    @Test public void testSignedPixelsAreRejected() throws Exception {
+
+        // a SCIFIO fake image, its pixels are described by the name only
+        final File in = folder.newFolder("fakes");
+        final File out = folder.newFolder("sqys");
+        final File signed = new File(in, "signed&pixelType=int16&lengths=10,10,3&axes=X,Y,Z.fake");
+        assertTrue(signed.createNewFile());
+
+        final SqyConverter converter = new SqyConverter(context);
+        try {
+            converter.convert(signed, new File(out, "signed.sqy"));
+            fail("int16 pixels would be stored as uint16");
+        }
+        catch (final FormatException e) {
+            // expected
+        }
+        assertEquals(0, out.list().length);
+        assertEquals(0, converter.setPattern("*.fake").convertDirectory(in, out).size());
+        assertEquals(0, out.list().length);
+
+        // nor does the Writer take them
+        final SCIFIO scifio = new SCIFIO(context);
+        final io.scif.Metadata fakeMeta = scifio.initializer().parseMetadata(signed.getAbsolutePath());
+        try {
+            scifio.initializer().initializeWriter(fakeMeta, new File(out, "direct.sqy").getAbsolutePath());
+            fail("the Writer has to reject int16 pixels");
+        }
+        catch (final FormatException e) {
+            // expected
+        }
+    }
+
+    @Test public void testSourcesOfTheSameNameAreSkipped() throws Exception {
+
+        final File in = folder.newFolder("tiffs");
+        final File out = folder.newFolder("sqys");
+        final File tiny = copyResource("tiny-10x10x3.tif", in);
+        Files.copy(tiny.toPath(), new File(in, "tiny-10x10x3.tiff").toPath());
+        copyResource("droso.tif", in);
+
+        final List<File> written = new SqyConverter(context).convertDirectory(in, out);
+        assertEquals(1, written.size());
+        assertEquals(new File(out, "droso.sqy"), written.get(0));
+        assertFalse(new File(out, "tiny-10x10x3.sqy").exists());
+    }
+}
@@ -0,0 +1,161 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.ByteArrayPlane;
+import io.scif.config.SCIFIOConfig;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+import net.imagej.axis.Axes;
+import net.imglib2.FinalInterval;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Reader;
+import de.mpicbg.sqeazyio.SqeazyFormat.Writer;
+
+/**
+ * A dataset of 2 channels and 3 time points, 16x16x4 uint8 volumes per file
+ * with every plane filled with {@code 100*t + 10*c + z}.
+ */
+public class SqyDatasetTest {
+
+    private static final Context context = new Context();
+    private static final SqeazyFormat format = new SqeazyFormat();
+
+    private static final int SIDE = 16;
+    private static final int DEPTH = 4;
+    private static final int CHANNELS = 2;
+    private static final int TIMEPOINTS = 3;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File dir;
+
+    @BeforeClass
+    public static void oneTimeSetup() throws Exception {
+        format.setContext(context);
+
+        dir = folder.newFolder("embryo");
+        for(int t = 0;t < TIMEPOINTS;t++){
+            for(int c = 0;c < CHANNELS;c++){
+                // channels are numbered from 1 and time points zero padded on purpose
+                write(new File(dir, String.format("embryo_t%03d_c%d.sqy", t, c + 1)), c, t);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private static byte value(final int c, final int t, final int z) {
+        return (byte) (100*t + 10*c + z);
+    }
+
+    private static void write(final File file, final int c, final int t) throws Exception {
+        final SqeazyFormat.Metadata wMeta = (SqeazyFormat.Metadata) format.createMetadata();
+        wMeta.setSizeX(SIDE);
+        wMeta.setSizeY(SIDE);
+        wMeta.setSizeZ(DEPTH);
+        wMeta.setPixelSize(1);
+        wMeta.populateImageMetadata();
+
+        final Writer writer = (Writer) format.createWriter();
+        writer.setMetadata(wMeta);
+        writer.setDest(file.getAbsolutePath(), new SCIFIOConfig());
+        for(int z = 0;z < DEPTH;z++){
+            final byte[] pixels = new byte[SIDE*SIDE];
+            Arrays.fill(pixels, value(c, t, z));
+            final ByteArrayPlane plane = new ByteArrayPlane(context, wMeta.get(0),
+                                                            new FinalInterval(SIDE, SIDE));
+            plane.setData(pixels);
+            writer.savePlane(0, z, plane);
+        }
+        writer.close();
+    }
+
+    private Reader open(final File member) throws Exception {
+        final Reader reader = (Reader) format.createReader();
+        final SCIFIOConfig config = SqeazyFormat.parserSetDataset(new SCIFIOConfig(), true);
+        reader.setSource(new RandomAccessInputStream(context, member.getAbsolutePath()), config);
+        return reader;
+    }
+
+    @Test public void testTemplate() {
+        assertEquals("embryo_t#_c#", SqyDataset.template("embryo_t001_c2.sqy"));
+        assertEquals(SqyDataset.template("embryo_t001_c2.sqy"),
+                     SqyDataset.template("embryo_T017_C1.sqy"));
+        // tokens have to be separated from the rest of the name
+        assertEquals("sct5", SqyDataset.template("sct5.sqy"));
+        assertEquals(17, SqyDataset.token("embryo_t017_c2.sqy", 't'));
+        assertEquals(2, SqyDataset.token("embryo_t017_c2.sqy", 'c'));
+        assertEquals(0, SqyDataset.token("embryo_t017.sqy", 'c'));
+    }
+
+    @Test public void testFind() throws Exception {
+        final SqyDataset dataset = SqyDataset.find(new File(dir, "embryo_t001_c2.sqy"));
+        assertEquals(CHANNELS, dataset.getSizeC());
+        assertEquals(TIMEPOINTS, dataset.getSizeT());
+        assertEquals(CHANNELS*TIMEPOINTS, dataset.size());
+        assertEquals("embryo_t002_c1.sqy", dataset.getFile(0, 2).getName());
+        assertEquals("embryo_t000_c2.sqy", dataset.getFile(1, 0).getName());
+    }
+
+    @Test(expected = IOException.class)
+    public void testIncompleteDataset() throws Exception {
+        SqyDataset.of(Arrays.asList(new File(dir, "embryo_t000_c1.sqy"),
+                                    new File(dir, "embryo_t000_c2.sqy"),
+                                    new File(dir, "embryo_t001_c1.sqy")));
+    }
+
+    @Test public void testParse() throws Exception {
+        final Reader reader = open(new File(dir, "embryo_t001_c1.sqy"));
+        final SqeazyFormat.Metadata meta = reader.getMetadata();
+        assertTrue(meta.isDataset());
+        assertEquals(CHANNELS, meta.get(0).getAxisLength(Axes.CHANNEL));
+        assertEquals(TIMEPOINTS, meta.get(0).getAxisLength(Axes.TIME));
+        assertEquals(DEPTH, meta.get(0).getAxisLength(Axes.Z));
+        assertEquals(1, reader.getImageCount());
+        assertEquals(DEPTH*CHANNELS*TIMEPOINTS, reader.getPlaneCount(0));
+        reader.close();
+    }
+
+    @Test public void testSingleFileByDefault() throws Exception {
+        final Reader reader = (Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, new File(dir, "embryo_t001_c1.sqy").getAbsolutePath()));
+        assertFalse(reader.getMetadata().isDataset());
+        assertEquals(DEPTH, reader.getPlaneCount(0));
+        reader.close();
+    }
+
+    @Test public void testPlanes() throws Exception {
+        final Reader reader = open(new File(dir, "embryo_t000_c1.sqy"));
+
+        // planes are ordered Z, C, T
+        for(int t = TIMEPOINTS - 1;t >= 0;t--){
+            for(int c = 0;c < CHANNELS;c++){
+                for(int z = 0;z < DEPTH;z++){
+                    final long planeIndex = z + DEPTH*(c + CHANNELS*t);
+                    final ByteArrayPlane plane = reader.openPlane(0, planeIndex);
+                    assertEquals(SIDE*SIDE, plane.getBytes().length);
+                    assertEquals("c="+c+" t="+t+" z="+z, value(c, t, z), plane.getBytes()[0]);
+                    assertEquals(value(c, t, z), plane.getBytes()[SIDE*SIDE - 1]);
+                }
+            }
+        }
+        reader.close();
+    }
+}
@@ -0,0 +1,132 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.io.RandomAccessInputStream;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+public class SqyHeaderTest {
+
+    private static final Context context = new Context();
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private RandomAccessInputStream open(final String name) throws Exception {
+        final URL url = getClass().getResource(name);
+        assertNotEquals(url,null);
+        return new RandomAccessInputStream(context, url.getPath());
+    }
+
+    @Test public void testFlybrainHeader() throws Exception {
+
+        final SqyHeader header = SqyHeader.read(open("flybrain.sqy"));
+        assertNotNull(header);
+
+        assertEquals(1, header.getSizeof());
+        assertEquals(3, header.getNDims());
+        assertArrayEquals(new long[]{57, 256, 256}, header.getShape());
+        assertEquals(256, header.getSizeX());
+        assertEquals(256, header.getSizeY());
+        assertEquals(57, header.getSizeZ());
+        assertEquals(57L*256*256, header.getDecodedBytes());
+        assertEquals("uint8", header.getType());
+        assertThat(header.getPipeline(), org.hamcrest.CoreMatchers.startsWith("bitswap1"));
+    }
+
+    @Test public void testHeaderBytesEndWithTerminator() throws Exception {
+
+        final byte[] bytes = SqyHeader.readHeaderBytes(open("droso.sqy"));
+        assertNotNull(bytes);
+        assertEquals((byte)'{', bytes[0]);
+        assertEquals((byte)'|', bytes[bytes.length-1]);
+        assertTrue(bytes.length < 1024);
+
+        assertNull(SqyHeader.readHeaderBytes(open("droso.tif")));
+    }
+
+    @Test public void testHeadersAreCached() throws Exception {
+
+        SqyHeader.clearCache();
+        final SqyHeader first = SqyHeader.read(open("droso.sqy"));
+        final SqyHeader second = SqyHeader.read(open("droso.sqy"));
+        assertSame(first, second);
+        assertEquals(2, second.getSizeof());
+        assertArrayEquals(new long[]{81, 64, 64}, second.getShape());
+    }
+
+    private static void assertSameHeader(final SqyHeader expected, final SqyHeader actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getHeaderSize(), actual.getHeaderSize());
+        assertEquals(expected.getSizeof(), actual.getSizeof());
+        assertArrayEquals(expected.getShape(), actual.getShape());
+        assertEquals(expected.getPipeline(), actual.getPipeline());
+        assertEquals(expected.getType(), actual.getType());
+    }
+
+    @Test public void testJavaParserMatchesNative() throws Exception {
+
+        for (final String name : new String[]{"droso.sqy", "flybrain.sqy", "tiny-10x10x3.sqy"}) {
+            final byte[] bytes = SqyHeader.readHeaderBytes(open(name));
+            final SqyHeader reference = SqyHeader.parseNative(bytes);
+            assertNotNull(name, reference);
+            assertSameHeader(reference, SqyHeader.parse(bytes));
+        }
+
+        // trailing payload bytes are ignored by both
+        final byte[] header = SqyHeader.readHeaderBytes(open("droso.sqy"));
+        final byte[] longer = Arrays.copyOf(header, header.length + 16);
+        assertSameHeader(SqyHeader.parseNative(longer), SqyHeader.parse(longer));
+        assertEquals(header.length, SqyHeader.parse(longer).getHeaderSize());
+    }
+
+    @Test public void testJavaParserRejectsBrokenHeaders() throws Exception {
+
+        final String valid = new String(SqyHeader.readHeaderBytes(open("droso.sqy")),
+                                        StandardCharsets.US_ASCII);
+
+        // no terminator, unknown type, rank and dims disagree, negative
+        // extent, unbalanced braces
+        final String[] broken = {
+            valid.substring(0, valid.length() - 1),
+            valid.replace("\"uint16\"", "\"complex\""),
+            valid.replace("\"rank\": \"3\"", "\"rank\": \"4\""),
+            valid.replace("\"dim\": \"81\"", "\"dim\": \"-81\""),
+            "{ \"raw\": { \"type\": \"uint8\", \"shape\": { \"dim\": \"4\" } |"
+        };
+        for (final String header : broken) {
+            assertNotEquals(valid, header);
+            assertNull(header, SqyHeader.parse(header.getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    @Test public void testJavaParserToleratesLayout() throws Exception {
+
+        final String compact = "{\"pipename\":\"lz4\",\"raw\":{\"type\":\"uint8\",\"rank\":2," +
+            "\"shape\":{\"dim\":\"3\",\"dim\":\"7\"}},\"encoded\":{\"bytes\":\"12\"}}|";
+        final SqyHeader header = SqyHeader.parse(compact.getBytes(StandardCharsets.US_ASCII));
+        assertNotNull(header);
+        assertEquals(compact.length(), header.getHeaderSize());
+        assertEquals(1, header.getSizeof());
+        assertArrayEquals(new long[]{3, 7}, header.getShape());
+        assertEquals(7, header.getSizeX());
+        assertEquals("lz4", header.getPipeline());
+
+        // keys of other objects do not leak into raw
+        final String nested = compact.replace("\"encoded\":{\"bytes\":\"12\"}",
+                                              "\"encoded\":{\"type\":\"uint16\",\"dim\":\"9\"}");
+        assertArrayEquals(new long[]{3, 7}, SqyHeader.parse(nested.getBytes(StandardCharsets.US_ASCII)).getShape());
+        assertEquals(1, SqyHeader.parse(nested.getBytes(StandardCharsets.US_ASCII)).getSizeof());
+    }
+
+}
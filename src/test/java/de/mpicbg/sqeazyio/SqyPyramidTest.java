@@ -0,0 +1,167 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.ByteArrayPlane;
+import io.scif.config.SCIFIOConfig;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+import net.imagej.axis.Axes;
+import net.imglib2.FinalInterval;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Reader;
+import de.mpicbg.sqeazyio.SqeazyFormat.Writer;
+
+public class SqyPyramidTest {
+
+    private static final Context context = new Context();
+    private static final SqeazyFormat format = new SqeazyFormat();
+
+    static {
+        format.setContext(context);
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private File copy(final String name) throws Exception {
+        final URL url = getClass().getResource(name);
+        assertNotEquals(url,null);
+        final File dest = new File(folder.getRoot(), name);
+        Files.copy(Paths.get(url.toURI()), dest.toPath());
+        return dest;
+    }
+
+    private static Reader open(final File file, final SCIFIOConfig config) throws Exception {
+        final Reader reader = (Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, file.getAbsolutePath()), config);
+        return reader;
+    }
+
+    private static ByteBuffer plane(final Reader reader, final int imageIndex, final long z) throws Exception {
+        return ByteBuffer.wrap(reader.openPlane(imageIndex, z).getBytes()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test public void testLevelFiles() {
+        final File file = new File("/data/embryo_t001.sqy");
+        assertEquals(new File("/data/embryo_t001.L2.sqy"), SqyPyramid.levelFile(file, 2));
+        assertTrue(SqyPyramid.isLevelFile("embryo_t001.L2.sqy"));
+        assertFalse(SqyPyramid.isLevelFile("embryo_t001.sqy"));
+        assertFalse(SqyPyramid.isLevelFile("L2.sqy"));
+
+        assertEquals(0, SqyPyramid.defaultLevels(256, 100));
+        assertEquals(1, SqyPyramid.defaultLevels(257, 100));
+        assertEquals(3, SqyPyramid.defaultLevels(2048, 2048));
+    }
+
+    @Test public void testDownsampleAverages() {
+        // 3x2 plane: blocks {1,3,5,7} and {2,6} (the odd column)
+        final ByteBuffer plane = ByteBuffer.wrap(new byte[]{1, 3, 2, 5, 7, 6});
+        assertArrayEquals(new byte[]{4, 4}, SqyPyramid.downsample(plane, null, 3, 2, 1));
+
+        // 2x1 planes averaged in Z as well: {1000,1001,3000,3001} rounds up
+        final ByteBuffer first = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        first.putShort((short) 1000).putShort((short) 1001);
+        final ByteBuffer second = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        second.putShort((short) 3000).putShort((short) 3001);
+        final ByteBuffer mean = ByteBuffer.wrap(SqyPyramid.downsample(first, second, 2, 1, 2))
+            .order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(2001, mean.getShort(0) & 0xffff);
+    }
+
+    @Test public void testLevelsAreImages() throws Exception {
+        //droso.sqy: 81x64x64 uint16
+        final File droso = copy("droso.sqy");
+        final List<File> levels = SqyPyramid.build(context, droso, 2, false);
+        assertEquals(2, levels.size());
+        assertEquals(SqyPyramid.levelFile(droso, 1), levels.get(0));
+
+        final Reader reader = open(droso, new SCIFIOConfig());
+        assertEquals(3, reader.getImageCount());
+        assertEquals(64, reader.getMetadata().get(0).getAxisLength(Axes.X));
+        assertEquals(32, reader.getMetadata().get(1).getAxisLength(Axes.X));
+        assertEquals(16, reader.getMetadata().get(2).getAxisLength(Axes.Y));
+        assertEquals(81, reader.getMetadata().get(2).getAxisLength(Axes.Z));
+
+        // every level pixel averages the 2x2 pixels of the level above
+        for (final long z : new long[]{0, 48, 80}) {
+            final ByteBuffer full = plane(reader, 0, z);
+            final ByteBuffer half = plane(reader, 1, z);
+            assertArrayEquals(SqyPyramid.downsample(full, null, 64, 64, 2), half.array());
+            assertArrayEquals(SqyPyramid.downsample(half, null, 32, 32, 2), plane(reader, 2, z).array());
+        }
+        reader.close();
+
+        // not wanted
+        final Reader single = open(droso, SqeazyFormat.parserSetPyramid(new SCIFIOConfig(), false));
+        assertEquals(1, single.getImageCount());
+        single.close();
+    }
+
+    @Test public void testStaleLevelsAreIgnored() throws Exception {
+        final File tiny = copy("tiny-10x10x3.sqy");
+        SqyPyramid.build(context, tiny, 1, false);
+        assertTrue(tiny.setLastModified(SqyPyramid.levelFile(tiny, 1).lastModified() + 60000));
+
+        final Reader reader = open(tiny, new SCIFIOConfig());
+        assertEquals(1, reader.getImageCount());
+        reader.close();
+    }
+
+    @Test public void testWriterBuildsLevels() throws Exception {
+        final int side = 10, depth = 4;
+        final File file = new File(folder.getRoot(), "ramp.sqy");
+
+        final SqeazyFormat.Metadata wMeta = (SqeazyFormat.Metadata) format.createMetadata();
+        wMeta.setSizeX(side);
+        wMeta.setSizeY(side);
+        wMeta.setSizeZ(depth);
+        wMeta.setPixelSize(1);
+        wMeta.populateImageMetadata();
+
+        final Writer writer = (Writer) format.createWriter();
+        writer.setMetadata(wMeta);
+        writer.setDest(file.getAbsolutePath(), SqeazyFormat.writerSetPyramid(new SCIFIOConfig(), 1, true));
+        for (int z = 0; z < depth; z++) {
+            final byte[] pixels = new byte[side*side];
+            for (int i = 0; i < pixels.length; i++) pixels[i] = (byte) (10*z + i % side);
+            final ByteArrayPlane plane = new ByteArrayPlane(context, wMeta.get(0),
+                                                            new FinalInterval(side, side));
+            plane.setData(pixels);
+            writer.savePlane(0, z, plane);
+        }
+        writer.close();
+
+        final Reader reader = open(file, new SCIFIOConfig());
+        assertEquals(2, reader.getImageCount());
+        assertEquals(5, reader.getMetadata().get(1).getAxisLength(Axes.X));
+        assertEquals(2, reader.getMetadata().get(1).getAxisLength(Axes.Z));
+
+        // level plane 1 averages planes 2 and 3: 25.5+2x, rounded
+        final ByteBuffer level = plane(reader, 1, 1);
+        for (int x = 0; x < 5; x++) {
+            assertEquals(26 + 2*x, level.get(x) & 0xff);
+        }
+        reader.close();
+    }
+}
@@ -0,0 +1,178 @@
+package de.mpicbg.sqeazyio;
+
+import io.scif.ByteArrayPlane;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import org.scijava.Context;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Reader;
+
+public class SqyThumbnailsTest {
+
+    private static final Context context = new Context();
+    private static final SqeazyFormat format = new SqeazyFormat();
+
+    static {
+        format.setContext(context);
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File previousDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        previousDirectory = SqyThumbnails.getInstance().getDirectory();
+        SqyThumbnails.getInstance().setDirectory(folder.newFolder("thumbnails"));
+    }
+
+    @After
+    public void tearDown() {
+        SqyThumbnails.getInstance().setDirectory(previousDirectory);
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        context.dispose();
+    }
+
+    private Reader open(final String name) throws Exception {
+        final URL url = getClass().getResource(name);
+        assertNotEquals(url,null);
+        final Reader reader = (Reader) format.createReader();
+        reader.setSource(new RandomAccessInputStream(context, url.getPath()));
+        return reader;
+    }
+
+    /** the thumbnail of full resolution planes {@code zs} of {@code reader} */
+    private static byte[] expected(final Reader reader, final int width, final int height,
+                                   final long... zs) throws Exception
+    {
+        final SqeazyFormat.Metadata meta = reader.getMetadata();
+        final int[] values = new int[width * height];
+        for (final long z : zs) {
+            final ByteBuffer plane = ByteBuffer.wrap(reader.openPlane(0, z).getBytes())
+                .order(ByteOrder.LITTLE_ENDIAN);
+            SqyThumbnails.reduce(plane, meta.getSizeX(), meta.getSizeY(), meta.getPixelSize(),
+                                 width, height, values);
+        }
+        final ByteBuffer pixels = ByteBuffer.allocate(values.length * meta.getPixelSize())
+            .order(ByteOrder.LITTLE_ENDIAN);
+        for (final int value : values) {
+            if (meta.getPixelSize() == 1) pixels.put((byte) value);
+            else pixels.putShort((short) value);
+        }
+        return pixels.array();
+    }
+
+    private static int[] thumbSize(final Reader reader) {
+        final SqeazyFormat.Metadata meta = reader.getMetadata();
+        return SqyThumbnails.thumbSize(meta.getSizeX(), meta.getSizeY(),
+                                       meta.get(0).getThumbSizeX(), meta.get(0).getThumbSizeY());
+    }
+
+    @Test public void testThumbSize() {
+        assertArrayEquals(new int[]{64, 64}, SqyThumbnails.thumbSize(64, 64, 0, 0));
+        assertArrayEquals(new int[]{128, 64}, SqyThumbnails.thumbSize(256, 128, 128, 128));
+        assertArrayEquals(new int[]{16, 128}, SqyThumbnails.thumbSize(100, 800, 0, 0));
+    }
+
+    @Test public void testReduceAverages() {
+        // 4x2 plane, thumbnail 2x1: blocks {1,3,5,7} and {2,4,6,8}
+        final ByteBuffer plane = ByteBuffer.wrap(new byte[]{1, 3, 2, 4, 5, 7, 6, 8});
+        final int[] values = new int[2];
+        SqyThumbnails.reduce(plane, 4, 2, 1, 2, 1, values);
+        assertArrayEquals(new int[]{4, 5}, values);
+    }
+
+    @Test public void testMiddleZ() throws Exception {
+        //flybrain.sqy: 57x256x256 uint8
+        final Reader reader = open("flybrain.sqy");
+        final ByteArrayPlane thumb = reader.openThumbPlane(0, 0);
+        final int[] size = thumbSize(reader);
+        assertTrue(size[0] <= 256 && size[0] == size[1]);
+
+        assertArrayEquals(expected(reader, size[0], size[1], 28), thumb.getBytes());
+        reader.close();
+    }
+
+    @Test public void testMaxProjection() throws Exception {
+        final Reader reader = open("tiny-10x10x3.sqy");
+        reader.setThumbnailMode(SqyThumbnails.Mode.MAX_PROJECTION);
+        final ByteArrayPlane thumb = reader.openThumbPlane(0, 1);
+        final int[] size = thumbSize(reader);
+
+        final long[] all = new long[Math.max(reader.getMetadata().getSizeZ(), 1)];
+        for (int z = 0; z < all.length; z++) all[z] = z;
+        assertArrayEquals(expected(reader, size[0], size[1], all), thumb.getBytes());
+        reader.close();
+    }
+
+    @Test public void testThumbnailsAreCachedOnDisk() throws Exception {
+        final SqyThumbnails thumbnails = SqyThumbnails.getInstance();
+        final long misses = thumbnails.getMisses();
+        final long hits = thumbnails.getHits();
+
+        final Reader first = open("droso.sqy");
+        final byte[] computed = first.openThumbPlane(0, 0).getBytes();
+        first.close();
+        assertEquals(misses + 1, thumbnails.getMisses());
+        assertEquals(1, thumbnails.getDirectory().listFiles().length);
+
+        final Reader second = open("droso.sqy");
+        assertArrayEquals(computed, second.openThumbPlane(0, 0).getBytes());
+        assertFalse(second.getMetadata().isDecoded());
+        second.close();
+        assertEquals(hits + 1, thumbnails.getHits());
+
+        thumbnails.clear();
+        assertEquals(0, thumbnails.getDirectory().listFiles().length);
+    }
+
+    @Test public void testCacheSizeIsTracked() throws Exception {
+        final SqyThumbnails thumbnails = SqyThumbnails.getInstance();
+        final long budget = thumbnails.getMaximumBytes();
+        assertEquals(0, thumbnails.getCachedBytes());
+
+        final Reader reader = open("droso.sqy");
+        reader.setThumbnailMode(SqyThumbnails.Mode.PLANE);
+        reader.openThumbPlane(0, 0);
+        final File[] files = thumbnails.getDirectory().listFiles();
+        assertEquals(1, files.length);
+        final long thumbBytes = files[0].length();
+        assertEquals(thumbBytes, thumbnails.getCachedBytes());
+
+        // cache hits do not change the size
+        reader.openThumbPlane(0, 0);
+        assertEquals(thumbBytes, thumbnails.getCachedBytes());
+
+        // storing beyond the budget deletes the least recently used thumbnail
+        try {
+            thumbnails.setMaximumBytes(thumbBytes + 1);
+            assertTrue(files[0].setLastModified(System.currentTimeMillis() - 60000));
+            reader.openThumbPlane(0, 1);
+            assertEquals(thumbBytes, thumbnails.getCachedBytes());
+            assertEquals(1, thumbnails.getDirectory().listFiles().length);
+            assertFalse(files[0].exists());
+        }
+        finally {
+            thumbnails.setMaximumBytes(budget);
+            reader.close();
+        }
+    }
+}
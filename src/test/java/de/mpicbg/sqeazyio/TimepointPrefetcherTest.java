@@ -0,0 +1,132 @@
+package de.mpicbg.sqeazyio;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import de.mpicbg.sqeazyio.SqeazyFormat.Metadata;
+
+/**
+ * Prefetching with a loader that only records which files it was asked for,
+ * the returned Metadata objects are empty.
+ */
+public class TimepointPrefetcherTest {
+
+    private final List<String> loaded = new CopyOnWriteArrayList<>();
+
+    private TimepointPrefetcher.Loader recording(final CountDownLatch gate) {
+        return (c, t, z) -> {
+            try {
+                gate.await(10, TimeUnit.SECONDS);
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            loaded.add("c" + c + "t" + t);
+            return new Metadata();
+        };
+    }
+
+    /** waits for the prefetch thread, a queued prefetch would be cancelled by take */
+    private void awaitLoaded(final String... files) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        for (final String file : files) {
+            while (!loaded.contains(file)) {
+                assertTrue(file + " not loaded in time", System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    @Test public void testPrefetchesAhead() throws Exception {
+        final TimepointPrefetcher prefetcher =
+            new TimepointPrefetcher(2, 10, 1, recording(new CountDownLatch(0)));
+
+        prefetcher.accessed(3, 0);
+        assertEquals(2, prefetcher.pendingCount());
+
+        awaitLoaded("c0t4", "c1t4");
+        assertNotNull(prefetcher.take(0, 4));
+        assertNotNull(prefetcher.take(1, 4));
+        assertNull(prefetcher.take(0, 5));
+        prefetcher.close();
+    }
+
+    @Test public void testFollowsDirection() throws Exception {
+        final TimepointPrefetcher prefetcher =
+            new TimepointPrefetcher(1, 10, 2, recording(new CountDownLatch(0)));
+
+        prefetcher.accessed(5, 0);
+        prefetcher.accessed(4, 0);
+
+        // 6 and 7 are dropped, 3 and 2 are next when moving backwards
+        assertEquals(2, prefetcher.pendingCount());
+        awaitLoaded("c0t3", "c0t2");
+        assertNotNull(prefetcher.take(0, 3));
+        assertNotNull(prefetcher.take(0, 2));
+        assertNull(prefetcher.take(0, 6));
+        prefetcher.close();
+    }
+
+    @Test public void testStopsAtTheEnds() throws Exception {
+        final TimepointPrefetcher prefetcher =
+            new TimepointPrefetcher(1, 3, 4, recording(new CountDownLatch(0)));
+
+        prefetcher.accessed(1, 0);
+        assertEquals(1, prefetcher.pendingCount());
+        prefetcher.close();
+        assertEquals(0, prefetcher.pendingCount());
+    }
+
+    @Test public void testJumpCancelsQueuedPrefetches() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final TimepointPrefetcher prefetcher = new TimepointPrefetcher(1, 100, 3, recording(gate));
+
+        // t=1 blocks the prefetch thread, t=2 and t=3 wait in the queue
+        prefetcher.accessed(0, 0);
+        prefetcher.accessed(50, 0);
+        gate.countDown();
+
+        awaitLoaded("c0t51");
+        assertNotNull(prefetcher.take(0, 51));
+        assertNull(prefetcher.take(0, 2));
+        prefetcher.close();
+
+        assertFalse(loaded.contains("c0t2"));
+        assertFalse(loaded.contains("c0t3"));
+    }
+
+    @Test public void testClaimDoesNotWait() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final TimepointPrefetcher prefetcher = new TimepointPrefetcher(1, 10, 1, (c, t, z) -> {
+                entered.countDown();
+                try {
+                    gate.await(10, TimeUnit.SECONDS);
+                }
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new Metadata();
+            });
+
+        prefetcher.accessed(0, 0);
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+        // the running prefetch is handed over right away, waiting for it is
+        // up to the caller
+        final TimepointPrefetcher.Prefetch running = prefetcher.claim(0, 1);
+        assertNotNull(running);
+        assertEquals(0, prefetcher.pendingCount());
+        assertNull(prefetcher.claim(0, 1));
+
+        gate.countDown();
+        assertNotNull(prefetcher.await(running));
+        prefetcher.close();
+    }
+}
@@ -0,0 +1,120 @@
+package de.mpicbg.sqeazyio.benchmark;
+
+import io.scif.FormatException;
+import io.scif.Plane;
+import io.scif.Reader;
+import io.scif.SCIFIO;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.mpicbg.sqeazyio.DecodedVolumeCache;
+
+/**
+ * Plane access through SCIFIO, run for the sqy fixtures by
+ * {@link ReaderBenchmark} and for the same volumes stored as TIFF by
+ * {@link TiffReaderBenchmark}.
+ * <p>
+ * {@link #openPlane} reads one plane from an already opened reader (for sqy
+ * the volume is decoded beforehand), {@link #openAllPlanes} opens the file and
+ * reads every plane, i.e. it includes parsing and decoding. The decoded
+ * volume cache is disabled.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class AbstractReaderBenchmark {
+
+    @Param({"flybrain", "droso"})
+    public String volume;
+
+    private SCIFIO scifio;
+    private String path;
+    private long bytes;
+
+    private Reader reader;
+    private Plane plane;
+    private long planes;
+    private long current = 0;
+    private long cacheBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, FormatException {
+        scifio = new SCIFIO();
+        path = Fixtures.path(volume + "." + suffix());
+        bytes = Fixtures.decodedBytes(volume);
+
+        cacheBytes = DecodedVolumeCache.getInstance().getMaximumBytes();
+        DecodedVolumeCache.getInstance().setMaximumBytes(0);
+
+        reader = open();
+        planes = reader.getPlaneCount(0);
+        plane = reader.openPlane(0, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        DecodedVolumeCache.getInstance().setMaximumBytes(cacheBytes);
+        scifio.getContext().dispose();
+    }
+
+    @Benchmark
+    public Plane openPlane(final Fixtures.Throughput throughput)
+        throws IOException, FormatException
+    {
+        current = (current + 1) % planes;
+        reader.openPlane(0, current, plane);
+        throughput.add(bytes / planes);
+        return plane;
+    }
+
+    @Benchmark
+    public void openAllPlanes(final Fixtures.Throughput throughput,
+                              final Blackhole blackhole) throws IOException, FormatException
+    {
+        final Reader fresh = open();
+        try {
+            Plane p = fresh.openPlane(0, 0);
+            for (long z = 1; z < planes; z++) {
+                p = fresh.openPlane(0, z, p);
+                blackhole.consume(p);
+            }
+        }
+        finally {
+            fresh.close();
+        }
+        throughput.add(bytes);
+    }
+
+    /** the suffix of the fixtures read */
+    protected abstract String suffix();
+
+    /** Adapts a freshly opened reader before planes are read. */
+    protected void configure(final Reader r) {}
+
+    private Reader open() throws IOException, FormatException {
+        final Reader r = scifio.initializer().initializeReader(path);
+        configure(r);
+        return r;
+    }
+}
@@ -0,0 +1,72 @@
+package de.mpicbg.sqeazyio.benchmark;
+
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.scijava.Context;
+
+import de.mpicbg.sqeazyio.SqeazyFormat;
+import de.mpicbg.sqeazyio.SqyHeader;
+
+/**
+ * Format detection: {@link SqeazyFormat.Checker#isFormat} on sqy files (with
+ * and without the header cache) and on a TIFF that has to be rejected.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckerBenchmark {
+
+    @Param({"flybrain.sqy", "droso.sqy", "droso.tif"})
+    public String file;
+
+    @Param({"true", "false"})
+    public boolean headerCache;
+
+    private Context context;
+    private SqeazyFormat.Checker checker;
+    private String path;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new Context();
+        checker = new SqeazyFormat.Checker();
+        path = Fixtures.path(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.dispose();
+    }
+
+    @Setup(Level.Invocation)
+    public void forgetHeaders() {
+        if (!headerCache) SqyHeader.clearCache();
+    }
+
+    @Benchmark
+    public boolean isFormat() throws IOException {
+        try (final RandomAccessInputStream stream = new RandomAccessInputStream(context, path)) {
+            return checker.isFormat(stream);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package de.mpicbg.sqeazyio.benchmark;
+
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Paths;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The test volumes the benchmarks run on, i.e. the fixtures bundled with the
+ * unit tests, and the counter used to report throughput in MB/s.
+ */
+final class Fixtures {
+
+    private Fixtures() {}
+
+    /** flybrain.sqy/.tif: 57x256x256 uint8 */
+    static final long FLYBRAIN_BYTES = 57L*256*256;
+
+    /** droso.sqy/.tif: 81x64x64 uint16 */
+    static final long DROSO_BYTES = 81L*64*64*2;
+
+    /** absolute path of the bundled test file {@code name} */
+    static String path(final String name) {
+        final URL url = Fixtures.class.getResource("/de/mpicbg/sqeazyio/" + name);
+        if (url == null) {
+            throw new IllegalArgumentException("no test fixture named " + name);
+        }
+        try {
+            return Paths.get(url.toURI()).toAbsolutePath().toString();
+        }
+        catch (final URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /** size in bytes of the decoded volume stored in {@code name} */
+    static long decodedBytes(final String name) {
+        if (name.startsWith("flybrain")) return FLYBRAIN_BYTES;
+        if (name.startsWith("droso")) return DROSO_BYTES;
+        throw new IllegalArgumentException("no test fixture named " + name);
+    }
+
+    /**
+     * Pixel data handed out per benchmark invocation. JMH reports the counter
+     * normalized like the primary result, i.e. in MB/s for throughput runs.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+
+        void add(final long bytes) {
+            megabytes += bytes / (1024. * 1024.);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package de.mpicbg.sqeazyio.benchmark;
+
+import io.scif.FormatException;
+import io.scif.config.SCIFIOConfig;
+import io.scif.io.RandomAccessInputStream;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.scijava.Context;
+
+import de.mpicbg.sqeazyio.DecodedVolumeCache;
+import de.mpicbg.sqeazyio.SqeazyFormat;
+
+/**
+ * {@link SqeazyFormat.Parser#typedParse}, header only (lazy) and including the
+ * decode of the whole volume. The decoded volume cache is disabled, so every
+ * eager parse really decodes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"flybrain.sqy", "droso.sqy"})
+    public String file;
+
+    @Param({"true", "false"})
+    public boolean lazy;
+
+    /** decoder threads, 0 lets the decode service decide */
+    @Param({"0", "1", "4"})
+    public int nThreads;
+
+    private Context context;
+    private SqeazyFormat format;
+    private SqeazyFormat.Parser parser;
+    private SCIFIOConfig config;
+    private String path;
+    private long cacheBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws FormatException {
+        context = new Context();
+        format = new SqeazyFormat();
+        format.setContext(context);
+        parser = (SqeazyFormat.Parser) format.createParser();
+        config = SqeazyFormat.parserSetLazy(new SCIFIOConfig(), lazy);
+        path = Fixtures.path(file);
+
+        cacheBytes = DecodedVolumeCache.getInstance().getMaximumBytes();
+        DecodedVolumeCache.getInstance().setMaximumBytes(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        DecodedVolumeCache.getInstance().setMaximumBytes(cacheBytes);
+        context.dispose();
+    }
+
+    @Benchmark
+    public void typedParse(final Fixtures.Throughput throughput,
+                           final Blackhole blackhole) throws IOException, FormatException
+    {
+        final SqeazyFormat.Metadata meta = (SqeazyFormat.Metadata) format.createMetadata();
+        meta.setNthreads(nThreads);
+        try (final RandomAccessInputStream stream = new RandomAccessInputStream(context, path)) {
+            parser.typedParse(stream, meta, config);
+            blackhole.consume(meta.getData());
+        }
+        finally {
+            meta.close();
+        }
+        throughput.add(Fixtures.decodedBytes(file));
+    }
+}
@@ -0,0 +1,25 @@
+package de.mpicbg.sqeazyio.benchmark;
+
+import io.scif.Reader;
+
+import org.openjdk.jmh.annotations.Param;
+
+import de.mpicbg.sqeazyio.SqeazyFormat;
+
+/** {@link AbstractReaderBenchmark} for the sqy fixtures, per decoder thread count. */
+public class ReaderBenchmark extends AbstractReaderBenchmark {
+
+    /** decoder threads, 0 lets the decode service decide */
+    @Param({"0", "1", "4"})
+    public int nThreads;
+
+    @Override
+    protected String suffix() {
+        return "sqy";
+    }
+
+    @Override
+    protected void configure(final Reader r) {
+        ((SqeazyFormat.Metadata) r.getMetadata()).setNthreads(nThreads);
+    }
+}
@@ -0,0 +1,13 @@
+package de.mpicbg.sqeazyio.benchmark;
+
+/**
+ * {@link AbstractReaderBenchmark} for the fixtures stored as TIFF, the
+ * baseline of {@link ReaderBenchmark}. There is no decoder to configure.
+ */
+public class TiffReaderBenchmark extends AbstractReaderBenchmark {
+
+    @Override
+    protected String suffix() {
+        return "tif";
+    }
+}